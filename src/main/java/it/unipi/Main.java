@@ -2,13 +2,29 @@ package it.unipi;
 
 import it.unipi.indexer.Indexer;
 import it.unipi.indexer.BinaryIndexer;
+import it.unipi.indexer.SegmentMerger;
 import it.unipi.indexer.TextualIndexer;
 import it.unipi.query.processor.QueryProcessor;
+import it.unipi.models.Document;
+import it.unipi.utils.BuildFiles;
 import it.unipi.utils.Constants;
+import it.unipi.utils.DeletionBitmap;
+import it.unipi.utils.DiskDataStructuresSearch;
 import it.unipi.utils.FileSystemUtils;
+import it.unipi.utils.IndexFiles;
+import it.unipi.utils.IndexingProfiler;
+import it.unipi.utils.SegmentCatalog;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 
-import java.io.IOException;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 public class Main {
 
@@ -28,6 +44,17 @@ public class Main {
                         throw new RuntimeException("File format not supported..");
                     index(args[1]);
                 }
+            } else if (args[0].equals("append")){
+                if (args.length != 2) throw new RuntimeException("Usage: append <documents.tsv>");
+                append(args[1]);
+            } else if (args[0].equals("delete")){
+                if (args.length < 2) throw new RuntimeException("Usage: delete <docNo> ...");
+                delete(new HashSet<>(Arrays.asList(args).subList(1, args.length)));
+            } else if (args[0].equals("merge")){
+                // started in the background by append
+                new SegmentMerger().mergeTiers();
+            } else if (args[0].equals("compact")){
+                new SegmentMerger().compact();
             } else if (args[0].equals("query")){
                 System.out.println("Starting the query processor..");
                 QueryProcessor qp = new QueryProcessor();
@@ -37,11 +64,27 @@ public class Main {
     }
 
     public static void index(String fileFormat) throws IOException, ConfigurationException {
+        // no merge or compaction runs during the build, the segments appended before it are retired when it ends
+        FileChannel mergeLock = SegmentMerger.lockMerges();
+        try {
+            List<String> appendedSegments = SegmentCatalog.readSegments();
+            buildMainIndex(fileFormat);
+            SegmentCatalog.replaceMainIndex(null, appendedSegments);
+        } finally {
+            mergeLock.close();
+        }
+    }
+
+    private static void buildMainIndex(String fileFormat) throws IOException, ConfigurationException {
 
         // creating the folders
-        FileSystemUtils.setupEnvironment();
+        BuildFiles buildFiles = BuildFiles.of(IndexFiles.MAIN_INDEX);
+        FileSystemUtils.setupEnvironment(buildFiles);
+        // the main index in resources/ is written again, a compacted one stays live until the build is complete
+        SegmentCatalog.keepResourcesMainIndex();
 
         Indexer indexer = (fileFormat.equalsIgnoreCase(Constants.TXT_FORMAT)) ? new TextualIndexer() : new BinaryIndexer();
+        IndexingProfiler.reset();
 
         // indexing
         long startIndexing = System.currentTimeMillis();
@@ -56,6 +99,83 @@ public class Main {
         System.out.println("Merged in " + (endMerge - startMerge) + " ms");
 
         // deleting the folders
-        FileSystemUtils.deleteTemporaryFolders();
+        FileSystemUtils.deleteTemporaryFolders(buildFiles);
+        IndexingProfiler.writeReport(Constants.BUILD_REPORT_FILE_PATH, endIndexing - startIndexing, endMerge - startMerge);
+    }
+
+    // indexes the documents of a file (docNo \t text for each line) into a new segment, searchable as soon as it is written
+    public static void append(String documentsPath) throws IOException, ConfigurationException {
+
+        // the segment has its own partial files and manifest, an interrupted build of the main index can still be resumed
+        String segment = SegmentCatalog.newSegment();
+        IndexFiles segmentFiles = IndexFiles.ofSegment(segment);
+        BuildFiles buildFiles = BuildFiles.of(segmentFiles);
+        FileSystemUtils.setupEnvironment(buildFiles);
+        BinaryIndexer indexer = new BinaryIndexer(segmentFiles, documentsPath);
+        IndexingProfiler.reset();
+
+        long startIndexing = System.currentTimeMillis();
+        indexer.indexCollection();
+        long startMerge = System.currentTimeMillis();
+        indexer.mergeBlocks();
+        FileSystemUtils.deleteTemporaryFolders(buildFiles);
+        IndexingProfiler.writeReport(Constants.BUILD_REPORT_FILE_PATH, startMerge - startIndexing, System.currentTimeMillis() - startMerge);
+
+        if (DiskDataStructuresSearch.readCollectionStatistics(segmentFiles).getNumDocs() == 0) {
+            SegmentCatalog.deleteSegment(segment);
+            System.out.println("No documents to append");
+            return;
+        }
+        SegmentCatalog.addSegment(segment);
+        System.out.println("Appended " + segment + " in " + (System.currentTimeMillis() - startIndexing) + " ms");
+
+        // the new segment is already live, merging the segments in the background
+        mergeInBackground();
+    }
+
+    // starts the merge command in a new process with the same classpath and JVM options, without waiting for it
+    // its output is appended to resources/segments/merge.log
+    private static void mergeInBackground() throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.addAll(List.of("-cp", System.getProperty("java.class.path"), Main.class.getName(), "merge"));
+        new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(new File(Constants.SEGMENTS_MERGE_LOG_FILE_PATH)))
+                .start();
+    }
+
+    // marks the documents as deleted in the main index and in the segments, they are physically removed by compact
+    // the deletion bitmaps are loaded, updated and written holding the catalog lock, so that concurrent deletes, merges
+    // and compactions do not lose them
+    public static void delete(Set<String> docNos) throws IOException {
+        int deleted = SegmentCatalog.underLock(() -> deleteDocuments(docNos));
+        System.out.println("Deleted " + deleted + " documents");
+    }
+
+    // returns the number of documents deleted
+    private static int deleteDocuments(Set<String> docNos) throws IOException {
+        List<IndexFiles> indexes = SegmentCatalog.readIndexes();
+
+        int deleted = 0;
+        byte[] documentEntry = new byte[Constants.DOCUMENT_ENTRY_SIZE];
+        Document document = new Document();
+        for (IndexFiles index : indexes) {
+            DeletionBitmap deletedDocuments = DeletionBitmap.load(index, DiskDataStructuresSearch.readCollectionStatistics(index).getNumDocs());
+            int deletedBefore = deletedDocuments.getNumberOfDeletedDocuments();
+            // the doc table is not sorted by docNo, so it is scanned
+            try (InputStream documentTable = new BufferedInputStream(new FileInputStream(index.documentTable()))) {
+                while (documentTable.readNBytes(documentEntry, 0, Constants.DOCUMENT_ENTRY_SIZE) == Constants.DOCUMENT_ENTRY_SIZE) {
+                    document.deserializeBinary(documentEntry);
+                    if (docNos.contains(document.getDocNo())) deletedDocuments.delete(document.getDocId());
+                }
+            }
+            if (deletedDocuments.getNumberOfDeletedDocuments() > deletedBefore) {
+                deleted += deletedDocuments.getNumberOfDeletedDocuments() - deletedBefore;
+                deletedDocuments.write(index);
+            }
+        }
+        return deleted;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,14 @@
+package it.unipi.indexer;
+
+// immutable class used to record which documents of the collection a batch produced, so that a resumed build can skip it
+record BatchRecord(long batchNumber, int firstDocId, int numberOfDocuments, int numberOfTokens) {
+
+    String serialize() {
+        return batchNumber + ":" + firstDocId + ":" + numberOfDocuments + ":" + numberOfTokens;
+    }
+
+    static BatchRecord deserialize(String buffer) {
+        String[] fields = buffer.split(":");
+        return new BatchRecord(Long.parseLong(fields[0]), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+    }
+}
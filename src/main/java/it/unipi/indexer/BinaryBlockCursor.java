@@ -0,0 +1,120 @@
+package it.unipi.indexer;
+
+import it.unipi.models.LexiconTermBinaryIndexing;
+import it.unipi.utils.BuildFiles;
+import it.unipi.utils.Constants;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+
+// cursor over the terms of a binary partial block, optionally restricted to the terms in [firstTerm, lastTermExcluded)
+class BinaryBlockCursor extends BlockCursor<LexiconTermBinaryIndexing> {
+
+    private final InputStream lexiconStream;
+    private final DataInputStream docIdsStream;
+    private final DataInputStream frequenciesStream;
+    // null if the range has no upper bound
+    private final String lastTermExcluded;
+    private final byte[] lexiconEntry = new byte[Constants.LEXICON_ENTRY_SIZE];
+    // postings of the current term not read yet
+    private int postingsLeft;
+    // current posting of the partial posting list
+    private int docId;
+    private int frequency;
+
+    BinaryBlockCursor(BuildFiles buildFiles, int blockIndex, String fileExtension, String firstTerm, String lastTermExcluded) throws IOException {
+        super(blockIndex);
+        this.term = new LexiconTermBinaryIndexing();
+        this.lastTermExcluded = lastTermExcluded;
+
+        // positioning the files at the first term of the range
+        String lexiconFile = buildFiles.partialLexicon() + blockIndex + fileExtension;
+        long firstEntry = 0;
+        long firstDocIdsOffset = 0;
+        long firstFrequenciesOffset = 0;
+        if (firstTerm != null) {
+            try (FileChannel lexiconChannel = FileChannel.open(Paths.get(lexiconFile))) {
+                long numberOfTerms = lexiconChannel.size() / Constants.LEXICON_ENTRY_SIZE;
+                firstEntry = findFirstEntryGEQ(lexiconChannel, numberOfTerms, firstTerm);
+                if (firstEntry < numberOfTerms) {
+                    readLexiconEntry(lexiconChannel, firstEntry, lexiconEntry);
+                    term.deserialize(lexiconEntry);
+                    firstDocIdsOffset = term.getDocIdsOffset();
+                    firstFrequenciesOffset = term.getFrequenciesOffset();
+                }
+            }
+        }
+        lexiconStream = openPartialFile(lexiconFile, firstEntry * Constants.LEXICON_ENTRY_SIZE);
+        docIdsStream = new DataInputStream(openPartialFile(buildFiles.partialPostingsDocIds() + blockIndex + fileExtension, firstDocIdsOffset));
+        frequenciesStream = new DataInputStream(openPartialFile(buildFiles.partialPostingsFrequencies() + blockIndex + fileExtension, firstFrequenciesOffset));
+    }
+
+    @Override
+    boolean advance() throws IOException {
+        if (lexiconStream.readNBytes(lexiconEntry, 0, Constants.LEXICON_ENTRY_SIZE) < Constants.LEXICON_ENTRY_SIZE) {
+            return false;
+        }
+        term.deserialize(lexiconEntry);
+        postingsLeft = term.getDocumentFrequency();
+        return lastTermExcluded == null || term.getTerm().compareTo(lastTermExcluded) < 0;
+    }
+
+    // moves to the next posting of the current term, the whole partial posting list must be read before advancing
+    // partial posting lists are raw 4 bytes integers, so postings are streamed without decoding the list
+    boolean nextPosting() throws IOException {
+        if (postingsLeft == 0) {
+            return false;
+        }
+        postingsLeft--;
+        docId = docIdsStream.readInt();
+        frequency = frequenciesStream.readInt();
+        return true;
+    }
+
+    int getDocId() {
+        return docId;
+    }
+
+    int getFrequency() {
+        return frequency;
+    }
+
+    @Override
+    public void close() throws IOException {
+        lexiconStream.close();
+        docIdsStream.close();
+        frequenciesStream.close();
+    }
+
+    // binary search of the first entry of a partial lexicon whose term is greater or equal than the given one
+    private long findFirstEntryGEQ(FileChannel lexiconChannel, long numberOfTerms, String firstTerm) throws IOException {
+        long leftExtreme = 0;
+        long rightExtreme = numberOfTerms;
+        while (leftExtreme < rightExtreme) {
+            long middle = (leftExtreme + rightExtreme) >>> 1;
+            readLexiconEntry(lexiconChannel, middle, lexiconEntry);
+            if (term.deserializeTerm(lexiconEntry).compareTo(firstTerm) < 0) {
+                leftExtreme = middle + 1;
+            } else {
+                rightExtreme = middle;
+            }
+        }
+        return leftExtreme;
+    }
+
+    static void readLexiconEntry(FileChannel lexiconChannel, long entry, byte[] lexiconEntry) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(lexiconEntry);
+        long position = entry * Constants.LEXICON_ENTRY_SIZE;
+        while (buffer.hasRemaining()) {
+            if (lexiconChannel.read(buffer, position + buffer.position()) == -1) throw new EOFException();
+        }
+    }
+
+    private static InputStream openPartialFile(String path, long offset) throws IOException {
+        FileInputStream fileInputStream = new FileInputStream(path);
+        fileInputStream.getChannel().position(offset);
+        return new BufferedInputStream(fileInputStream, Constants.MERGE_BUFFER_SIZE);
+    }
+}
@@ -1,33 +1,78 @@
 package it.unipi.indexer;
 
+import it.unipi.models.CollectionStatistics;
 import it.unipi.models.Document;
+import it.unipi.models.InvertedIndexWriter;
 import it.unipi.models.LexiconTermBinaryIndexing;
+import it.unipi.models.PostingsCodec;
+import it.unipi.utils.BuildFiles;
 import it.unipi.utils.Constants;
+import it.unipi.utils.ScoringFunctions;
 import it.unipi.utils.EncodingUtils;
+import it.unipi.utils.FileSystemUtils;
+import it.unipi.utils.IndexFiles;
+import it.unipi.utils.IndexingProfiler;
+import it.unipi.utils.IndexingProfiler.Counter;
+import it.unipi.utils.IndexingProfiler.Phase;
+import org.apache.commons.configuration2.Configuration;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 
 import java.io.*;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class BinaryIndexer extends Indexer<LexiconTermBinaryIndexing> {
+    // number of merges running at the same time, each one on its own thread
+    private final int numberOfMergeThreads;
+    // maximum number of blocks opened by each merge, the mergeFanIn budget is divided among the concurrent merges
+    private final int blocksPerMerge;
+    // encoding of the merged posting lists
+    private final PostingsCodec postingsCodec;
+
+    // where the final files are written: the main index or a segment
+    private final IndexFiles outputFiles;
+
     public BinaryIndexer() throws ConfigurationException, IOException {
-        super(LexiconTermBinaryIndexing::new, Constants.DAT_FORMAT);
+        this(IndexFiles.MAIN_INDEX, null);
+    }
+
+    public BinaryIndexer(IndexFiles outputFiles, String collectionPath) throws ConfigurationException, IOException {
+        this(outputFiles, collectionPath, FileSystemUtils.loadAppProperties());
+    }
+
+    BinaryIndexer(IndexFiles outputFiles, String collectionPath, Configuration configuration) {
+        super(Constants.DAT_FORMAT, collectionPath, BuildFiles.of(outputFiles), configuration);
+        this.outputFiles = outputFiles;
+        // mergeFanIn bounds the blocks opened at the same time by all the merges, and each merge opens at least 2 of them
+        int mergeFanIn = Math.max(2, configuration.getInt("mergeFanIn", Constants.DEFAULT_MERGE_FAN_IN));
+        numberOfMergeThreads = Math.max(1, Math.min(configuration.getInt("mergeThreads", Runtime.getRuntime().availableProcessors()), mergeFanIn / 2));
+        blocksPerMerge = mergeFanIn / numberOfMergeThreads;
+        postingsCodec = PostingsCodec.fromConfiguration(configuration);
+    }
+
+    // consumer of the postings of a term merged by docId
+    private interface PostingConsumer {
+        void accept(int docId, int frequency) throws IOException;
     }
 
     // function that writes to disk the partial data structures
     @Override
-    protected void writeBlockToDisk(){
+    protected void writeBlockToDisk(SpimiBlock block, int blockNumber){
 
         // partial file paths
-        String postingsDocIdsFile = Constants.PARTIAL_POSTINGS_DOC_IDS_FILE_PATH + currentBlock + FILE_EXTENSION;
-        String postingsFrequenciesFile = Constants.PARTIAL_POSTINGS_FREQUENCIES_FILE_PATH + currentBlock + FILE_EXTENSION;
-        String lexiconFile = Constants.PARTIAL_LEXICON_FILE_PATH + currentBlock + FILE_EXTENSION;
-        String documentTableFile = Constants.PARTIAL_DOCUMENT_TABLE_FILE_PATH + currentBlock + FILE_EXTENSION;
+        String postingsDocIdsFile = buildFiles.partialPostingsDocIds() + blockNumber + FILE_EXTENSION;
+        String postingsFrequenciesFile = buildFiles.partialPostingsFrequencies() + blockNumber + FILE_EXTENSION;
+        String lexiconFile = buildFiles.partialLexicon() + blockNumber + FILE_EXTENSION;
+        String documentTableFile = buildFiles.partialDocumentTable() + blockNumber + FILE_EXTENSION;
 
         // offsets used for saving the start of a posting list for each term
         int docIDsFileOffset = 0;
@@ -41,18 +86,22 @@ public class BinaryIndexer extends Indexer<LexiconTermBinaryIndexing> {
              OutputStream lexiconStream = new BufferedOutputStream(new FileOutputStream(lexiconFile));
              OutputStream documentTableStream = new BufferedOutputStream(new FileOutputStream(documentTableFile))
         ) {
-            // looping over the lexicon
-            for (Map.Entry<String, LexiconTermBinaryIndexing> entry : lexicon.entrySet()) {
-                LexiconTermBinaryIndexing lexiconTerm = entry.getValue();
+            // used for serializing the lexicon entries
+            LexiconTermBinaryIndexing lexiconTerm = new LexiconTermBinaryIndexing();
+            PostingsAccumulator postings = block.postings;
+
+            // looping over the lexicon, the terms are sorted only now
+            for (int termId : postings.sortedTermIds()) {
+                int documentFrequency = postings.getDocumentFrequency(termId);
+                int[] termPostings = postings.getPostings(termId);
+                lexiconTerm.setTerm(postings.getTerm(termId));
+                lexiconTerm.setDocumentFrequency(documentFrequency);
                 //saving the offsets of the posting list relative to the term
                 lexiconTerm.setDocIdsOffset(docIDsFileOffset);
                 lexiconTerm.setFrequenciesOffset(frequenciesFileOffset);
 
                 // docIDs posting list
-                List<Integer> docIDs = lexiconTerm.getPostingListDocIds();
-                // encoding the docIds with VariableByte encoding
-                //byte[] encodedDocIDs = EncodingUtils.encode(docIDs);
-                byte[] encodedDocIDs = EncodingUtils.intListToByteArray(docIDs);
+                byte[] encodedDocIDs = EncodingUtils.intPairsToByteArray(termPostings, 0, documentFrequency);
                 // moving the offset for the next posting list
                 docIDsFileOffset += encodedDocIDs.length;
                 // setting the size of the term's docIds posting list in bytes
@@ -60,10 +109,7 @@ public class BinaryIndexer extends Indexer<LexiconTermBinaryIndexing> {
                 postingsDocIdsStream.write(encodedDocIDs);
 
                 // frequencies posting list
-                List<Integer> frequencies = lexiconTerm.getPostingListFrequencies();
-                // encoding the frequencies with VariableByte encoding
-                //byte[] encodedFrequencies = EncodingUtils.encode(frequencies);
-                byte[] encodedFrequencies = EncodingUtils.intListToByteArray(frequencies);
+                byte[] encodedFrequencies = EncodingUtils.intPairsToByteArray(termPostings, 1, documentFrequency);
                 // moving the offset for the next posting list
                 frequenciesFileOffset += encodedFrequencies.length;
                 // setting the size of the term's frequencies posting list in bytes
@@ -76,7 +122,7 @@ public class BinaryIndexer extends Indexer<LexiconTermBinaryIndexing> {
             }
 
             // serializing and writing to file the doc table
-            for (Map.Entry<Integer, Document> doc : documentTable.entrySet()) {
+            for (Map.Entry<Integer, Document> doc : block.documentTable.entrySet()) {
                 byte[] documentTableEntry = doc.getValue().serializeBinary();
                 documentTableStream.write(documentTableEntry);
             }
@@ -84,141 +130,412 @@ public class BinaryIndexer extends Indexer<LexiconTermBinaryIndexing> {
             throw new RuntimeException(e);
         }
         long end = System.currentTimeMillis();
-        System.out.println("Copied in " + (end - start) + " ms");
+        System.out.println("Block " + blockNumber + " copied in " + (end - start) + " ms");
+    }
+
+    @Override
+    protected void mergePartialDocumentTables() throws IOException {
+        long start = IndexingProfiler.start();
+        mergeDocumentTables(0, numberOfBlocks.get(), outputFiles.documentTable());
+        IndexingProfiler.stop(Phase.DOCUMENT_TABLE_MERGE, start);
+    }
+
+    // merges the doc tables of the blocks in [firstBlock, lastBlockExcluded) by docId
+    private void mergeDocumentTables(int firstBlock, int lastBlockExcluded, String outputFile) throws IOException {
+
+        int numberOfBlocks = lastBlockExcluded - firstBlock;
+
+        // one entry for each block and the corresponding docId
+        byte[][] nextEntry = new byte[numberOfBlocks][Constants.DOCUMENT_ENTRY_SIZE];
+        int[] nextDocId = new int[numberOfBlocks];
+        // blocks ordered by the docId of their next entry
+        PriorityQueue<Integer> activeBlocks = new PriorityQueue<>(Comparator.comparingInt(blockIndex -> nextDocId[blockIndex]));
+
+        ArrayList<InputStream> documentTableStreams = new ArrayList<>();
+        try (OutputStream documentTableStream = new BufferedOutputStream(new FileOutputStream(outputFile), Constants.MERGE_BUFFER_SIZE)) {
+            // opening the partial files
+            for (int i = 0; i < numberOfBlocks; i++) {
+                documentTableStreams.add(new BufferedInputStream(new FileInputStream(buildFiles.partialDocumentTable() + (firstBlock + i) + FILE_EXTENSION), Constants.MERGE_BUFFER_SIZE));
+                if (readDocumentTableEntry(documentTableStreams.get(i), nextEntry[i])) {
+                    nextDocId[i] = EncodingUtils.byteArrayToInt(nextEntry[i], Constants.DOCUMENT_ENTRY_SIZE - 8);
+                    activeBlocks.add(i);
+                }
+            }
+
+            while (!activeBlocks.isEmpty()) {
+                int blockIndex = activeBlocks.poll();
+                // the block contains runs of consecutive docIds, we copy until the next docId of another block
+                int limit = activeBlocks.isEmpty() ? Integer.MAX_VALUE : nextDocId[activeBlocks.peek()];
+                boolean blockHasNext;
+                do {
+                    documentTableStream.write(nextEntry[blockIndex]);
+                    blockHasNext = readDocumentTableEntry(documentTableStreams.get(blockIndex), nextEntry[blockIndex]);
+                    if (blockHasNext) {
+                        nextDocId[blockIndex] = EncodingUtils.byteArrayToInt(nextEntry[blockIndex], Constants.DOCUMENT_ENTRY_SIZE - 8);
+                    }
+                } while (blockHasNext && nextDocId[blockIndex] < limit);
+                if (blockHasNext) activeBlocks.add(blockIndex);
+            }
+        } finally {
+            for (InputStream documentTableInputStream : documentTableStreams) {
+                documentTableInputStream.close();
+            }
+        }
+    }
+
+    private boolean readDocumentTableEntry(InputStream documentTableStream, byte[] entry) throws IOException {
+        return documentTableStream.readNBytes(entry, 0, Constants.DOCUMENT_ENTRY_SIZE) == Constants.DOCUMENT_ENTRY_SIZE;
     }
 
     // function that merges the partial data structures and writes the merged files to disk
+    // the term space is split in lexicographic ranges, each one merged by its own thread into its own files
     @Override
     public void mergeBlocks(){
 
-        // merging the doc table
+        ExecutorService mergers = Executors.newFixedThreadPool(numberOfMergeThreads);
         try {
+            // bounding the number of blocks opened at the same time
+            reduceBlocks(mergers);
+
+            // merging the doc table
             mergePartialDocumentTables();
+
+            // BM25 length normalizations of the documents, used for computing the term upper bounds
+            long start = IndexingProfiler.start();
+            double[] lengthNormalizations = loadLengthNormalizations(outputFiles.documentTable(), collectionStatistics);
+            IndexingProfiler.stop(Phase.LENGTH_NORMALIZATIONS, start);
+
+            // more ranges than threads, so that a thread that finishes early can take another range
+            List<String> rangeBounds = sampleRangeBounds(numberOfMergeThreads * Constants.MERGE_RANGES_PER_THREAD);
+            int numberOfRanges = rangeBounds.size() + 1;
+            System.out.println("Merging " + numberOfBlocks.get() + " blocks in " + numberOfRanges + " ranges with " + numberOfMergeThreads + " threads..");
+
+            List<Future<?>> mergeResults = new ArrayList<>();
+            for (int i = 0; i < numberOfRanges; i++) {
+                int range = i;
+                // null means that the range is not bounded
+                String firstTerm = (i == 0) ? null : rangeBounds.get(i - 1);
+                String lastTermExcluded = (i == numberOfRanges - 1) ? null : rangeBounds.get(i);
+                mergeResults.add(mergers.submit(() -> {
+                    mergeRange(range, firstTerm, lastTermExcluded, lengthNormalizations);
+                    return null;
+                }));
+            }
+            for (Future<?> mergeResult : mergeResults) {
+                mergeResult.get();
+            }
+
+            start = IndexingProfiler.start();
+            concatenateRanges(numberOfRanges);
+            IndexingProfiler.stop(Phase.CONCATENATION, start);
+
+            // writing collection statistics to file, with the codec needed for reading the posting lists
+            collectionStatistics.setPostingsCodec(postingsCodec);
+            try (FileOutputStream fosCollectionStatistics = new FileOutputStream(outputFiles.collectionStatistics())){
+                fosCollectionStatistics.write(collectionStatistics.serializeBinary());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            // the deletions refer to the docIds of the previous index
+            Files.deleteIfExists(Paths.get(outputFiles.deletedDocuments()));
+
         } catch (IOException ioe){
             ioe.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            mergers.shutdownNow();
+            closeBuildManifest();
         }
+    }
 
-        // file paths
-        String postingsDocIdsFile = Constants.POSTINGS_DOC_IDS_FILE_PATH + FILE_EXTENSION;
-        String postingsFrequenciesFile = Constants.POSTINGS_FREQUENCIES_FILE_PATH + FILE_EXTENSION;
-        String lexiconFile = Constants.LEXICON_FILE_PATH + FILE_EXTENSION;
+    // reads a merged doc table once, the docId of a document is the index of its entry
+    static double[] loadLengthNormalizations(String documentTableFile, CollectionStatistics collectionStatistics) throws IOException {
+        double[] lengthNormalizations = new double[collectionStatistics.getNumDocs()];
+        byte[] documentEntry = new byte[Constants.DOCUMENT_ENTRY_SIZE];
+        try (InputStream documentTableStream = new BufferedInputStream(new FileInputStream(documentTableFile))) {
+            for (int docId = 0; docId < lengthNormalizations.length; docId++) {
+                if (documentTableStream.readNBytes(documentEntry, 0, Constants.DOCUMENT_ENTRY_SIZE) < Constants.DOCUMENT_ENTRY_SIZE) throw new EOFException();
+                int documentLength = EncodingUtils.byteArrayToInt(documentEntry, Constants.DOCUMENT_ENTRY_SIZE - 4);
+                lengthNormalizations[docId] = ScoringFunctions.BM25LengthNormalization(documentLength, collectionStatistics);
+            }
+        }
+        return lengthNormalizations;
+    }
 
-        try {
-            FileOutputStream outputDocIdsStream = new FileOutputStream(postingsDocIdsFile);
-            FileOutputStream outputFrequenciesStream = new FileOutputStream(postingsFrequenciesFile);
-            OutputStream outputLexiconStream = new BufferedOutputStream(new FileOutputStream(lexiconFile));
-
-            // loading the document table for term upper bound computation
-            FileChannel docTableChannel = FileChannel.open(Paths.get(Constants.DOCUMENT_TABLE_FILE_PATH + Constants.DAT_FORMAT));
-            MappedByteBuffer docTableBuffer = docTableChannel.map(FileChannel.MapMode.READ_ONLY, 0, docTableChannel.size()).load();
-
-            // number of partial files to read from
-            int numberOfBlocks = currentBlock + 1;
-            int nextBlock = 0;
-
-            // opening all the partial files
-            ArrayList<InputStream> lexiconStreams = new ArrayList<>();
-            ArrayList<InputStream> postingsDocIdsStreams = new ArrayList<>();
-            ArrayList<InputStream> postingsFrequenciesStreams = new ArrayList<>();
-            while(nextBlock < numberOfBlocks){
-                lexiconStreams.add(new BufferedInputStream(new FileInputStream(Constants.PARTIAL_LEXICON_FILE_PATH + nextBlock + FILE_EXTENSION)));
-                postingsDocIdsStreams.add(new BufferedInputStream(new FileInputStream(Constants.PARTIAL_POSTINGS_DOC_IDS_FILE_PATH + nextBlock + FILE_EXTENSION)));
-                postingsFrequenciesStreams.add(new BufferedInputStream(new FileInputStream(Constants.PARTIAL_POSTINGS_FREQUENCIES_FILE_PATH + nextBlock + FILE_EXTENSION)));
-                nextBlock++;
-            }
-
-            // 2D array containing one serialized term for each block
-            byte[][] nextLexiconEntry = new byte[numberOfBlocks][Constants.LEXICON_ENTRY_SIZE];
-            // array of deserialized lexicon terms
-            LexiconTermBinaryIndexing[] nextTerm = new LexiconTermBinaryIndexing[numberOfBlocks];
-            // used to keep track of how many bytes were read the last time by each block
-            int[] bytesRead = new int[numberOfBlocks];
-            // used to keep track of unfinished blocks
-            ArrayList<Integer> activeBlocks = new ArrayList<>();
-
-            // deserializing the first entry for each block
-            for(int i=0; i < numberOfBlocks; i++){
-                activeBlocks.add(i);
-                //read from file
-                bytesRead[i] = lexiconStreams.get(i).readNBytes(nextLexiconEntry[i], 0,Constants.LEXICON_ENTRY_SIZE);
-                nextTerm[i] = new LexiconTermBinaryIndexing();
-                nextTerm[i].deserialize(nextLexiconEntry[i]);
-            }
-
-            while(activeBlocks.size() > 0){
-
-                // getting the indexes of the blocks containing the minimum term in lexicographical order
-                List<Integer> blocksToMerge = getBlocksToMerge(activeBlocks, nextTerm);
+    // samples the partial lexicons and returns the terms splitting the term space in ranges with about the same number of terms
+    private List<String> sampleRangeBounds(int numberOfRanges) throws IOException {
+        if (numberOfRanges <= 1) return List.of();
+
+        ArrayList<String> samples = new ArrayList<>();
+        LexiconTermBinaryIndexing lexiconTerm = new LexiconTermBinaryIndexing();
+        byte[] lexiconEntry = new byte[Constants.LEXICON_ENTRY_SIZE];
+        for (int i = 0; i < numberOfBlocks.get(); i++) {
+            try (FileChannel lexiconChannel = FileChannel.open(Paths.get(buildFiles.partialLexicon() + i + FILE_EXTENSION))) {
+                long numberOfTerms = lexiconChannel.size() / Constants.LEXICON_ENTRY_SIZE;
+                long stride = Math.max(1, numberOfTerms / ((long) numberOfRanges * Constants.MERGE_SAMPLES_PER_RANGE));
+                for (long entry = 0; entry < numberOfTerms; entry += stride) {
+                    BinaryBlockCursor.readLexiconEntry(lexiconChannel, entry, lexiconEntry);
+                    samples.add(lexiconTerm.deserializeTerm(lexiconEntry));
+                }
+            }
+        }
+        Collections.sort(samples);
 
-                // creating a new lexiconTerm object for the min term
-                LexiconTermBinaryIndexing referenceLexiconTerm = new LexiconTermBinaryIndexing(nextTerm[blocksToMerge.get(0)].getTerm());
+        // quantiles of the samples, without duplicates
+        TreeSet<String> rangeBounds = new TreeSet<>();
+        for (int i = 1; i < numberOfRanges; i++) {
+            rangeBounds.add(samples.get((int) ((long) i * samples.size() / numberOfRanges)));
+        }
+        // the first range starts from the smallest term anyway
+        rangeBounds.remove(samples.get(0));
+        return new ArrayList<>(rangeBounds);
+    }
+
+    // merges the terms in [firstTerm, lastTermExcluded) of all the blocks into the files of the range
+    private void mergeRange(int range, String firstTerm, String lastTermExcluded, double[] lengthNormalizations) throws IOException {
+
+        // number of partial files to read from
+        int numberOfBlocks = this.numberOfBlocks.get();
+        long start = IndexingProfiler.start();
+
+        ArrayList<BinaryBlockCursor> cursors = new ArrayList<>(numberOfBlocks);
+        // heap of the cursors that aren't finished yet
+        BlockMergeQueue<BinaryBlockCursor> mergeQueue = new BlockMergeQueue<>(numberOfBlocks);
+        // cursors positioned on the term being merged
+        ArrayList<BinaryBlockCursor> blocksToMerge = new ArrayList<>(numberOfBlocks);
+        // cursors of the term being merged ordered by their current docId
+        PriorityQueue<BinaryBlockCursor> postingsQueue = new PriorityQueue<>(Math.max(1, numberOfBlocks), Comparator.comparingInt(BinaryBlockCursor::getDocId));
+
+        try (InvertedIndexWriter invertedIndexWriter = new InvertedIndexWriter(
+                buildFiles.rangePostingsDocIds() + range + FILE_EXTENSION,
+                buildFiles.rangePostingsFrequencies() + range + FILE_EXTENSION,
+                buildFiles.rangeLexicon() + range + FILE_EXTENSION, postingsCodec)) {
+
+            // opening all the partial files at the first term of the range
+            for (int i = 0; i < numberOfBlocks; i++) {
+                BinaryBlockCursor cursor = new BinaryBlockCursor(buildFiles, i, FILE_EXTENSION, firstTerm, lastTermExcluded);
+                cursors.add(cursor);
+                mergeQueue.add(cursor);
+            }
 
-                // merging the encoded posting lists
-                for (Integer blockIndex: blocksToMerge){
+            while(!mergeQueue.isEmpty()){
 
-                    //get partial information about the term stored in the current block
-                    LexiconTermBinaryIndexing nextBlockToMerge = nextTerm[blockIndex];
+                // getting the blocks containing the minimum term in lexicographical order
+                mergeQueue.pollMinTerm(blocksToMerge);
 
+                // creating a new lexiconTerm object for the min term
+                LexiconTermBinaryIndexing referenceLexiconTerm = new LexiconTermBinaryIndexing(blocksToMerge.get(0).getTerm().getTerm());
+                for (BinaryBlockCursor cursor: blocksToMerge){
                     //merge document frequencies
-                    referenceLexiconTerm.setDocumentFrequency(referenceLexiconTerm.getDocumentFrequency() + nextBlockToMerge.getDocumentFrequency());
-
-                    // reading and merging the corresponding posting lists from disk
-                    byte[] postingDocIDs = postingsDocIdsStreams.get(blockIndex).readNBytes(nextBlockToMerge.getDocIdsSize());
-                    byte[] postingFrequencies = postingsFrequenciesStreams.get(blockIndex).readNBytes(nextBlockToMerge.getFrequenciesSize());
-                    referenceLexiconTerm.getPostingListDocIds().addAll(EncodingUtils.byteArrayToIntList(postingDocIDs));
-                    referenceLexiconTerm.getPostingListFrequencies().addAll(EncodingUtils.byteArrayToIntList(postingFrequencies));
-
-                    // reading  and deserializing the next term entry from file
-                    bytesRead[blockIndex] = lexiconStreams.get(blockIndex).readNBytes(nextLexiconEntry[blockIndex], 0, Constants.LEXICON_ENTRY_SIZE);
-                    nextTerm[blockIndex].deserialize(nextLexiconEntry[blockIndex]);
-
-                    // if the lexicon file is finished, we remove the block from the active ones because the block contains no more terms
-                    if(bytesRead[blockIndex] < Constants.LEXICON_ENTRY_SIZE){
-                        activeBlocks.remove(blockIndex);
-                        // closing the corresponding fileInputStreams
-                        lexiconStreams.get(blockIndex).close();
-                        postingsDocIdsStreams.get(blockIndex).close();
-                        postingsFrequenciesStreams.get(blockIndex).close();
-                    }
+                    referenceLexiconTerm.setDocumentFrequency(referenceLexiconTerm.getDocumentFrequency() + cursor.getTerm().getDocumentFrequency());
                 }
 
-                // computing term upper bound and collection frequency
-                referenceLexiconTerm.computeStatistics(docTableBuffer, collectionStatistics);
-
-                // gaps implementation
-                int previousDocId = -1;
-                int currentDocIdGap;
-                //ArrayList<Integer> postingListDocIds = EncodingUtils.decode(referenceLexiconTerm.getEncodedDocIDs());
-                ArrayList<Integer> postingListDocIds = referenceLexiconTerm.getPostingListDocIds();
-                ArrayList<Integer> postingListDocIdGaps = new ArrayList<>(postingListDocIds.size());
-                for(int currentDocId : postingListDocIds){
-                    currentDocIdGap = currentDocId;
-                    if(previousDocId != -1)  // not the head of the list
-                        currentDocIdGap -= previousDocId;
-                    previousDocId = currentDocId;
-                    postingListDocIdGaps.add(currentDocIdGap);
+                // the merged posting list is encoded while the partial ones are merged by docId, so it is never materialized
+                referenceLexiconTerm.startPostingList(invertedIndexWriter, collectionStatistics);
+                mergePostings(blocksToMerge, postingsQueue, (docId, frequency) ->
+                        referenceLexiconTerm.addPosting(docId, frequency, lengthNormalizations[docId], invertedIndexWriter));
+                // writing the skip pointers and the term to the lexicon
+                referenceLexiconTerm.endPostingList(invertedIndexWriter);
+                IndexingProfiler.count(Counter.TERMS, 1);
+                IndexingProfiler.count(Counter.POSTINGS, referenceLexiconTerm.getDocumentFrequency());
+
+                // moving the cursors to their next term, the finished blocks leave the heap
+                mergeQueue.advance(blocksToMerge);
+            }
+        } finally {
+            // closing the partial files
+            for (BinaryBlockCursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+        IndexingProfiler.stop(Phase.POSTINGS_MERGE, start);
+    }
+
+    // merges the partial posting lists of the term the cursors are positioned on by docId
+    private void mergePostings(List<BinaryBlockCursor> blocksToMerge, PriorityQueue<BinaryBlockCursor> postingsQueue, PostingConsumer postingConsumer) throws IOException {
+        for (BinaryBlockCursor cursor: blocksToMerge){
+            if (cursor.nextPosting()) {
+                postingsQueue.add(cursor);
+            }
+        }
+        while (!postingsQueue.isEmpty()) {
+            BinaryBlockCursor cursor = postingsQueue.poll();
+            // a partial list contains runs of consecutive documents, we copy until the next docId of another list
+            int limit = postingsQueue.isEmpty() ? Integer.MAX_VALUE : postingsQueue.peek().getDocId();
+            boolean hasNextPosting;
+            do {
+                postingConsumer.accept(cursor.getDocId(), cursor.getFrequency());
+                long start = IndexingProfiler.startDetailed();
+                hasNextPosting = cursor.nextPosting();
+                IndexingProfiler.stopDetailed(Phase.MERGE_DECODING, start);
+            } while (hasNextPosting && cursor.getDocId() < limit);
+            if (hasNextPosting) {
+                postingsQueue.add(cursor);
+            }
+        }
+    }
+
+    // merges groups of at most blocksPerMerge blocks into intermediate runs, until each range merge can open all of them at once
+    // the runs have the same format of the partial blocks and they take their place, so each pass reduces the blocks by blocksPerMerge times
+    private void reduceBlocks(ExecutorService mergers) throws IOException, InterruptedException, ExecutionException {
+        // an interrupted build could have written the runs without replacing all the blocks
+        if (buildManifest.getPendingRuns() >= 0) {
+            replaceBlocksWithRuns(numberOfBlocks.get(), buildManifest.getPendingRuns());
+        }
+        while (numberOfBlocks.get() > blocksPerMerge) {
+            int numberOfBlocks = this.numberOfBlocks.get();
+            int numberOfRuns = (numberOfBlocks + blocksPerMerge - 1) / blocksPerMerge;
+            System.out.println("Merging " + numberOfBlocks + " blocks into " + numberOfRuns + " intermediate runs..");
+
+            List<Future<?>> runResults = new ArrayList<>();
+            for (int i = 0; i < numberOfRuns; i++) {
+                int run = i;
+                int firstBlock = i * blocksPerMerge;
+                int lastBlockExcluded = Math.min(numberOfBlocks, firstBlock + blocksPerMerge);
+                runResults.add(mergers.submit(() -> {
+                    mergeRun(run, firstBlock, lastBlockExcluded);
+                    return null;
+                }));
+            }
+            for (Future<?> runResult : runResults) {
+                runResult.get();
+            }
+            IndexingProfiler.count(Counter.RUNS, numberOfRuns);
+            buildManifest.runsWritten(numberOfRuns);
+            replaceBlocksWithRuns(numberOfBlocks, numberOfRuns);
+        }
+    }
+
+    // each run takes the place of the block with its number, the other blocks are deleted
+    // it can be repeated if it was interrupted, since the runs already moved don't exist anymore
+    private void replaceBlocksWithRuns(int numberOfBlocks, int numberOfRuns) throws IOException {
+        String[] runFiles = buildFiles.runFiles();
+        String[] partialFiles = buildFiles.partialFiles();
+        for (int run = 0; run < numberOfRuns; run++) {
+            for (int i = 0; i < runFiles.length; i++) {
+                Path runFile = Paths.get(runFiles[i] + run + FILE_EXTENSION);
+                if (Files.exists(runFile)) {
+                    Files.move(runFile, Paths.get(partialFiles[i] + run + FILE_EXTENSION), StandardCopyOption.REPLACE_EXISTING);
                 }
+            }
+        }
+        for (int block = numberOfRuns; block < numberOfBlocks; block++) {
+            for (String partialFile : partialFiles) {
+                Files.deleteIfExists(Paths.get(partialFile + block + FILE_EXTENSION));
+            }
+        }
+        this.numberOfBlocks.set(numberOfRuns);
+        buildManifest.blocksReplaced(numberOfRuns);
+    }
+
+    // merges the blocks in [firstBlock, lastBlockExcluded) into an intermediate run, in the format of the partial blocks
+    private void mergeRun(int run, int firstBlock, int lastBlockExcluded) throws IOException {
+        long start = IndexingProfiler.start();
+
+        mergeDocumentTables(firstBlock, lastBlockExcluded, buildFiles.runDocumentTable() + run + FILE_EXTENSION);
 
-                referenceLexiconTerm.setPostingListDocIds(postingListDocIdGaps);
+        int numberOfBlocks = lastBlockExcluded - firstBlock;
+        ArrayList<BinaryBlockCursor> cursors = new ArrayList<>(numberOfBlocks);
+        BlockMergeQueue<BinaryBlockCursor> mergeQueue = new BlockMergeQueue<>(numberOfBlocks);
+        ArrayList<BinaryBlockCursor> blocksToMerge = new ArrayList<>(numberOfBlocks);
+        PriorityQueue<BinaryBlockCursor> postingsQueue = new PriorityQueue<>(numberOfBlocks, Comparator.comparingInt(BinaryBlockCursor::getDocId));
 
-                // writing the term to the lexicon and the merged posting lists to the inverted index
-                // old doc ids used only for defining the key of the skip pointer
-                referenceLexiconTerm.writeToDisk(outputDocIdsStream, outputFrequenciesStream, outputLexiconStream, postingListDocIds);
+        try (DataOutputStream postingsDocIdsStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(buildFiles.runPostingsDocIds() + run + FILE_EXTENSION), Constants.MERGE_BUFFER_SIZE));
+             DataOutputStream postingsFrequenciesStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(buildFiles.runPostingsFrequencies() + run + FILE_EXTENSION), Constants.MERGE_BUFFER_SIZE));
+             OutputStream lexiconStream = new BufferedOutputStream(new FileOutputStream(buildFiles.runLexicon() + run + FILE_EXTENSION), Constants.MERGE_BUFFER_SIZE)) {
+
+            for (int i = firstBlock; i < lastBlockExcluded; i++) {
+                BinaryBlockCursor cursor = new BinaryBlockCursor(buildFiles, i, FILE_EXTENSION, null, null);
+                cursors.add(cursor);
+                mergeQueue.add(cursor);
             }
 
-            outputDocIdsStream.close();
-            outputFrequenciesStream.close();
-            outputLexiconStream.close();
+            // offsets used for saving the start of a posting list for each term
+            long docIdsFileOffset = 0;
+            long frequenciesFileOffset = 0;
+            LexiconTermBinaryIndexing lexiconTerm = new LexiconTermBinaryIndexing();
+            while (!mergeQueue.isEmpty()) {
+                mergeQueue.pollMinTerm(blocksToMerge);
 
-            // writing collection statistics to file
-            try (FileOutputStream fosCollectionStatistics = new FileOutputStream(Constants.COLLECTION_STATISTICS_FILE_PATH + Constants.DAT_FORMAT)){
-                fosCollectionStatistics.write(collectionStatistics.serializeBinary());
-            } catch (IOException e) {
-                e.printStackTrace();
+                int documentFrequency = 0;
+                for (BinaryBlockCursor cursor : blocksToMerge) {
+                    documentFrequency += cursor.getTerm().getDocumentFrequency();
+                }
+                lexiconTerm.setTerm(blocksToMerge.get(0).getTerm().getTerm());
+                lexiconTerm.setDocumentFrequency(documentFrequency);
+                lexiconTerm.setDocIdsOffset(docIdsFileOffset);
+                lexiconTerm.setFrequenciesOffset(frequenciesFileOffset);
+                lexiconTerm.setDocIdsSize(4 * documentFrequency);
+                lexiconTerm.setFrequenciesSize(4 * documentFrequency);
+
+                // the postings are copied as raw integers, like in the partial blocks
+                mergePostings(blocksToMerge, postingsQueue, (docId, frequency) -> {
+                    postingsDocIdsStream.writeInt(docId);
+                    postingsFrequenciesStream.writeInt(frequency);
+                });
+                docIdsFileOffset += 4L * documentFrequency;
+                frequenciesFileOffset += 4L * documentFrequency;
+                lexiconStream.write(lexiconTerm.serialize());
+
+                mergeQueue.advance(blocksToMerge);
             }
+        } finally {
+            for (BinaryBlockCursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+        IndexingProfiler.stop(Phase.RUN_MERGE, start);
+    }
 
-        } catch (IOException ioe){
-            ioe.printStackTrace();
+    // concatenates the files of the ranges, the offsets of the lexicon entries are shifted by the size of the previous ranges
+    private void concatenateRanges(int numberOfRanges) throws IOException {
+        long docIdsBase = 0;
+        long frequenciesBase = 0;
+        try (FileChannel docIdsChannel = FileChannel.open(Paths.get(outputFiles.postingsDocIds()), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             FileChannel frequenciesChannel = FileChannel.open(Paths.get(outputFiles.postingsFrequencies()), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             OutputStream lexiconStream = new BufferedOutputStream(new FileOutputStream(outputFiles.lexicon()))) {
+
+            LexiconTermBinaryIndexing lexiconTerm = new LexiconTermBinaryIndexing();
+            byte[] lexiconEntry = new byte[Constants.LEXICON_ENTRY_SIZE];
+            for (int range = 0; range < numberOfRanges; range++) {
+                Path rangeDocIdsFile = Paths.get(buildFiles.rangePostingsDocIds() + range + FILE_EXTENSION);
+                Path rangeFrequenciesFile = Paths.get(buildFiles.rangePostingsFrequencies() + range + FILE_EXTENSION);
+                Path rangeLexiconFile = Paths.get(buildFiles.rangeLexicon() + range + FILE_EXTENSION);
+
+                // fixing the offsets of the lexicon entries
+                try (InputStream rangeLexiconStream = new BufferedInputStream(Files.newInputStream(rangeLexiconFile))) {
+                    while (rangeLexiconStream.readNBytes(lexiconEntry, 0, Constants.LEXICON_ENTRY_SIZE) == Constants.LEXICON_ENTRY_SIZE) {
+                        lexiconTerm.deserialize(lexiconEntry);
+                        lexiconTerm.setDocIdsOffset(lexiconTerm.getDocIdsOffset() + docIdsBase);
+                        lexiconTerm.setFrequenciesOffset(lexiconTerm.getFrequenciesOffset() + frequenciesBase);
+                        lexiconStream.write(lexiconTerm.serialize());
+                    }
+                }
+
+                docIdsBase += appendFile(rangeDocIdsFile, docIdsChannel);
+                frequenciesBase += appendFile(rangeFrequenciesFile, frequenciesChannel);
+
+                Files.delete(rangeDocIdsFile);
+                Files.delete(rangeFrequenciesFile);
+                Files.delete(rangeLexiconFile);
+            }
+        }
+    }
+
+    // appends the content of the file to the channel, returns the number of bytes appended
+    private long appendFile(Path file, FileChannel targetChannel) throws IOException {
+        try (FileChannel inputChannel = FileChannel.open(file)) {
+            long size = inputChannel.size();
+            long transferred = 0;
+            // transferTo can transfer less bytes than requested
+            while (transferred < size) {
+                transferred += inputChannel.transferTo(transferred, size - transferred, targetChannel);
+            }
+            return size;
         }
     }
 }
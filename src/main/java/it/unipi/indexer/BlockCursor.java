@@ -0,0 +1,26 @@
+package it.unipi.indexer;
+
+import it.unipi.models.LexiconTermIndexing;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+// cursor over the terms of a partial block, the k-way merge keeps the cursors in a heap ordered by their current term
+abstract class BlockCursor<T extends LexiconTermIndexing> implements Closeable {
+
+    // index of the block, ties are broken by block so that partial posting lists are always collected in the same order
+    final int blockIndex;
+    // deserialized lexicon entry the cursor is positioned on
+    protected T term;
+
+    BlockCursor(int blockIndex) {
+        this.blockIndex = blockIndex;
+    }
+
+    T getTerm() {
+        return term;
+    }
+
+    // moves the cursor to the next term of the block, returns false if the block is finished
+    abstract boolean advance() throws IOException;
+}
@@ -0,0 +1,47 @@
+package it.unipi.indexer;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// min-heap of block cursors used by the k-way merge, each term costs O(log B) instead of a scan of the B blocks
+class BlockMergeQueue<C extends BlockCursor<?>> {
+
+    private final PriorityQueue<C> heap;
+
+    BlockMergeQueue(int numberOfBlocks) {
+        heap = new PriorityQueue<>(Math.max(1, numberOfBlocks),
+                Comparator.<C, String>comparing(cursor -> cursor.getTerm().getTerm())
+                        .thenComparingInt(cursor -> cursor.blockIndex));
+    }
+
+    // positions the cursor on its first term, finished blocks are not added
+    void add(C cursor) throws IOException {
+        if (cursor.advance()) {
+            heap.add(cursor);
+        }
+    }
+
+    boolean isEmpty() {
+        return heap.isEmpty();
+    }
+
+    // moves the cursors positioned on the smallest term into the given list, in block order
+    void pollMinTerm(List<C> cursors) {
+        cursors.clear();
+        C first = heap.poll();
+        cursors.add(first);
+        String minTerm = first.getTerm().getTerm();
+        while (!heap.isEmpty() && heap.peek().getTerm().getTerm().equals(minTerm)) {
+            cursors.add(heap.poll());
+        }
+    }
+
+    // advances the cursors returned by pollMinTerm and puts back the ones that are not finished
+    void advance(List<C> cursors) throws IOException {
+        for (C cursor : cursors) {
+            add(cursor);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package it.unipi.indexer;
+
+import it.unipi.utils.BuildFiles;
+import it.unipi.utils.FileSystemUtils;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+// append-only log of the progress of an index build, used for resuming a build that was interrupted
+// each build has its own manifest, next to its partial files in the directory of the index it writes
+// the first line describes the build (collection and settings), then one line for each completed step:
+// block <number> <batches>    a partial block has been written, with the batches (and so the docIds) it contains
+// indexed <blocks> <docs> <tokens>    all the blocks have been written
+// runs <runs>    the intermediate runs of a merge pass have been written
+// blocks <blocks>    the intermediate runs have replaced the blocks
+class BuildManifest implements Closeable {
+
+    private final BuildFiles buildFiles;
+    private final String header;
+    // completed blocks and their batches
+    private final TreeMap<Integer, List<BatchRecord>> completedBlocks = new TreeMap<>();
+    private boolean indexingComplete = false;
+    private int numberOfBlocks = 0;
+    private int numberOfDocuments = 0;
+    private int numberOfTokens = 0;
+    // number of runs written but not yet replacing the blocks, -1 if there are none
+    private int pendingRuns = -1;
+    private BufferedWriter writer;
+
+    private BuildManifest(BuildFiles buildFiles, String header) {
+        this.buildFiles = buildFiles;
+        this.header = header;
+    }
+
+    // loads the manifest of an interrupted build with the same header, otherwise the partial files are removed and a new build starts
+    static BuildManifest open(BuildFiles buildFiles, String header) throws IOException {
+        BuildManifest manifest = new BuildManifest(buildFiles, header);
+        Path manifestPath = Paths.get(buildFiles.manifest());
+        boolean resumed = false;
+        if (Files.exists(manifestPath)) {
+            List<String> lines = Files.readAllLines(manifestPath, StandardCharsets.UTF_8);
+            if (!lines.isEmpty() && lines.get(0).equals(header)) {
+                for (String line : lines.subList(1, lines.size())) {
+                    manifest.apply(line);
+                }
+                resumed = true;
+            }
+        }
+        if (resumed) {
+            System.out.println("Resuming the build: " + manifest.completedBlocks.size() + " blocks already written" + (manifest.indexingComplete ? ", indexing complete.." : ".."));
+        } else {
+            // partial files of a different build, if any
+            FileSystemUtils.deleteTemporaryFolders(buildFiles);
+            FileSystemUtils.setupEnvironment(buildFiles);
+        }
+        manifest.rewrite();
+        return manifest;
+    }
+
+    private void apply(String line) {
+        String[] fields = line.split(" ");
+        try {
+            switch (fields[0]) {
+                case "block" -> {
+                    List<BatchRecord> batches = new ArrayList<>(fields.length - 2);
+                    for (int i = 2; i < fields.length; i++) {
+                        batches.add(BatchRecord.deserialize(fields[i]));
+                    }
+                    completedBlocks.put(Integer.parseInt(fields[1]), batches);
+                }
+                case "indexed" -> {
+                    numberOfBlocks = Integer.parseInt(fields[1]);
+                    numberOfDocuments = Integer.parseInt(fields[2]);
+                    numberOfTokens = Integer.parseInt(fields[3]);
+                    indexingComplete = true;
+                }
+                case "runs" -> pendingRuns = Integer.parseInt(fields[1]);
+                case "blocks" -> {
+                    numberOfBlocks = Integer.parseInt(fields[1]);
+                    pendingRuns = -1;
+                }
+                default -> System.out.println("Skipping the malformed manifest line: " + line);
+            }
+        } catch (RuntimeException e) {
+            // the last line can be truncated if the build was killed while writing it
+            System.out.println("Skipping the malformed manifest line: " + line);
+        }
+    }
+
+    // completed blocks are renamed so that they are numbered from 0, the new blocks will follow them
+    // returns the batches already indexed, by batch number
+    synchronized Map<Long, BatchRecord> renumberCompletedBlocks(String fileExtension) throws IOException {
+        TreeMap<Integer, List<BatchRecord>> renumberedBlocks = new TreeMap<>();
+        Map<Long, BatchRecord> completedBatches = new HashMap<>();
+        int nextBlock = 0;
+        for (Map.Entry<Integer, List<BatchRecord>> block : completedBlocks.entrySet()) {
+            // blocks are visited in increasing order, so the target is either the block itself or a block already moved or not completed
+            if (block.getKey() != nextBlock) {
+                for (String partialFile : buildFiles.partialFiles()) {
+                    Files.move(Paths.get(partialFile + block.getKey() + fileExtension), Paths.get(partialFile + nextBlock + fileExtension), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            renumberedBlocks.put(nextBlock++, block.getValue());
+            for (BatchRecord batch : block.getValue()) {
+                completedBatches.put(batch.batchNumber(), batch);
+            }
+        }
+        completedBlocks.clear();
+        completedBlocks.putAll(renumberedBlocks);
+        numberOfBlocks = completedBlocks.size();
+        rewrite();
+        return completedBatches;
+    }
+
+    // writes again the whole manifest, replacing the old one only when the new one is complete
+    private void rewrite() throws IOException {
+        if (writer != null) writer.close();
+        Path temporaryPath = Paths.get(buildFiles.manifest() + ".tmp");
+        try (BufferedWriter manifestWriter = Files.newBufferedWriter(temporaryPath, StandardCharsets.UTF_8)) {
+            manifestWriter.write(header + "\n");
+            for (Map.Entry<Integer, List<BatchRecord>> block : completedBlocks.entrySet()) {
+                manifestWriter.write(blockLine(block.getKey(), block.getValue()));
+            }
+            if (indexingComplete) manifestWriter.write("indexed " + numberOfBlocks + " " + numberOfDocuments + " " + numberOfTokens + "\n");
+            if (pendingRuns >= 0) manifestWriter.write("runs " + pendingRuns + "\n");
+            else if (indexingComplete) manifestWriter.write("blocks " + numberOfBlocks + "\n");
+        }
+        Files.move(temporaryPath, Paths.get(buildFiles.manifest()), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(buildFiles.manifest(), true), StandardCharsets.UTF_8));
+    }
+
+    private static String blockLine(int blockNumber, List<BatchRecord> batches) {
+        StringBuilder line = new StringBuilder("block ").append(blockNumber);
+        for (BatchRecord batch : batches) {
+            line.append(' ').append(batch.serialize());
+        }
+        return line.append('\n').toString();
+    }
+
+    private void append(String line) throws IOException {
+        writer.write(line);
+        writer.flush();
+    }
+
+    // called once the files of the block have been closed
+    synchronized void blockWritten(int blockNumber, List<BatchRecord> batches) throws IOException {
+        completedBlocks.put(blockNumber, batches);
+        append(blockLine(blockNumber, batches));
+    }
+
+    synchronized void indexingComplete(int numberOfBlocks, int numberOfDocuments, int numberOfTokens) throws IOException {
+        this.indexingComplete = true;
+        this.numberOfBlocks = numberOfBlocks;
+        this.numberOfDocuments = numberOfDocuments;
+        this.numberOfTokens = numberOfTokens;
+        append("indexed " + numberOfBlocks + " " + numberOfDocuments + " " + numberOfTokens + "\n");
+    }
+
+    synchronized void runsWritten(int numberOfRuns) throws IOException {
+        pendingRuns = numberOfRuns;
+        append("runs " + numberOfRuns + "\n");
+    }
+
+    synchronized void blocksReplaced(int numberOfBlocks) throws IOException {
+        this.numberOfBlocks = numberOfBlocks;
+        pendingRuns = -1;
+        append("blocks " + numberOfBlocks + "\n");
+    }
+
+    synchronized boolean isIndexingComplete() {
+        return indexingComplete;
+    }
+
+    synchronized int getNumberOfBlocks() {
+        return numberOfBlocks;
+    }
+
+    synchronized int getNumberOfDocuments() {
+        return numberOfDocuments;
+    }
+
+    synchronized int getNumberOfTokens() {
+        return numberOfTokens;
+    }
+
+    synchronized int getPendingRuns() {
+        return pendingRuns;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,269 @@
+package it.unipi.indexer;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+// collection to be indexed, one document for each line (docNo \t text), split in chunks that can be read in parallel
+// the documents are in the order of the chunks, and of the lines inside each chunk:
+// - an uncompressed .tsv file is memory mapped and split at line boundaries in chunks of at most chunkSize bytes
+// - a .tar or .tar.gz archive is a single chunk (its entries are in a single stream), made of all its files in archive order
+// - a .gz file is a single chunk
+// - a directory contains shards of the previous kinds, in name order
+abstract class CollectionSource {
+
+    // part of the collection read by a single thread
+    interface Chunk {
+        BufferedReader open() throws IOException;
+    }
+
+    static CollectionSource open(String path, long chunkSize) throws IOException {
+        File file = new File(path);
+        if (!file.exists()) {
+            throw new FileNotFoundException("The collection " + path + " does not exist");
+        }
+        if (file.isDirectory()) return new ShardDirectory(file, chunkSize);
+        String name = file.getName();
+        if (name.endsWith(".tar.gz") || name.endsWith(".tgz")) return new TarArchive(file, true);
+        if (name.endsWith(".tar")) return new TarArchive(file, false);
+        if (name.endsWith(".gz")) return new GzipFile(file);
+        return new MappedTsvFile(file, chunkSize);
+    }
+
+    abstract List<Chunk> chunks() throws IOException;
+
+    // identifies the content and the chunking of the collection, an interrupted build is resumed only on the same collection
+    abstract String fingerprint();
+
+    private static String fileFingerprint(File file) {
+        return file.getPath().replace(' ', '_') + " " + file.length() + " " + file.lastModified();
+    }
+
+    // it uses MalformedInputException internally and replace the malformed character as default operation
+    private static BufferedReader reader(InputStream inputStream) {
+        return new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+    }
+
+    static class MappedTsvFile extends CollectionSource {
+        private final File file;
+        private final long chunkSize;
+
+        MappedTsvFile(File file, long chunkSize) {
+            this.file = file;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        List<Chunk> chunks() throws IOException {
+            List<Chunk> chunks = new ArrayList<>();
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                long start = 0;
+                while (start < size) {
+                    long end = (start + chunkSize >= size) ? size : nextLineStart(channel, start + chunkSize);
+                    long chunkStart = start;
+                    chunks.add(() -> {
+                        try (FileChannel chunkChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                            // the mapping stays valid after the channel is closed
+                            return reader(new ByteBufferInputStream(chunkChannel.map(FileChannel.MapMode.READ_ONLY, chunkStart, end - chunkStart)));
+                        }
+                    });
+                    start = end;
+                }
+            }
+            return chunks;
+        }
+
+        // position following the first \n at or after position, or the end of the file
+        private static long nextLineStart(FileChannel channel, long position) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            long size = channel.size();
+            while (position < size) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') return position + i + 1;
+                }
+                position += read;
+            }
+            return size;
+        }
+
+        @Override
+        String fingerprint() {
+            return fileFingerprint(file) + " " + chunkSize;
+        }
+    }
+
+    static class TarArchive extends CollectionSource {
+        private final File file;
+        private final boolean gzipped;
+
+        TarArchive(File file, boolean gzipped) {
+            this.file = file;
+            this.gzipped = gzipped;
+        }
+
+        @Override
+        List<Chunk> chunks() {
+            return List.of(() -> {
+                InputStream archive = new BufferedInputStream(new FileInputStream(file));
+                TarArchiveInputStream tarArchiveInputStream = new TarArchiveInputStream(gzipped ? new GzipCompressorInputStream(archive) : archive);
+                if (!nextFileEntry(tarArchiveInputStream)) {
+                    tarArchiveInputStream.close();
+                    throw new IOException("There was a problem reading the " + file.getName() + " archive");
+                }
+                return reader(new TarEntriesInputStream(tarArchiveInputStream));
+            });
+        }
+
+        private static boolean nextFileEntry(TarArchiveInputStream tarArchiveInputStream) throws IOException {
+            TarArchiveEntry tarArchiveEntry;
+            while ((tarArchiveEntry = tarArchiveInputStream.getNextTarEntry()) != null) {
+                if (tarArchiveEntry.isFile()) return true;
+            }
+            return false;
+        }
+
+        @Override
+        String fingerprint() {
+            return fileFingerprint(file);
+        }
+
+        // content of all the files of the archive, each one followed by a line separator
+        private static class TarEntriesInputStream extends InputStream {
+            private final TarArchiveInputStream tarArchiveInputStream;
+            private boolean separatorPending = false;
+            private boolean finished = false;
+
+            TarEntriesInputStream(TarArchiveInputStream tarArchiveInputStream) {
+                this.tarArchiveInputStream = tarArchiveInputStream;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return (read(single, 0, 1) == -1) ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                if (length == 0) return 0;
+                while (!finished) {
+                    if (separatorPending) {
+                        separatorPending = false;
+                        bytes[offset] = '\n';
+                        return 1;
+                    }
+                    int read = tarArchiveInputStream.read(bytes, offset, length);
+                    if (read != -1) return read;
+                    // a line separator between two entries, at worst it makes an empty line that the indexer skips as malformed
+                    if (nextFileEntry(tarArchiveInputStream)) {
+                        separatorPending = true;
+                    } else {
+                        finished = true;
+                    }
+                }
+                return -1;
+            }
+
+            @Override
+            public void close() throws IOException {
+                tarArchiveInputStream.close();
+            }
+        }
+    }
+
+    static class GzipFile extends CollectionSource {
+        private final File file;
+
+        GzipFile(File file) {
+            this.file = file;
+        }
+
+        @Override
+        List<Chunk> chunks() {
+            return List.of(() -> reader(new GzipCompressorInputStream(new BufferedInputStream(new FileInputStream(file)), true)));
+        }
+
+        @Override
+        String fingerprint() {
+            return fileFingerprint(file);
+        }
+    }
+
+    static class ShardDirectory extends CollectionSource {
+        private final List<CollectionSource> shards = new ArrayList<>();
+        private final File directory;
+
+        ShardDirectory(File directory, long chunkSize) throws IOException {
+            this.directory = directory;
+            try (Stream<Path> files = Files.list(directory.toPath())) {
+                for (Path shard : files.filter(Files::isRegularFile).filter(file -> !file.getFileName().toString().startsWith(".")).sorted().toList()) {
+                    shards.add(CollectionSource.open(shard.toString(), chunkSize));
+                }
+            }
+            if (shards.isEmpty()) {
+                throw new IOException("The collection directory " + directory + " is empty");
+            }
+        }
+
+        @Override
+        List<Chunk> chunks() throws IOException {
+            List<Chunk> chunks = new ArrayList<>();
+            for (CollectionSource shard : shards) {
+                chunks.addAll(shard.chunks());
+            }
+            return chunks;
+        }
+
+        @Override
+        String fingerprint() {
+            StringBuilder fingerprint = new StringBuilder(directory.getPath().replace(' ', '_'));
+            for (CollectionSource shard : shards) {
+                fingerprint.append(" ").append(shard.fingerprint());
+            }
+            return fingerprint.toString();
+        }
+    }
+
+    // reads a memory mapped chunk
+    private static class ByteBufferInputStream extends InputStream {
+        private final MappedByteBuffer buffer;
+
+        ByteBufferInputStream(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            length = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, length);
+            return length;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package it.unipi.indexer;
+
+import java.util.List;
+
+// immutable class used to hand over a group of collection lines from the reader to the indexing workers
+// the batch number reflects the reading order and it is used to assign docIds deterministically
+record DocumentBatch(long batchNumber, List<String> lines) {
+
+    // marker telling a worker that the collection is finished
+    static final DocumentBatch END_OF_COLLECTION = new DocumentBatch(-1, List.of());
+
+}
@@ -1,225 +1,388 @@
 package it.unipi.indexer;
 
+import com.google.common.cache.CacheStats;
 import it.unipi.models.CollectionStatistics;
 import it.unipi.models.Document;
 import it.unipi.models.LexiconTermIndexing;
+import it.unipi.utils.BuildFiles;
 import it.unipi.utils.Constants;
-import it.unipi.utils.FileSystemUtils;
+import it.unipi.utils.IndexingProfiler;
+import it.unipi.utils.IndexingProfiler.Counter;
+import it.unipi.utils.IndexingProfiler.Phase;
 import it.unipi.utils.TextProcessingUtils;
-import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
-import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
-import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.apache.commons.configuration2.Configuration;
-import org.apache.commons.configuration2.ex.ConfigurationException;
 
 import java.io.*;
-import java.lang.management.ManagementFactory;
-import java.lang.management.MemoryMXBean;
-import java.lang.management.MemoryUsage;
-import java.nio.channels.FileChannel;
-import java.nio.channels.WritableByteChannel;
-import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.function.Supplier;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // class is parametrized due to the fact that indexing can be either Binary or Textual (ASCII)
 abstract public class Indexer <T extends LexiconTermIndexing> {
-    // current doc id
+    // next doc id to be assigned
     protected int currentDocId = 0;
-    // useful for giving different names to partial files
-    protected int currentBlock = 0;
-    // partial lexicon, using a TreeMap in order to have lexicographical order (inserting operation is O(log(N)))
-    protected final TreeMap<String, T> lexicon = new TreeMap<>();
-    // used to call the right constructor based on the type of T
-    private final Supplier<? extends T> lexiconTermConstructor;
-    // doc table, using a LinkedHashMap because we need to maintain the insertion order
-    protected final LinkedHashMap<Integer, Document> documentTable = new LinkedHashMap<>();
+    // number of blocks written to disk, also used for giving different names to partial files
+    protected final AtomicInteger numberOfBlocks = new AtomicInteger(0);
     // collection statistics
     protected final CollectionStatistics collectionStatistics = new CollectionStatistics();
-    // used to check for memory occupancy during indexing
-    protected final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
     // can be .txt or .dat
     protected final String FILE_EXTENSION;
     // number of terms
     private int numTokens = 0;
+    // number of the next batch that can receive its docIds
+    private long nextBatchToNumber = 0;
     private final boolean stemming;
     private final boolean stopwordsRemoval;
-
-    public Indexer(Supplier<? extends T> lexiconTermConstructor, String fileExtension) throws ConfigurationException, IOException {
-        this.lexiconTermConstructor = lexiconTermConstructor;
+    // number of threads tokenizing the documents and building the blocks
+    private final int numberOfWorkers;
+    // estimated bytes that each worker can fill before flushing its block
+    private final long blockMemoryBudget;
+    // maximum number of full blocks waiting to be written, a worker with a full block waits if the limit is reached
+    private final int maxInFlightBlocks;
+    // background thread writing the full blocks to disk while the workers keep parsing
+    private ExecutorService blockWriter;
+    private Semaphore inFlightBlocks;
+    private final List<Future<?>> blockWrites = Collections.synchronizedList(new ArrayList<>());
+    // temporary files of the build, in the directory of the index being written
+    protected final BuildFiles buildFiles;
+    // progress of the build, used for resuming it if it is interrupted
+    protected BuildManifest buildManifest;
+    // batches already contained in the blocks of an interrupted build, by batch number
+    private Map<Long, BatchRecord> completedBatches = Map.of();
+
+    // collection to be indexed, see CollectionSource for the supported formats
+    private final String collectionPath;
+    // threads reading the chunks of the collection
+    private final int numberOfReaders;
+    // maximum size of the chunks of an uncompressed collection
+    private final long collectionChunkSize;
+
+    // collectionPath is null for the collection set by the collectionPath property
+    public Indexer(String fileExtension, String collectionPath, BuildFiles buildFiles, Configuration appProperties) {
         FILE_EXTENSION = fileExtension.toLowerCase();
+        this.buildFiles = buildFiles;
         System.out.println("Using "+ FILE_EXTENSION + " as file extension..");
-        Configuration appProperties = FileSystemUtils.loadAppProperties();
+        this.collectionPath = (collectionPath != null) ? collectionPath : appProperties.getString("collectionPath", Constants.COLLECTION_PATH);
+        numberOfReaders = Math.max(1, appProperties.getInt("readingThreads", Constants.DEFAULT_READING_THREADS));
+        collectionChunkSize = Math.max(1, appProperties.getLong("collectionChunkSize", Constants.DEFAULT_COLLECTION_CHUNK_SIZE)) * 1024 * 1024;
         stemming = appProperties.getBoolean("stemming");
         stopwordsRemoval = appProperties.getBoolean("stopwords");
+        // one core is left to the reader
+        numberOfWorkers = appProperties.getInt("indexingThreads", Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        maxInFlightBlocks = appProperties.getInt("maxInFlightBlocks", Constants.DEFAULT_MAX_IN_FLIGHT_BLOCKS);
+        // memory budget in MB, shared among the blocks being built and the ones being written
+        long memoryBudget = appProperties.getLong("indexingMemoryBudget", Constants.DEFAULT_INDEXING_MEMORY_BUDGET) * 1024 * 1024;
+        blockMemoryBudget = memoryBudget / (numberOfWorkers + maxInFlightBlocks);
+        // the budget is an estimate of the live data, the heap also needs room for the garbage produced while parsing
+        if (memoryBudget > Runtime.getRuntime().maxMemory() / 2) {
+            System.out.println("The indexing memory budget is more than half of the heap, consider lowering it..");
+        }
     }
 
+    // pipeline: the readers decode the chunks of the collection in parallel, the calling thread hands their lines over to the workers in collection order,
+    // the workers tokenize the documents and fill their own SPIMI blocks
     public void indexCollection() throws IOException {
-        File file = new File(Constants.COLLECTION_PATH);
-        // reading the compressed tar.gz file
-        final TarArchiveInputStream tarArchiveInputStream = new TarArchiveInputStream(new GzipCompressorInputStream(new FileInputStream(file)));
-        TarArchiveEntry tarArchiveEntry = tarArchiveInputStream.getNextTarEntry();
-        BufferedReader bufferedReader;
-        if (tarArchiveEntry != null) {
-            // it uses MalformedInputException internally and replace the malformed character as default operation
-            bufferedReader = new BufferedReader(new InputStreamReader(tarArchiveInputStream, StandardCharsets.UTF_8));
-            String line;
-            // reading one line at a time (one line corresponds to one document)
-            while ((line = bufferedReader.readLine()) != null) {
-                // checking if the used memory has reached the threshold
-                checkMemory();
-
-                int separator = line.indexOf("\t");
-
-                // malformed line, no \t
-                if (separator == -1) {
-                    continue;
-                }
-
-                // doc_no and document are separated by \t
-                String docNo = line.substring(0, separator);
-                String document = line.substring(separator + 1);
-
-                // if the document is empty we move on
-                if(document.length() == 0) continue;
+        CollectionSource collection = CollectionSource.open(collectionPath, collectionChunkSize);
+
+        // resuming an interrupted build of the same collection with the same settings
+        buildManifest = BuildManifest.open(buildFiles, String.join(" ", "build", FILE_EXTENSION, collection.fingerprint(), Boolean.toString(stemming), Boolean.toString(stopwordsRemoval),
+                Integer.toString(Constants.INDEXING_BATCH_SIZE)));
+        if (buildManifest.isIndexingComplete()) {
+            numberOfBlocks.set(buildManifest.getNumberOfBlocks());
+            currentDocId = buildManifest.getNumberOfDocuments();
+            numTokens = buildManifest.getNumberOfTokens();
+            collectionStatistics.setNumDocs(currentDocId);
+            collectionStatistics.setAvgDocLen((double) numTokens / currentDocId);
+            return;
+        }
+        completedBatches = buildManifest.renumberCompletedBlocks(FILE_EXTENSION);
+        numberOfBlocks.set(buildManifest.getNumberOfBlocks());
+        synchronized (this) {
+            skipCompletedBatches();
+        }
 
-                int docLen = 0;
+        List<CollectionSource.Chunk> chunks = collection.chunks();
+        int readers = Math.min(numberOfReaders, chunks.size());
+        System.out.println("Indexing with " + readers + " readers and " + numberOfWorkers + " workers..");
+
+        // bounded queue, the reader blocks if the workers are not able to keep up
+        BlockingQueue<DocumentBatch> batches = new ArrayBlockingQueue<>(2 * numberOfWorkers);
+        ExecutorService workers = Executors.newFixedThreadPool(numberOfWorkers);
+        blockWriter = Executors.newSingleThreadExecutor();
+        inFlightBlocks = new Semaphore(maxInFlightBlocks);
+        List<Future<?>> workersResults = new ArrayList<>();
+        for (int i = 0; i < numberOfWorkers; i++) {
+            workersResults.add(workers.submit(() -> {
+                runWorker(batches);
+                return null;
+            }));
+        }
 
-                // Removing punctuation and splitting the document into tokens
-                String[] tokens = TextProcessingUtils.tokenize(document);
+        // the chunks are read in order by the pool, each one into its own bounded queue of line groups,
+        // so at most numberOfReaders chunks are read at the same time and the ones following the chunk being handed over wait when their queue is full
+        ExecutorService chunkReaders = Executors.newFixedThreadPool(readers);
+        List<BlockingQueue<List<String>>> chunksLines = new ArrayList<>();
+        List<Future<?>> chunksReads = new ArrayList<>();
+        for (CollectionSource.Chunk chunk : chunks) {
+            BlockingQueue<List<String>> chunkLines = new ArrayBlockingQueue<>(2 * numberOfWorkers);
+            chunksLines.add(chunkLines);
+            chunksReads.add(chunkReaders.submit(() -> {
+                readChunk(chunk, chunkLines);
+                return null;
+            }));
+        }
 
-                for (String token: tokens) {
-                    // if the token is a stop word move on
-                    if (stopwordsRemoval && TextProcessingUtils.isAStopWord(token))
-                        continue;
-                    docLen++;
-                    // if the token is longer than 20 chars we truncate it
-                    token = TextProcessingUtils.truncateToken(token);
-                    if (stemming) {
-                        // applying the snowball stemmer
-                        token = TextProcessingUtils.stemToken(token);
+        try {
+            long batchNumber = 0;
+            for (int i = 0; i < chunks.size(); i++) {
+                List<String> lines;
+                while ((lines = takeLines(chunksLines.get(i), chunksReads.get(i))) != END_OF_CHUNK) {
+                    // the batches of an interrupted build are read again (a compressed collection can't be sought) but not indexed
+                    if (!completedBatches.containsKey(batchNumber)) {
+                        handOver(batches, new DocumentBatch(batchNumber, lines), workersResults);
                     }
-                    // updating collection statistics
-                    numTokens++;
-                    // if the token is not already in the lexicon we create a new entry
-                    T lexiconEntry;
-                    if ((lexiconEntry = lexicon.get(token)) == null) { // O(1)
-                        lexiconEntry = lexiconTermConstructor.get(); // calls the constructor based on T
-                        lexiconEntry.setTerm(token);
-                        lexicon.put(token, lexiconEntry);
-                    }
-                    // if the docId is already in the posting of the term we increase its frequency, otherwise we add it to the list with frequency 1
-                    lexiconEntry.addToPostingList(currentDocId);
-                }
-
-                // used for checking progress
-                if (currentDocId % 100000 == 0) {
-                    System.out.println("Analyzing document n. " + currentDocId);
+                    batchNumber++;
                 }
+            }
+            // one marker for each worker
+            for (int i = 0; i < numberOfWorkers; i++) {
+                handOver(batches, DocumentBatch.END_OF_COLLECTION, workersResults);
+            }
+            // waiting for the workers to hand over their last block
+            for (Future<?> workerResult : workersResults) {
+                workerResult.get();
+            }
+            // waiting for the blocks to be written
+            for (Future<?> blockWrite : blockWrites) {
+                blockWrite.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            chunkReaders.shutdownNow();
+            workers.shutdownNow();
+            blockWriter.shutdownNow();
+        }
 
-                // if the document contains only stopwords, we move on
-                if (docLen == 0) continue;
+        // final statistics
+        collectionStatistics.setNumDocs(currentDocId);
+        collectionStatistics.setAvgDocLen((double) numTokens / currentDocId);
+        buildManifest.indexingComplete(numberOfBlocks.get(), currentDocId, numTokens);
+        if (stemming) {
+            CacheStats stemmingCacheStats = TextProcessingUtils.getStemmingCacheStats();
+            System.out.printf("Stemming cache hit rate: %.3f (%d hits, %d misses)%n", stemmingCacheStats.hitRate(), stemmingCacheStats.hitCount(), stemmingCacheStats.missCount());
+        }
+    }
 
-                // saving the document in the doc
-                documentTable.put(currentDocId, new Document(currentDocId, docNo, docLen));
+    // marker closing the lines of a chunk
+    private static final List<String> END_OF_CHUNK = List.of();
 
-                currentDocId++;
+    // reads the lines of a chunk in groups of INDEXING_BATCH_SIZE, a batch never spans two chunks
+    private static void readChunk(CollectionSource.Chunk chunk, BlockingQueue<List<String>> chunkLines) throws IOException, InterruptedException {
+        long start = IndexingProfiler.start();
+        try (BufferedReader bufferedReader = chunk.open()) {
+            ArrayList<String> lines = new ArrayList<>(Constants.INDEXING_BATCH_SIZE);
+            String line;
+            long inputBytes = 0;
+            // reading one line at a time (one line corresponds to one document)
+            while ((line = bufferedReader.readLine()) != null) {
+                lines.add(line);
+                inputBytes += line.length() + 1;
+                if (lines.size() == Constants.INDEXING_BATCH_SIZE) {
+                    IndexingProfiler.stop(Phase.READING, start);
+                    IndexingProfiler.count(Counter.INPUT_BYTES, inputBytes);
+                    inputBytes = 0;
+                    chunkLines.put(lines);
+                    lines = new ArrayList<>(Constants.INDEXING_BATCH_SIZE);
+                    start = IndexingProfiler.start();
+                }
             }
+            IndexingProfiler.stop(Phase.READING, start);
+            IndexingProfiler.count(Counter.INPUT_BYTES, inputBytes);
+            if (!lines.isEmpty()) {
+                chunkLines.put(lines);
+            }
+        }
+        chunkLines.put(END_OF_CHUNK);
+    }
 
-            // final statistics
-            collectionStatistics.setNumDocs(currentDocId);
-            collectionStatistics.setAvgDocLen((double) numTokens / currentDocId);
-
-            writeBlockToDisk();
-            lexicon.clear();
-            documentTable.clear();
-        } else {
-            throw new RuntimeException("There was a problem reading the .tar.gz file");
+    // takes the next lines of a chunk, periodically checking that its reader did not fail
+    private static List<String> takeLines(BlockingQueue<List<String>> chunkLines, Future<?> chunkRead) throws InterruptedException, ExecutionException {
+        List<String> lines;
+        while ((lines = chunkLines.poll(1, TimeUnit.SECONDS)) == null) {
+            // a reader terminates without putting END_OF_CHUNK only because of an exception
+            if (chunkRead.isDone()) chunkRead.get();
         }
+        return lines;
     }
 
-    // function used for checking used heap
-    protected void checkMemory(){
-        if (memoryAboveThreshold(Constants.MEMORY_FULL_THRESHOLD_PERCENTAGE)) {
-            writeBlockToDisk();
-            currentBlock++;
-            lexicon.clear();
-            documentTable.clear();
-            System.out.println("Start asking the gc to come in action until we reach " + Constants.MEMORY_ENOUGH_THRESHOLD_PERCENTAGE * 100 + "%..");
-            // use a while loop since we don't know when the garbage collector will come in action
-            while (memoryAboveThreshold(Constants.MEMORY_ENOUGH_THRESHOLD_PERCENTAGE))
-                System.gc();
-            System.out.println("Enough memory now..");
+    // puts a batch in the queue, periodically checking that the workers are still alive
+    private void handOver(BlockingQueue<DocumentBatch> batches, DocumentBatch batch, List<Future<?>> workersResults) throws InterruptedException, ExecutionException {
+        while (!batches.offer(batch, 1, TimeUnit.SECONDS)) {
+            for (Future<?> workerResult : workersResults) {
+                // a worker can terminate before the end of the collection only because of an exception
+                if (workerResult.isDone()) workerResult.get();
+            }
         }
     }
 
-    protected boolean memoryAboveThreshold(double MEMORY_THRESHOLD_PERCENTAGE) {
-        MemoryUsage memoryUsage = memoryMXBean.getHeapMemoryUsage();
-        long usedHeap = memoryUsage.getUsed();
-        long maxHeap = memoryUsage.getMax();
-        // threshold percentage of the maxMemory allocated, under which we consider the memory as not free anymore
-        double heapThreshold = MEMORY_THRESHOLD_PERCENTAGE * maxHeap;
-        return usedHeap >= heapThreshold;
+    private void runWorker(BlockingQueue<DocumentBatch> batches) throws InterruptedException {
+        SpimiBlock block = new SpimiBlock();
+        DocumentBatch batch;
+        while ((batch = batches.take()) != DocumentBatch.END_OF_COLLECTION) {
+            processBatch(batch, block);
+            // checking if the block has reached the memory budget
+            block = checkMemory(block);
+        }
+        if (!block.isEmpty()) {
+            flushBlock(block);
+        }
     }
 
-    // these functions are abstract because their implementation depends on the type of indexing
-    abstract void writeBlockToDisk();
+    private void processBatch(DocumentBatch batch, SpimiBlock block) throws InterruptedException {
+        ArrayList<String> docNos = new ArrayList<>(batch.lines().size());
+        ArrayList<List<String>> documentsTerms = new ArrayList<>(batch.lines().size());
+        int batchTokens = 0;
 
-    abstract public void mergeBlocks();
+        for (String line : batch.lines()) {
+            int separator = line.indexOf("\t");
 
-    // same function for both binary and textual indexing, it just concatenates the partial files
-    protected void mergePartialDocumentTables() throws IOException {
+            // malformed line, no \t
+            if (separator == -1) {
+                continue;
+            }
 
-        int nextBlock=0;
-        int numberOfBlocks=currentBlock + 1;
+            // doc_no and document are separated by \t
+            String docNo = line.substring(0, separator);
+            String document = line.substring(separator + 1);
+
+            // if the document is empty we move on
+            if(document.length() == 0) continue;
+
+            long start = IndexingProfiler.start();
+            // Removing punctuation and splitting the document into tokens, each token is processed as soon as it is found
+            ArrayList<String> terms = new ArrayList<>();
+            TextProcessingUtils.tokenize(document, token -> {
+                // if the token is a stop word move on
+                if (stopwordsRemoval && TextProcessingUtils.isAStopWord(token))
+                    return;
+                // if the token is longer than 20 chars we truncate it
+                token = TextProcessingUtils.truncateToken(token);
+                if (stemming) {
+                    // applying the snowball stemmer
+                    token = TextProcessingUtils.stemToken(token);
+                }
+                terms.add(token);
+            });
+            IndexingProfiler.stop(Phase.TOKENIZING, start);
 
-        String[] documentTableInputFiles = new String[currentBlock+1];
+            // if the document contains only stopwords, we move on
+            if (terms.isEmpty()) continue;
 
-        // opening the partial files
-        while(nextBlock < numberOfBlocks){
-            documentTableInputFiles[nextBlock] = Constants.PARTIAL_DOCUMENT_TABLE_FILE_PATH + nextBlock + FILE_EXTENSION;
-            nextBlock++;
+            docNos.add(docNo);
+            documentsTerms.add(terms);
+            batchTokens += terms.size();
         }
-        String documentTableOutputFile = Constants.DOCUMENT_TABLE_FILE_PATH + FILE_EXTENSION;
-
-        FileOutputStream fos = new FileOutputStream(documentTableOutputFile);
-        WritableByteChannel targetChannel = fos.getChannel();
 
-        for (String documentTableInputFile : documentTableInputFiles) {
-            // getting channel for input files
-            FileInputStream fis = new FileInputStream(documentTableInputFile);
-            FileChannel inputChannel = fis.getChannel();
-
-            // transferring data from input channel to output channel
-            inputChannel.transferTo(0, inputChannel.size(), targetChannel);
-
-            // closing the input channel
-            inputChannel.close();
-            fis.close();
+        long start = IndexingProfiler.start();
+        int docId = assignDocIds(batch.batchNumber(), docNos.size(), batchTokens);
+        start = IndexingProfiler.lap(Phase.DOCID_WAIT, start);
+        block.batches.add(new BatchRecord(batch.batchNumber(), docId, docNos.size(), batchTokens));
+        IndexingProfiler.count(Counter.DOCUMENTS, docNos.size());
+        IndexingProfiler.count(Counter.TOKENS, batchTokens);
+
+        for (int i = 0; i < docNos.size(); i++, docId++) {
+            List<String> terms = documentsTerms.get(i);
+            for (String term : terms) {
+                // if the docId is already in the posting of the term we increase its frequency, otherwise we add it to the list with frequency 1
+                block.postings.add(term, docId);
+            }
+            // saving the document in the doc table
+            block.addDocument(new Document(docId, docNos.get(i), terms.size()));
         }
+        IndexingProfiler.stop(Phase.ACCUMULATION, start);
     }
 
-    // this function gets the indexes of the blocks containing the minimum term in lexicographical order
-    protected ArrayList<Integer> getBlocksToMerge(List<Integer> activeBlocks, T[] nextTerm) {
-
-        ArrayList<Integer> blocksToMerge = new ArrayList<>();
-
-        String minTerm = null;
+    // docIds are given to the batches following the reading order, so they do not depend on how the threads are scheduled
+    private synchronized int assignDocIds(long batchNumber, int numDocs, int batchTokens) throws InterruptedException {
+        while (batchNumber != nextBatchToNumber) {
+            wait();
+        }
+        int firstDocId = currentDocId;
+        currentDocId += numDocs;
+        // updating collection statistics
+        numTokens += batchTokens;
+        nextBatchToNumber++;
+        skipCompletedBatches();
+        notifyAll();
+
+        // used for checking progress
+        if (firstDocId / 100000 != currentDocId / 100000 || firstDocId == 0) {
+            System.out.println("Analyzing document n. " + (currentDocId / 100000) * 100000);
+        }
+        return firstDocId;
+    }
 
-        //searching for the minimum term among the blocks that aren't finished yet
-        for(Integer blockIndex: activeBlocks){
-            if (minTerm == null || nextTerm[blockIndex].getTerm().compareTo(minTerm) < 0) {
-                minTerm = nextTerm[blockIndex].getTerm();
+    // the documents of the batches indexed by an interrupted build keep their docIds
+    private void skipCompletedBatches() {
+        BatchRecord completedBatch;
+        while ((completedBatch = completedBatches.get(nextBatchToNumber)) != null) {
+            if (completedBatch.firstDocId() != currentDocId) {
+                throw new IllegalStateException("The build manifest is not consistent with the collection, delete it to start a new build");
             }
+            currentDocId += completedBatch.numberOfDocuments();
+            numTokens += completedBatch.numberOfTokens();
+            nextBatchToNumber++;
         }
+    }
 
-        //getting the blocks that contain the current minimum term
-        for(Integer blockIndex: activeBlocks){
-            if(nextTerm[blockIndex].getTerm().equals(minTerm)){
-                blocksToMerge.add(blockIndex);
-            }
+    // the block is flushed when its estimated size reaches the budget of the worker,
+    // so the size of the blocks does not depend on the JVM or on the garbage collector
+    // returns the block to be filled next
+    protected SpimiBlock checkMemory(SpimiBlock block) throws InterruptedException {
+        if (block.getEstimatedBytes() >= blockMemoryBudget) {
+            flushBlock(block);
+            return new SpimiBlock();
         }
+        return block;
+    }
+
+    // hands the block over to the writer thread, waiting if there are already maxInFlightBlocks blocks to be written
+    private void flushBlock(SpimiBlock block) throws InterruptedException {
+        long start = IndexingProfiler.start();
+        inFlightBlocks.acquire();
+        IndexingProfiler.stop(Phase.FLUSH_WAIT, start);
+        int blockNumber = numberOfBlocks.getAndIncrement();
+        IndexingProfiler.count(Counter.BLOCKS, 1);
+        blockWrites.add(blockWriter.submit(() -> {
+            try {
+                long writeStart = IndexingProfiler.start();
+                writeBlockToDisk(block, blockNumber);
+                IndexingProfiler.stop(Phase.BLOCK_FLUSH, writeStart);
+                buildManifest.blockWritten(blockNumber, block.batches);
+                return null;
+            } finally {
+                inFlightBlocks.release();
+            }
+        }));
+    }
 
-        return blocksToMerge;
+    protected void closeBuildManifest() {
+        try {
+            buildManifest.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
+
+    // these functions are abstract because their implementation depends on the type of indexing
+    abstract void writeBlockToDisk(SpimiBlock block, int blockNumber);
+
+    abstract public void mergeBlocks();
+
+    // each worker writes its own blocks, so the docIds of the partial doc tables interleave and they have to be merged by docId
+    abstract protected void mergePartialDocumentTables() throws IOException;
 }
@@ -0,0 +1,156 @@
+package it.unipi.indexer;
+
+import java.util.Arrays;
+
+// in-memory postings of a SPIMI block
+// terms are kept in an open addressing hash table (O(1) insertion, no boxing) and the postings of each term
+// in a growable int array of (docId, frequency) pairs, terms are sorted only once when the block is written to disk
+class PostingsAccumulator {
+    // initial number of slots of the hash table, always a power of 2
+    private static final int INITIAL_TABLE_SIZE = 1 << 16;
+    // initial number of terms
+    private static final int INITIAL_TERMS_CAPACITY = INITIAL_TABLE_SIZE / 2;
+    private static final int EMPTY_SLOT = -1;
+    // estimated heap sizes, assuming compressed object pointers and Latin-1 compact strings
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int STRING_BYTES = 24 + ARRAY_HEADER_BYTES;
+    // one entry in terms, postings and postingsLength
+    private static final int TERM_SLOT_BYTES = 4 + 4 + 4;
+
+    // hash table, each slot contains a termId or EMPTY_SLOT
+    private int[] table;
+    // termId -> term
+    private String[] terms;
+    // termId -> (docId, frequency) pairs, the docIds are increasing since documents are added in docId order
+    private int[][] postings;
+    // termId -> number of used ints in the term's postings array (2 for each posting)
+    private int[] postingsLength;
+    private int numberOfTerms;
+    // estimate of the heap bytes held by the accumulator, used to decide when the block has to be flushed
+    private long estimatedBytes;
+
+    PostingsAccumulator() {
+        clear();
+    }
+
+    // adds an occurrence of the term in the document
+    void add(String term, int docId) {
+        int termId = getOrAddTerm(term);
+        int[] termPostings = postings[termId];
+        int length = postingsLength[termId];
+
+        // additional occurrence for the previous document
+        if (length > 0 && termPostings[length - 2] == docId) {
+            termPostings[length - 1]++;
+            return;
+        }
+
+        // new document, thus new posting
+        if (length == termPostings.length) {
+            termPostings = Arrays.copyOf(termPostings, 2 * length);
+            postings[termId] = termPostings;
+            estimatedBytes += 4L * length;
+        }
+        termPostings[length] = docId;
+        termPostings[length + 1] = 1;
+        postingsLength[termId] = length + 2;
+    }
+
+    private int getOrAddTerm(String term) {
+        int mask = table.length - 1;
+        int slot = hash(term) & mask;
+        int termId;
+        // linear probing
+        while ((termId = table[slot]) != EMPTY_SLOT) {
+            if (terms[termId].equals(term)) return termId;
+            slot = (slot + 1) & mask;
+        }
+
+        // new term
+        if (numberOfTerms == terms.length) {
+            int newCapacity = 2 * terms.length;
+            terms = Arrays.copyOf(terms, newCapacity);
+            postings = Arrays.copyOf(postings, newCapacity);
+            postingsLength = Arrays.copyOf(postingsLength, newCapacity);
+            estimatedBytes += (long) TERM_SLOT_BYTES * (newCapacity - numberOfTerms);
+        }
+        termId = numberOfTerms++;
+        terms[termId] = term;
+        postings[termId] = new int[2];
+        table[slot] = termId;
+        estimatedBytes += STRING_BYTES + term.length() + ARRAY_HEADER_BYTES + 2 * 4;
+
+        // keeping the load factor under 0.5
+        if (2 * numberOfTerms > table.length) {
+            rehash(2 * table.length);
+        }
+        return termId;
+    }
+
+    private void rehash(int newTableSize) {
+        estimatedBytes += 4L * (newTableSize - table.length);
+        table = new int[newTableSize];
+        Arrays.fill(table, EMPTY_SLOT);
+        int mask = newTableSize - 1;
+        for (int termId = 0; termId < numberOfTerms; termId++) {
+            int slot = hash(terms[termId]) & mask;
+            while (table[slot] != EMPTY_SLOT) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = termId;
+        }
+    }
+
+    // spreading the higher bits of the String hash, as HashMap does
+    private static int hash(String term) {
+        int h = term.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    // termIds in lexicographical order of their terms, sorted directly so that no term is looked up again
+    int[] sortedTermIds() {
+        Integer[] termIds = new Integer[numberOfTerms];
+        for (int termId = 0; termId < numberOfTerms; termId++) {
+            termIds[termId] = termId;
+        }
+        String[] terms = this.terms;
+        Arrays.sort(termIds, (first, second) -> terms[first].compareTo(terms[second]));
+        int[] sortedTermIds = new int[numberOfTerms];
+        for (int i = 0; i < numberOfTerms; i++) {
+            sortedTermIds[i] = termIds[i];
+        }
+        return sortedTermIds;
+    }
+
+    String getTerm(int termId) {
+        return terms[termId];
+    }
+
+    int getDocumentFrequency(int termId) {
+        return postingsLength[termId] / 2;
+    }
+
+    // (docId, frequency) pairs of the term, only the first 2 * documentFrequency ints are valid
+    int[] getPostings(int termId) {
+        return postings[termId];
+    }
+
+    int getNumberOfTerms() {
+        return numberOfTerms;
+    }
+
+    long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    // releases the postings, the arrays go back to their initial size
+    void clear() {
+        table = new int[INITIAL_TABLE_SIZE];
+        Arrays.fill(table, EMPTY_SLOT);
+        terms = new String[INITIAL_TERMS_CAPACITY];
+        postings = new int[INITIAL_TERMS_CAPACITY][];
+        postingsLength = new int[INITIAL_TERMS_CAPACITY];
+        numberOfTerms = 0;
+        estimatedBytes = 4L * INITIAL_TABLE_SIZE + (long) TERM_SLOT_BYTES * INITIAL_TERMS_CAPACITY;
+    }
+}
@@ -0,0 +1,267 @@
+package it.unipi.indexer;
+
+import it.unipi.models.*;
+import it.unipi.utils.*;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+// tiered merge policy of the segments added in append mode, running in a background process started by each append
+// a segment with n documents is in tier floor(log_mergeFactor(n)), when a tier has mergeFactor segments they are merged into a new one,
+// so the number of segments grows logarithmically with the appended documents
+// the main index is never merged, it is rebuilt by a full indexing
+public class SegmentMerger {
+
+    // number of segments of the same tier merged together
+    private final int mergeFactor;
+    // codec of the merged indexes, the indexes being merged can have another one
+    private final PostingsCodec postingsCodec;
+
+    public SegmentMerger() throws ConfigurationException, IOException {
+        mergeFactor = Math.max(2, FileSystemUtils.loadAppProperties().getInt("segmentMergeFactor", Constants.DEFAULT_SEGMENT_MERGE_FACTOR));
+        postingsCodec = PostingsCodec.fromConfiguration();
+    }
+
+    // the segments stay searchable while they are merged, the merged segment replaces them atomically in the catalog
+    // if another process is merging, waits for it and then merges what is left
+    public void mergeTiers() throws IOException {
+        FileChannel mergeLock = lockMerges();
+        try {
+            SegmentCatalog.deleteRetiredSegments();
+            while (mergeFullTier()) {
+                // a merge can fill the next tier
+            }
+        } finally {
+            mergeLock.close();
+        }
+    }
+
+    // a single process at a time merges or compacts the segments, released by closing the channel
+    // also held by a full indexing, so that the segments it retires are not replaced by a merge in the meantime
+    public static FileChannel lockMerges() throws IOException {
+        Files.createDirectories(Paths.get(Constants.SEGMENTS_PATH));
+        FileChannel lockChannel = FileChannel.open(Paths.get(Constants.SEGMENTS_MERGE_LOCK_FILE_PATH), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        try {
+            lockChannel.lock();
+        } catch (IOException e) {
+            lockChannel.close();
+            throw e;
+        }
+        return lockChannel;
+    }
+
+    // merges the oldest segments of the lowest full tier, returns false if no tier is full
+    private boolean mergeFullTier() throws IOException {
+        TreeMap<Integer, List<String>> tiers = new TreeMap<>();
+        for (String segment : SegmentCatalog.readSegments()) {
+            int numDocs = DiskDataStructuresSearch.readCollectionStatistics(IndexFiles.ofSegment(segment)).getNumDocs();
+            int tier = (int) (Math.log(Math.max(1, numDocs)) / Math.log(mergeFactor));
+            tiers.computeIfAbsent(tier, t -> new ArrayList<>()).add(segment);
+        }
+        for (Map.Entry<Integer, List<String>> tier : tiers.entrySet()) {
+            if (tier.getValue().size() >= mergeFactor) {
+                mergeSegments(tier.getValue().subList(0, mergeFactor));
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // the merged segment goes live and the old ones are retired, they are deleted by a following merge
+    // the deletions made while merging are carried to the merged segment holding the catalog lock, so none is lost before the swap
+    private void mergeSegments(List<String> segments) throws IOException {
+        long start = System.currentTimeMillis();
+        String mergedSegment = SegmentCatalog.newSegment();
+        IndexFiles mergedFiles = IndexFiles.ofSegment(mergedSegment);
+        List<IndexFiles> indexes = segments.stream().map(IndexFiles::ofSegment).toList();
+        int[][] newDocIds = writeMergedIndex(indexes, mergedFiles, postingsCodec);
+        int numDocs = DiskDataStructuresSearch.readCollectionStatistics(mergedFiles).getNumDocs();
+
+        SegmentCatalog.underLock(() -> {
+            if (numDocs == 0) {
+                // all the documents were deleted
+                SegmentCatalog.replaceSegments(segments, null);
+            } else {
+                writeDeletionsMadeWhileMerging(indexes, newDocIds, mergedFiles, numDocs);
+                SegmentCatalog.replaceSegments(segments, mergedSegment);
+            }
+            return null;
+        });
+        if (numDocs == 0) SegmentCatalog.deleteSegment(mergedSegment);
+        System.out.println("Merged " + segments + " into " + mergedSegment + " (" + numDocs + " documents) in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    // physically removes the deleted documents from the main index and from the segments, recomputing the term upper bounds
+    // the main index is compacted into a new segment directory, which replaces it atomically in the catalog
+    public void compact() throws IOException {
+        FileChannel mergeLock = lockMerges();
+        try {
+            SegmentCatalog.deleteRetiredSegments();
+            IndexFiles mainIndex = SegmentCatalog.mainIndex();
+            if (hasDeletions(mainIndex)) {
+                long start = System.currentTimeMillis();
+                String compactedSegment = SegmentCatalog.newSegment();
+                IndexFiles compactedFiles = IndexFiles.ofSegment(compactedSegment);
+                int[][] newDocIds = writeMergedIndex(List.of(mainIndex), compactedFiles, postingsCodec);
+                int numDocs = DiskDataStructuresSearch.readCollectionStatistics(compactedFiles).getNumDocs();
+                SegmentCatalog.underLock(() -> {
+                    writeDeletionsMadeWhileMerging(List.of(mainIndex), newDocIds, compactedFiles, numDocs);
+                    SegmentCatalog.replaceMainIndex(compactedSegment);
+                    return null;
+                });
+                System.out.println("Compacted the main index into " + compactedSegment + " (" + numDocs + " documents) in " + (System.currentTimeMillis() - start) + " ms");
+            }
+            for (String segment : SegmentCatalog.readSegments()) {
+                if (hasDeletions(IndexFiles.ofSegment(segment))) {
+                    mergeSegments(List.of(segment));
+                }
+            }
+        } finally {
+            mergeLock.close();
+        }
+    }
+
+    private static boolean hasDeletions(IndexFiles files) {
+        return Files.exists(Paths.get(files.deletedDocuments()));
+    }
+
+    // merges the indexes dropping their deleted documents, returns the new docId of each document of each index, -1 if it was dropped
+    // the docIds of the remaining documents are renumbered in order, the ones of each index following the previous index
+    static int[][] writeMergedIndex(List<IndexFiles> indexes, IndexFiles mergedFiles, PostingsCodec postingsCodec) throws IOException {
+
+        // new docId of each document, -1 if deleted
+        int[][] newDocIds = new int[indexes.size()][];
+        // statistics of each index, with the encoding of its posting lists
+        CollectionStatistics[] indexesStatistics = new CollectionStatistics[indexes.size()];
+        // posting files of each index, mapped once for all its terms
+        MappedPostings[] postings = new MappedPostings[indexes.size()];
+        List<DeletionBitmap> deletions = new ArrayList<>();
+
+        // doc table, with the new docIds
+        int numDocs = 0;
+        long numTokens = 0;
+        byte[] documentEntry = new byte[Constants.DOCUMENT_ENTRY_SIZE];
+        Document document = new Document();
+        try (OutputStream documentTableStream = new BufferedOutputStream(new FileOutputStream(mergedFiles.documentTable()), Constants.MERGE_BUFFER_SIZE)) {
+            for (int i = 0; i < indexes.size(); i++) {
+                CollectionStatistics indexStatistics = DiskDataStructuresSearch.readCollectionStatistics(indexes.get(i));
+                int indexDocs = indexStatistics.getNumDocs();
+                indexesStatistics[i] = indexStatistics;
+                postings[i] = new MappedPostings(indexes.get(i));
+                DeletionBitmap deletedDocuments = DeletionBitmap.load(indexes.get(i), indexDocs);
+                deletions.add(deletedDocuments);
+                newDocIds[i] = new int[indexDocs];
+                try (InputStream indexDocumentTable = new BufferedInputStream(new FileInputStream(indexes.get(i).documentTable()), Constants.MERGE_BUFFER_SIZE)) {
+                    while (indexDocumentTable.readNBytes(documentEntry, 0, Constants.DOCUMENT_ENTRY_SIZE) == Constants.DOCUMENT_ENTRY_SIZE) {
+                        document.deserializeBinary(documentEntry);
+                        if (deletedDocuments.isDeleted(document.getDocId())) {
+                            newDocIds[i][document.getDocId()] = -1;
+                            continue;
+                        }
+                        newDocIds[i][document.getDocId()] = numDocs;
+                        documentTableStream.write(new Document(numDocs, document.getDocNo(), document.getLength()).serializeBinary());
+                        numDocs++;
+                        numTokens += document.getLength();
+                    }
+                }
+            }
+        }
+        CollectionStatistics collectionStatistics = new CollectionStatistics();
+        collectionStatistics.setNumDocs(numDocs);
+        collectionStatistics.setAvgDocLen(numDocs == 0 ? 0 : (double) numTokens / numDocs);
+        collectionStatistics.setPostingsCodec(postingsCodec);
+        double[] lengthNormalizations = BinaryIndexer.loadLengthNormalizations(mergedFiles.documentTable(), collectionStatistics);
+
+        // lexicons are merged by term, the posting lists of a term are concatenated in index order
+        List<InputStream> lexiconStreams = new ArrayList<>();
+        LexiconTermBinaryIndexing[] nextTerm = new LexiconTermBinaryIndexing[indexes.size()];
+        byte[] lexiconEntry = new byte[Constants.LEXICON_ENTRY_SIZE];
+        PriorityQueue<Integer> activeIndexes = new PriorityQueue<>(Comparator.<Integer, String>comparing(i -> nextTerm[i].getTerm()).thenComparingInt(i -> i));
+        try (InvertedIndexWriter invertedIndexWriter = new InvertedIndexWriter(mergedFiles.postingsDocIds(), mergedFiles.postingsFrequencies(), mergedFiles.lexicon(), postingsCodec)) {
+            for (int i = 0; i < indexes.size(); i++) {
+                lexiconStreams.add(new BufferedInputStream(new FileInputStream(indexes.get(i).lexicon()), Constants.MERGE_BUFFER_SIZE));
+                nextTerm[i] = new LexiconTermBinaryIndexing();
+                if (lexiconStreams.get(i).readNBytes(lexiconEntry, 0, Constants.LEXICON_ENTRY_SIZE) == Constants.LEXICON_ENTRY_SIZE) {
+                    nextTerm[i].deserialize(lexiconEntry);
+                    activeIndexes.add(i);
+                }
+            }
+
+            List<Integer> indexesToMerge = new ArrayList<>();
+            while (!activeIndexes.isEmpty()) {
+                indexesToMerge.clear();
+                indexesToMerge.add(activeIndexes.poll());
+                String term = nextTerm[indexesToMerge.get(0)].getTerm();
+                while (!activeIndexes.isEmpty() && nextTerm[activeIndexes.peek()].getTerm().equals(term)) {
+                    indexesToMerge.add(activeIndexes.poll());
+                }
+
+                // the document frequency is needed before writing the postings, the deleted ones are counted in a first pass
+                LexiconTermBinaryIndexing mergedTerm = new LexiconTermBinaryIndexing(term);
+                for (int i : indexesToMerge) {
+                    int documentFrequency = nextTerm[i].getDocumentFrequency();
+                    if (deletions.get(i).getNumberOfDeletedDocuments() > 0) {
+                        PostingListInterface postingList = new PostingListInterface(nextTerm[i], postings[i], indexesStatistics[i]);
+                        while (postingList.next()) {
+                            if (newDocIds[i][postingList.getDocId()] == -1) documentFrequency--;
+                        }
+                        postingList.closeList();
+                    }
+                    mergedTerm.setDocumentFrequency(mergedTerm.getDocumentFrequency() + documentFrequency);
+                }
+
+                // terms appearing only in deleted documents are dropped
+                if (mergedTerm.getDocumentFrequency() > 0) {
+                    mergedTerm.startPostingList(invertedIndexWriter, collectionStatistics);
+                    for (int i : indexesToMerge) {
+                        PostingListInterface postingList = new PostingListInterface(nextTerm[i], postings[i], indexesStatistics[i]);
+                        while (postingList.next()) {
+                            int docId = newDocIds[i][postingList.getDocId()];
+                            if (docId == -1) continue;
+                            mergedTerm.addPosting(docId, postingList.getFreq(), lengthNormalizations[docId], invertedIndexWriter);
+                        }
+                        postingList.closeList();
+                    }
+                    mergedTerm.endPostingList(invertedIndexWriter);
+                }
+
+                for (int i : indexesToMerge) {
+                    nextTerm[i] = new LexiconTermBinaryIndexing();
+                    if (lexiconStreams.get(i).readNBytes(lexiconEntry, 0, Constants.LEXICON_ENTRY_SIZE) == Constants.LEXICON_ENTRY_SIZE) {
+                        nextTerm[i].deserialize(lexiconEntry);
+                        activeIndexes.add(i);
+                    }
+                }
+            }
+        } finally {
+            for (InputStream lexiconStream : lexiconStreams) {
+                lexiconStream.close();
+            }
+        }
+
+        Files.write(Paths.get(mergedFiles.collectionStatistics()), collectionStatistics.serializeBinary());
+        return newDocIds;
+    }
+
+    // documents deleted while merging are deleted from the merged index too
+    // called holding the catalog lock, so that no document is deleted between the last reload and the catalog swap
+    private static void writeDeletionsMadeWhileMerging(List<IndexFiles> indexes, int[][] newDocIds, IndexFiles mergedFiles, int numDocs) throws IOException {
+        DeletionBitmap mergedDeletions = new DeletionBitmap(numDocs);
+        for (int i = 0; i < indexes.size(); i++) {
+            DeletionBitmap deletedDocuments = DeletionBitmap.load(indexes.get(i), newDocIds[i].length);
+            for (int docId = 0; docId < newDocIds[i].length; docId++) {
+                if (newDocIds[i][docId] != -1 && deletedDocuments.isDeleted(docId)) {
+                    mergedDeletions.delete(newDocIds[i][docId]);
+                }
+            }
+        }
+        if (mergedDeletions.getNumberOfDeletedDocuments() > 0) {
+            mergedDeletions.write(mergedFiles);
+        }
+    }
+}
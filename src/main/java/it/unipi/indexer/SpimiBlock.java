@@ -0,0 +1,35 @@
+package it.unipi.indexer;
+
+import it.unipi.models.Document;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// in-memory data structures of a SPIMI block, each indexing worker fills its own block and flushes it to disk
+class SpimiBlock {
+    // estimated heap bytes of a doc table entry: LinkedHashMap entry, Integer key, Document object and docNo String
+    private static final int DOCUMENT_ENTRY_BYTES = 40 + 16 + 24 + 40;
+
+    // partial lexicon and posting lists
+    final PostingsAccumulator postings = new PostingsAccumulator();
+    // doc table, using a LinkedHashMap because we need to maintain the insertion order
+    final LinkedHashMap<Integer, Document> documentTable = new LinkedHashMap<>();
+    private long documentTableBytes = 0;
+    // batches contained in the block, recorded in the build manifest once the block is written
+    final List<BatchRecord> batches = new ArrayList<>();
+
+    void addDocument(Document document) {
+        documentTable.put(document.getDocId(), document);
+        documentTableBytes += DOCUMENT_ENTRY_BYTES + document.getDocNo().length();
+    }
+
+    // estimate of the heap bytes held by the block
+    long getEstimatedBytes() {
+        return postings.getEstimatedBytes() + documentTableBytes;
+    }
+
+    boolean isEmpty() {
+        return documentTable.isEmpty();
+    }
+}
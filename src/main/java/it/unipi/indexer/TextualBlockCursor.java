@@ -0,0 +1,57 @@
+package it.unipi.indexer;
+
+import it.unipi.models.LexiconTermTextualIndexing;
+import it.unipi.utils.BuildFiles;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+// cursor over the terms of a textual partial block
+class TextualBlockCursor extends BlockCursor<LexiconTermTextualIndexing> {
+
+    private final BufferedReader lexiconReader;
+    private final BufferedReader docIdsReader;
+    private final BufferedReader frequenciesReader;
+
+    TextualBlockCursor(BuildFiles buildFiles, int blockIndex, String fileExtension) throws IOException {
+        super(blockIndex);
+        lexiconReader = new BufferedReader(new InputStreamReader(new FileInputStream(buildFiles.partialLexicon() + blockIndex + fileExtension)));
+        docIdsReader = new BufferedReader(new InputStreamReader(new FileInputStream(buildFiles.partialPostingsDocIds() + blockIndex + fileExtension)));
+        frequenciesReader = new BufferedReader(new InputStreamReader(new FileInputStream(buildFiles.partialPostingsFrequencies() + blockIndex + fileExtension)));
+    }
+
+    @Override
+    boolean advance() throws IOException {
+        String nextLine = lexiconReader.readLine();
+        if (nextLine == null) {
+            return false;
+        }
+        term = new LexiconTermTextualIndexing();
+        term.deserialize(nextLine);
+        return true;
+    }
+
+    // partial posting list of the current term, to be read once per term, before advancing
+    List<Integer> readDocIds() throws IOException {
+        return parsePostingList(docIdsReader.readLine());
+    }
+
+    List<Integer> readFrequencies() throws IOException {
+        return parsePostingList(frequenciesReader.readLine());
+    }
+
+    private static List<Integer> parsePostingList(String line) {
+        ArrayList<Integer> postingList = new ArrayList<>();
+        for (String value : line.split(","))
+            postingList.add(Integer.parseInt(value));
+        return postingList;
+    }
+
+    @Override
+    public void close() throws IOException {
+        lexiconReader.close();
+        docIdsReader.close();
+        frequenciesReader.close();
+    }
+}
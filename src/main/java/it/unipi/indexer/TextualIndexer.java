@@ -2,29 +2,33 @@ package it.unipi.indexer;
 
 import it.unipi.models.Document;
 import it.unipi.models.LexiconTermTextualIndexing;
+import it.unipi.utils.BuildFiles;
 import it.unipi.utils.Constants;
+import it.unipi.utils.FileSystemUtils;
+import it.unipi.utils.IndexFiles;
+import it.unipi.utils.IndexingProfiler;
+import it.unipi.utils.IndexingProfiler.Counter;
+import it.unipi.utils.IndexingProfiler.Phase;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 
 // This class was used when we were building the index just to check if everything worked
 public class TextualIndexer extends Indexer<LexiconTermTextualIndexing> {
 
     public TextualIndexer() throws ConfigurationException, IOException {
-        super(LexiconTermTextualIndexing::new, Constants.TXT_FORMAT);
+        super(Constants.TXT_FORMAT, null, BuildFiles.of(IndexFiles.MAIN_INDEX), FileSystemUtils.loadAppProperties());
     }
 
     @Override
-    protected void writeBlockToDisk(){
+    protected void writeBlockToDisk(SpimiBlock block, int blockNumber){
 
         // partial file paths
-        String postingsDocIdsFile = Constants.PARTIAL_POSTINGS_DOC_IDS_FILE_PATH + currentBlock + FILE_EXTENSION;
-        String postingsFrequenciesFile = Constants.PARTIAL_POSTINGS_FREQUENCIES_FILE_PATH + currentBlock + FILE_EXTENSION;
-        String lexiconFile = Constants.PARTIAL_LEXICON_FILE_PATH + currentBlock + FILE_EXTENSION;
-        String documentTableFile = Constants.PARTIAL_DOCUMENT_TABLE_FILE_PATH + currentBlock + FILE_EXTENSION;
+        String postingsDocIdsFile = buildFiles.partialPostingsDocIds() + blockNumber + FILE_EXTENSION;
+        String postingsFrequenciesFile = buildFiles.partialPostingsFrequencies() + blockNumber + FILE_EXTENSION;
+        String lexiconFile = buildFiles.partialLexicon() + blockNumber + FILE_EXTENSION;
+        String documentTableFile = buildFiles.partialDocumentTable() + blockNumber + FILE_EXTENSION;
 
         long start = System.currentTimeMillis();
 
@@ -34,25 +38,30 @@ public class TextualIndexer extends Indexer<LexiconTermTextualIndexing> {
              BufferedWriter lexiconStream = new BufferedWriter(new FileWriter(lexiconFile));
              BufferedWriter documentTableStream = new BufferedWriter(new FileWriter(documentTableFile))
         ) {
-            // looping over the lexicon
-            for (Map.Entry<String, LexiconTermTextualIndexing> entry : lexicon.entrySet()) {
-                LexiconTermTextualIndexing lexiconTerm = entry.getValue();
+            // used for serializing the lexicon entries
+            LexiconTermTextualIndexing lexiconTerm = new LexiconTermTextualIndexing();
+            PostingsAccumulator postings = block.postings;
+
+            // looping over the lexicon, the terms are sorted only now
+            for (int termId : postings.sortedTermIds()) {
+                int documentFrequency = postings.getDocumentFrequency(termId);
+                int[] termPostings = postings.getPostings(termId);
+                lexiconTerm.setTerm(postings.getTerm(termId));
+                lexiconTerm.setDocumentFrequency(documentFrequency);
 
                 // docIDs posting list
-                List<Integer> docIDs = lexiconTerm.getPostingListDocIds();
-                for(int i = 0; i < docIDs.size(); i++) {
-                    if (i != docIDs.size() - 1)
-                        postingsDocIdsStream.write(docIDs.get(i).toString() + ","); // doc ids are separated by ,
+                for(int i = 0; i < documentFrequency; i++) {
+                    if (i != documentFrequency - 1)
+                        postingsDocIdsStream.write(termPostings[2 * i] + ","); // doc ids are separated by ,
                     else
-                        postingsDocIdsStream.write(docIDs.get(i).toString() + "\n"); // posting lists are separated by \n
+                        postingsDocIdsStream.write(termPostings[2 * i] + "\n"); // posting lists are separated by \n
                 }
 
                 // frequencies posting list
-                List<Integer> frequencies = lexiconTerm.getPostingListFrequencies();
-                for(int i = 0; i < frequencies.size(); ++i) {
-                    if (i != docIDs.size() - 1)
-                        postingsFrequenciesStream.write(frequencies.get(i).toString() + ",");
-                    else postingsFrequenciesStream.write(frequencies.get(i).toString() + "\n");
+                for(int i = 0; i < documentFrequency; ++i) {
+                    if (i != documentFrequency - 1)
+                        postingsFrequenciesStream.write(termPostings[2 * i + 1] + ",");
+                    else postingsFrequenciesStream.write(termPostings[2 * i + 1] + "\n");
                 }
 
                 // writing to file the lexicon entry
@@ -65,7 +74,7 @@ public class TextualIndexer extends Indexer<LexiconTermTextualIndexing> {
             }
 
             // writing to file the doc table
-            for (Map.Entry<Integer, Document> doc : documentTable.entrySet()) {
+            for (Map.Entry<Integer, Document> doc : block.documentTable.entrySet()) {
                 String[] documentTableEntry = doc.getValue().serializeTextual();
                 for(int i = 0; i < documentTableEntry.length; ++i)
                     if(i != documentTableEntry.length-1)
@@ -76,7 +85,54 @@ public class TextualIndexer extends Indexer<LexiconTermTextualIndexing> {
             throw new RuntimeException(e);
         }
         long end = System.currentTimeMillis();
-        System.out.println("Partial files written in " + (end - start) + " ms");
+        System.out.println("Partial files of block " + blockNumber + " written in " + (end - start) + " ms");
+    }
+
+    @Override
+    protected void mergePartialDocumentTables() throws IOException {
+
+        int numberOfBlocks = this.numberOfBlocks.get();
+
+        // one line for each block and the corresponding docId
+        String[] nextEntry = new String[numberOfBlocks];
+        int[] nextDocId = new int[numberOfBlocks];
+        // blocks ordered by the docId of their next entry
+        PriorityQueue<Integer> activeBlocks = new PriorityQueue<>(Comparator.comparingInt(blockIndex -> nextDocId[blockIndex]));
+
+        ArrayList<BufferedReader> documentTableReaders = new ArrayList<>();
+        try (BufferedWriter documentTableStream = new BufferedWriter(new FileWriter(Constants.DOCUMENT_TABLE_FILE_PATH + FILE_EXTENSION))) {
+            // opening the partial files
+            for (int i = 0; i < numberOfBlocks; i++) {
+                documentTableReaders.add(new BufferedReader(new FileReader(buildFiles.partialDocumentTable() + i + FILE_EXTENSION)));
+                if ((nextEntry[i] = documentTableReaders.get(i).readLine()) != null) {
+                    nextDocId[i] = parseDocId(nextEntry[i]);
+                    activeBlocks.add(i);
+                }
+            }
+
+            while (!activeBlocks.isEmpty()) {
+                int blockIndex = activeBlocks.poll();
+                // the block contains runs of consecutive docIds, we copy until the next docId of another block
+                int limit = activeBlocks.isEmpty() ? Integer.MAX_VALUE : nextDocId[activeBlocks.peek()];
+                do {
+                    documentTableStream.write(nextEntry[blockIndex] + "\n");
+                    nextEntry[blockIndex] = documentTableReaders.get(blockIndex).readLine();
+                    if (nextEntry[blockIndex] != null) {
+                        nextDocId[blockIndex] = parseDocId(nextEntry[blockIndex]);
+                    }
+                } while (nextEntry[blockIndex] != null && nextDocId[blockIndex] < limit);
+                if (nextEntry[blockIndex] != null) activeBlocks.add(blockIndex);
+            }
+        } finally {
+            for (BufferedReader documentTableReader : documentTableReaders) {
+                documentTableReader.close();
+            }
+        }
+    }
+
+    // a doc table line is made of doc_no,docId,length
+    private int parseDocId(String documentTableEntry) {
+        return Integer.parseInt(documentTableEntry.split(",")[1]);
     }
 
     // function that merges the partial data structures and writes the merged files to disk
@@ -93,84 +149,69 @@ public class TextualIndexer extends Indexer<LexiconTermTextualIndexing> {
              BufferedWriter outputLexiconStream = new BufferedWriter(new FileWriter(lexiconFile))){
 
             // number of partial files to read from
-            int numberOfBlocks = currentBlock + 1;
-            int nextBlock = 0;
-
-            // opening all the partial files
-            ArrayList<BufferedReader> lexiconReader = new ArrayList<>();
-            ArrayList<BufferedReader> postingsDocIdsReader = new ArrayList<>();
-            ArrayList<BufferedReader> postingsFrequenciesReader = new ArrayList<>();
-            while(nextBlock < numberOfBlocks){
-                lexiconReader.add(new BufferedReader(new InputStreamReader(new FileInputStream(Constants.PARTIAL_LEXICON_FILE_PATH + nextBlock + FILE_EXTENSION))));
-                postingsDocIdsReader.add(new BufferedReader(new InputStreamReader(new FileInputStream(Constants.PARTIAL_POSTINGS_DOC_IDS_FILE_PATH + nextBlock + FILE_EXTENSION))));
-                postingsFrequenciesReader.add(new BufferedReader(new InputStreamReader(new FileInputStream(Constants.PARTIAL_POSTINGS_FREQUENCIES_FILE_PATH + nextBlock + FILE_EXTENSION))));
-                nextBlock++;
-            }
-
-            // array containing one serialized term for each block
-            String[] nextLexiconEntry = new String[numberOfBlocks];
-            // array of deserialized lexicon terms
-            LexiconTermTextualIndexing[] nextTerm = new LexiconTermTextualIndexing[numberOfBlocks];
-
-            // used to keep track of unfinished blocks
-            ArrayList<Integer> activeBlocks = new ArrayList<>();
-
-            // deserializing the first entry for each block
-            for(int i=0; i < numberOfBlocks; i++){
-                activeBlocks.add(i);
-                //read from file
-                nextLexiconEntry[i] = lexiconReader.get(i).readLine();
-                nextTerm[i] = new LexiconTermTextualIndexing();
-                nextTerm[i].deserialize(nextLexiconEntry[i]);
-            }
+            int numberOfBlocks = this.numberOfBlocks.get();
+
+            ArrayList<TextualBlockCursor> cursors = new ArrayList<>(numberOfBlocks);
+            // heap of the cursors that aren't finished yet
+            BlockMergeQueue<TextualBlockCursor> mergeQueue = new BlockMergeQueue<>(numberOfBlocks);
+            // cursors positioned on the term being merged
+            ArrayList<TextualBlockCursor> blocksToMerge = new ArrayList<>(numberOfBlocks);
+
+            long start = IndexingProfiler.start();
+            try {
+                // opening all the partial files
+                for (int i = 0; i < numberOfBlocks; i++) {
+                    TextualBlockCursor cursor = new TextualBlockCursor(buildFiles, i, FILE_EXTENSION);
+                    cursors.add(cursor);
+                    mergeQueue.add(cursor);
+                }
 
-            while(activeBlocks.size() > 0){
+                while (!mergeQueue.isEmpty()) {
 
-                // getting the indexes of the blocks containing the minimum term in lexicographical order
-                List<Integer> blocksToMerge = getBlocksToMerge(activeBlocks, nextTerm);
+                    // getting the blocks containing the minimum term in lexicographical order
+                    mergeQueue.pollMinTerm(blocksToMerge);
 
-                // creating a new lexiconTerm object for the min term
-                LexiconTermTextualIndexing referenceLexiconTerm = new LexiconTermTextualIndexing(nextTerm[blocksToMerge.get(0)].getTerm());
+                    // creating a new lexiconTerm object for the min term
+                    LexiconTermTextualIndexing referenceLexiconTerm = new LexiconTermTextualIndexing(blocksToMerge.get(0).getTerm().getTerm());
+                    // partial posting lists of the term, one for each block
+                    ArrayList<List<Integer>> partialDocIds = new ArrayList<>(blocksToMerge.size());
+                    ArrayList<List<Integer>> partialFrequencies = new ArrayList<>(blocksToMerge.size());
 
-                //merging everything
-                for (Integer blockIndex: blocksToMerge){
+                    //merging everything
+                    for (TextualBlockCursor cursor : blocksToMerge) {
 
-                    LexiconTermTextualIndexing nextBlockToMerge = nextTerm[blockIndex];
+                        LexiconTermTextualIndexing nextBlockToMerge = cursor.getTerm();
 
-                    // merging statistics
-                    referenceLexiconTerm.setDocumentFrequency(referenceLexiconTerm.getDocumentFrequency() + nextBlockToMerge.getDocumentFrequency());
-                    referenceLexiconTerm.setCollectionFrequency(referenceLexiconTerm.getCollectionFrequency() + nextBlockToMerge.getCollectionFrequency());
+                        // merging statistics
+                        referenceLexiconTerm.setDocumentFrequency(referenceLexiconTerm.getDocumentFrequency() + nextBlockToMerge.getDocumentFrequency());
+                        referenceLexiconTerm.setCollectionFrequency(referenceLexiconTerm.getCollectionFrequency() + nextBlockToMerge.getCollectionFrequency());
 
-                    //getting posting list from disk
-                    String postingDocIDs = postingsDocIdsReader.get(blockIndex).readLine();
-                    String postingFrequencies = postingsFrequenciesReader.get(blockIndex).readLine();
-                    ArrayList<Integer> docIDs = new ArrayList<>();
-                    for(String docIDString: postingDocIDs.split(","))
-                        docIDs.add(Integer.parseInt(docIDString));
+                        //getting posting list from disk
+                        partialDocIds.add(cursor.readDocIds());
+                        partialFrequencies.add(cursor.readFrequencies());
+                    }
 
-                    ArrayList<Integer> frequencies = new ArrayList<>();
-                    for(String frequencyString: postingFrequencies.split(","))
-                        frequencies.add(Integer.parseInt(frequencyString));
+                    // moving the cursors to their next term, the finished blocks leave the heap
+                    mergeQueue.advance(blocksToMerge);
 
-                    // merging postings
-                    referenceLexiconTerm.extendPostingList(docIDs, frequencies);
+                    // merging postings by docId
+                    referenceLexiconTerm.mergePostingLists(partialDocIds, partialFrequencies);
 
-                    if(activeBlocks.contains(blockIndex)){
-                        String nextLine = lexiconReader.get(blockIndex).readLine();
-                        if (nextLine == null) {
-                            activeBlocks.remove(blockIndex);
-                        } else {
-                            nextTerm[blockIndex] = new LexiconTermTextualIndexing();
-                            nextTerm[blockIndex].deserialize(nextLine);
-                        }
-                    }
+                    // writing the term to the lexicon and the merged posting lists to the inverted index
+                    referenceLexiconTerm.writeToDisk(outputDocIdsStream, outputFrequenciesStream, outputLexiconStream);
+                    IndexingProfiler.count(Counter.TERMS, 1);
+                    IndexingProfiler.count(Counter.POSTINGS, referenceLexiconTerm.getDocumentFrequency());
+                }
+            } finally {
+                for (TextualBlockCursor cursor : cursors) {
+                    cursor.close();
                 }
-
-                // writing the term to the lexicon and the merged posting lists to the inverted index
-                referenceLexiconTerm.writeToDisk(outputDocIdsStream, outputFrequenciesStream, outputLexiconStream);
             }
+            IndexingProfiler.stop(Phase.POSTINGS_MERGE, start);
             // merging the doc table
+            start = IndexingProfiler.start();
             mergePartialDocumentTables();
+            IndexingProfiler.stop(Phase.DOCUMENT_TABLE_MERGE, start);
             try (BufferedWriter bwCollectionStatistics = new BufferedWriter(new FileWriter(Constants.COLLECTION_STATISTICS_FILE_PATH + Constants.TXT_FORMAT))) {
                 bwCollectionStatistics.write(collectionStatistics.serializeToString());
             } catch (IOException e) {
@@ -179,6 +220,8 @@ public class TextualIndexer extends Indexer<LexiconTermTextualIndexing> {
 
         } catch (IOException ioe){
             ioe.printStackTrace();
+        } finally {
+            closeBuildManifest();
         }
     }
 }
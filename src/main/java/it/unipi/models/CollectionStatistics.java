@@ -1,5 +1,6 @@
 package it.unipi.models;
 
+import it.unipi.utils.Constants;
 import it.unipi.utils.EncodingUtils;
 
 public class CollectionStatistics {
@@ -8,10 +9,16 @@ public class CollectionStatistics {
     private int numDocs;
     // average document length
     private double avgDocLen;
+    // encoding of the posting lists, indexes written before it was recorded are VariableByte encoded
+    private PostingsCodec postingsCodec;
+    // the posting lists with skip pointers have the maximum score of each block, not in indexes written before it was recorded
+    private boolean blockMaxScores;
 
     public CollectionStatistics() {
         numDocs = 0;
         avgDocLen = 0;
+        postingsCodec = PostingsCodec.VARIABLE_BYTE;
+        blockMaxScores = true;
     }
 
     public int getNumDocs() {
@@ -30,11 +37,25 @@ public class CollectionStatistics {
         this.avgDocLen = avgDocLen;
     }
 
+    public PostingsCodec getPostingsCodec() {
+        return postingsCodec;
+    }
+
+    public void setPostingsCodec(PostingsCodec postingsCodec) {
+        this.postingsCodec = postingsCodec;
+    }
+
+    public boolean hasBlockMaxScores() {
+        return blockMaxScores;
+    }
+
     public byte[] serializeBinary() {
-        byte[] collectionStatistics = new byte[4 * 3];
+        byte[] collectionStatistics = new byte[Constants.COLLECTION_STATISTICS_SIZE];
 
         System.arraycopy(EncodingUtils.intToByteArray(numDocs), 0, collectionStatistics, 0, 4);
         System.arraycopy(EncodingUtils.doubleToByteArray(avgDocLen), 0, collectionStatistics, 4, 8);
+        collectionStatistics[12] = (byte) postingsCodec.ordinal();
+        collectionStatistics[13] = (byte) (blockMaxScores ? 1 : 0);
 
         return collectionStatistics;
     }
@@ -42,6 +63,8 @@ public class CollectionStatistics {
     public void deserializeBinary(byte[] buffer) {
         numDocs = EncodingUtils.byteArrayToInt(buffer, 0);
         avgDocLen = EncodingUtils.byteArrayToDouble(buffer, 4);
+        postingsCodec = (buffer.length > 12) ? PostingsCodec.values()[buffer[12]] : PostingsCodec.VARIABLE_BYTE;
+        blockMaxScores = buffer.length > 13 && buffer[13] == 1;
     }
 
     public String serializeToString() {
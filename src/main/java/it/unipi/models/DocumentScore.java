@@ -5,9 +5,11 @@ import javax.annotation.Nonnull;
 // immutable class used for storing the BM25 score of a document during query processing
 public record DocumentScore(String docNo, double score) implements Comparable<DocumentScore> {
 
+    // documents with the same score are ordered by docNo, so that a set of results keeps all of them
     @Override
     public int compareTo(@Nonnull DocumentScore ds) {
-        return Double.compare(ds.score, this.score);
+        int scoreComparison = Double.compare(ds.score, this.score);
+        return (scoreComparison != 0) ? scoreComparison : this.docNo.compareTo(ds.docNo);
     }
 
     @Override
@@ -0,0 +1,159 @@
+package it.unipi.models;
+
+import it.unipi.utils.Constants;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Elias-Fano representation of the docIds of a posting list of the bit packed codec, written while the postings are added
+// each docId is split in its lowBits lowest bits, packed in the lower bits, and its high part, stored in unary in the upper bits
+// as a set bit at position high part + index, so the upper bits have a zero at the end of each high part
+// layout: representation, lowBits, maximum high part, a skip pointer for each block apart from the first one
+// (position of its first set bit in the upper bits, offset of its frequencies), the block max scores, the start in the
+// upper bits of every ELIAS_FANO_SAMPLING-th high part, the lower bits and the upper bits
+// the sizes of all the parts are known from the number of postings and the universe: everything before the upper bits is
+// reserved when the encoder is created, the upper bits are appended as their words are completed, the lower bits are
+// written in their area a chunk at a time and the rest once the posting list is complete
+class EliasFanoEncoder {
+
+    // words of the lower bits and of the upper bits kept in memory before being written
+    private static final int CHUNK_WORDS = 8192;
+
+    private final InvertedIndexWriter invertedIndexWriter;
+    // offset of the posting list in the docIds file
+    private final long offset;
+    private final int lowBits;
+    private final int maxHigh;
+    private final ByteBuffer skipPointers;
+    private final int[] samples;
+    private final int lowerBitsPosition;
+    private final int numberOfLowerWords;
+    private final long numberOfUpperWords;
+    // lower bits from the word lowerBitsChunkStart, with an extra word for a low part crossing the end of the chunk
+    private final long[] lowerBitsChunk = new long[CHUNK_WORDS + 1];
+    private int lowerBitsChunkStart = 0;
+    // upper bits: the words before upperWordIndex are written or in upperBitsChunk, upperWord is being filled
+    private final ByteBuffer upperBitsChunk = ByteBuffer.allocate(8 * CHUNK_WORDS);
+    private long upperWord = 0;
+    private long upperWordIndex = 0;
+    // zeros in the upper bits written so far, for the samples
+    private long zeros = 0;
+    private int nextSample = 1;
+
+    // the docIds are in [0, universe)
+    EliasFanoEncoder(int numberOfPostings, int universe, int blockMaxScoresSize, InvertedIndexWriter invertedIndexWriter) throws IOException {
+        this.invertedIndexWriter = invertedIndexWriter;
+        offset = invertedIndexWriter.getDocIdsFileOffset();
+        lowBits = lowBits(numberOfPostings, universe);
+        maxHigh = (universe - 1) >>> lowBits;
+        numberOfLowerWords = (int) (((long) numberOfPostings * lowBits + 63) >>> 6);
+        numberOfUpperWords = ((long) numberOfPostings + maxHigh + 1 + 63) >>> 6;
+        skipPointers = ByteBuffer.allocate(skipPointersSize(numberOfPostings));
+        samples = new int[numberOfSamples(maxHigh)];
+        lowerBitsPosition = 1 + 1 + 4 + skipPointers.capacity() + blockMaxScoresSize + 4 * samples.length;
+        invertedIndexWriter.reserveDocIds(lowerBitsPosition + 8L * numberOfLowerWords);
+    }
+
+    // size of the representation, to be compared with the bit packed one before encoding
+    static int size(int numberOfPostings, int universe, int blockMaxScoresSize) {
+        int lowBits = lowBits(numberOfPostings, universe);
+        int maxHigh = (universe - 1) >>> lowBits;
+        long lowerWords = ((long) numberOfPostings * lowBits + 63) >>> 6;
+        long upperWords = ((long) numberOfPostings + maxHigh + 1 + 63) >>> 6;
+        return (int) (1 + 1 + 4 + skipPointersSize(numberOfPostings) + blockMaxScoresSize + 4L * numberOfSamples(maxHigh) + 8 * (lowerWords + upperWords));
+    }
+
+    private static int lowBits(int numberOfPostings, int universe) {
+        return (universe > numberOfPostings) ? 31 - Integer.numberOfLeadingZeros(universe / numberOfPostings) : 0;
+    }
+
+    private static int skipPointersSize(int numberOfPostings) {
+        int numberOfBlocks = (numberOfPostings + Constants.BIT_PACKED_BLOCK_SIZE - 1) / Constants.BIT_PACKED_BLOCK_SIZE;
+        return (numberOfBlocks - 1) * Constants.ELIAS_FANO_SKIP_ENTRY_SIZE;
+    }
+
+    private static int numberOfSamples(int maxHigh) {
+        return (maxHigh / Constants.ELIAS_FANO_SAMPLING) + 1;
+    }
+
+    // index is the position of the posting in the posting list, the docIds are added in increasing order
+    void add(int index, int docId) throws IOException {
+        if (lowBits > 0) {
+            long lowPart = docId & ((1L << lowBits) - 1);
+            long bitPosition = (long) index * lowBits;
+            int word = (int) (bitPosition >>> 6);
+            if (word >= lowerBitsChunkStart + CHUNK_WORDS) writeLowerBitsChunk();
+            int shift = (int) (bitPosition & 63);
+            lowerBitsChunk[word - lowerBitsChunkStart] |= lowPart << shift;
+            if (shift + lowBits > 64) {
+                lowerBitsChunk[word - lowerBitsChunkStart + 1] |= lowPart >>> (64 - shift);
+            }
+        }
+        long upperPosition = (long) (docId >>> lowBits) + index;
+        while (upperWordIndex < (upperPosition >>> 6)) writeUpperWord();
+        upperWord |= 1L << (upperPosition & 63);
+    }
+
+    // skip pointer of the block starting with the posting at index
+    void addSkipPointer(int index, int docId, int frequenciesOffset) {
+        skipPointers.putInt((docId >>> lowBits) + index);
+        skipPointers.putInt(frequenciesOffset);
+    }
+
+    // the lower bits of the full chunk go to their area, the word crossing its end is kept for the next one
+    private void writeLowerBitsChunk() throws IOException {
+        int words = Math.min(CHUNK_WORDS, numberOfLowerWords - lowerBitsChunkStart);
+        ByteBuffer buffer = ByteBuffer.allocate(8 * words);
+        for (int i = 0; i < words; i++) {
+            buffer.putLong(lowerBitsChunk[i]);
+        }
+        invertedIndexWriter.writeDocIdsAt(offset + lowerBitsPosition + 8L * lowerBitsChunkStart, buffer.array());
+        long carry = lowerBitsChunk[CHUNK_WORDS];
+        Arrays.fill(lowerBitsChunk, 0);
+        lowerBitsChunk[0] = carry;
+        lowerBitsChunkStart += CHUNK_WORDS;
+    }
+
+    // the high part h starts after the (h - 1)-th zero of the upper bits
+    private void writeUpperWord() throws IOException {
+        int wordZeros = Long.bitCount(~upperWord);
+        while (nextSample < samples.length && zeros + wordZeros >= (long) nextSample * Constants.ELIAS_FANO_SAMPLING) {
+            // position of the k-th zero of the word
+            long k = (long) nextSample * Constants.ELIAS_FANO_SAMPLING - zeros;
+            long bits = ~upperWord;
+            for (int i = 1; i < k; i++) {
+                bits &= bits - 1;
+            }
+            samples[nextSample++] = (int) (64 * upperWordIndex + Long.numberOfTrailingZeros(bits) + 1);
+        }
+        zeros += wordZeros;
+        upperBitsChunk.putLong(upperWord);
+        if (!upperBitsChunk.hasRemaining()) {
+            invertedIndexWriter.writeDocIds(upperBitsChunk.array());
+            upperBitsChunk.clear();
+        }
+        upperWord = 0;
+        upperWordIndex++;
+    }
+
+    // writes what is left once all the postings are added, returns the size of the representation
+    // blockMaxScores has the size given to the constructor
+    int finish(byte[] blockMaxScores) throws IOException {
+        while (upperWordIndex < numberOfUpperWords) writeUpperWord();
+        invertedIndexWriter.writeDocIds(upperBitsChunk.array(), 0, upperBitsChunk.position());
+        while (numberOfLowerWords > lowerBitsChunkStart) writeLowerBitsChunk();
+
+        ByteBuffer buffer = ByteBuffer.allocate(lowerBitsPosition);
+        buffer.put(Constants.ELIAS_FANO_DOC_IDS);
+        buffer.put((byte) lowBits);
+        buffer.putInt(maxHigh);
+        buffer.put(skipPointers.array());
+        buffer.put(blockMaxScores);
+        for (int sample : samples) {
+            buffer.putInt(sample);
+        }
+        invertedIndexWriter.writeDocIdsAt(offset, buffer.array());
+        return (int) (lowerBitsPosition + 8 * (numberOfLowerWords + numberOfUpperWords));
+    }
+}
@@ -0,0 +1,113 @@
+package it.unipi.models;
+
+import it.unipi.utils.Constants;
+import it.unipi.utils.EncodingUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// output files of a merge, it keeps the offsets at which the next posting lists will be written
+// each merging thread has its own writer, so the offsets are relative to its own files
+public class InvertedIndexWriter implements Closeable {
+
+    // kept for writing the skip pointers once the doc ids following them are known
+    private final FileChannel docIdsChannel;
+    private final OutputStream docIdsStream;
+    private final OutputStream frequenciesStream;
+    private final OutputStream lexiconStream;
+    private final PostingsCodec postingsCodec;
+    // file pointers
+    private long docIdsFileOffset = 0;
+    private long frequenciesFileOffset = 0;
+
+    public InvertedIndexWriter(String docIdsFile, String frequenciesFile, String lexiconFile, PostingsCodec postingsCodec) throws IOException {
+        this.postingsCodec = postingsCodec;
+        FileOutputStream docIdsFileStream = new FileOutputStream(docIdsFile);
+        docIdsChannel = docIdsFileStream.getChannel();
+        docIdsStream = new BufferedOutputStream(docIdsFileStream, Constants.MERGE_BUFFER_SIZE);
+        frequenciesStream = new BufferedOutputStream(new FileOutputStream(frequenciesFile), Constants.MERGE_BUFFER_SIZE);
+        lexiconStream = new BufferedOutputStream(new FileOutputStream(lexiconFile), Constants.MERGE_BUFFER_SIZE);
+    }
+
+    public PostingsCodec getPostingsCodec() {
+        return postingsCodec;
+    }
+
+    public long getDocIdsFileOffset() {
+        return docIdsFileOffset;
+    }
+
+    public long getFrequenciesFileOffset() {
+        return frequenciesFileOffset;
+    }
+
+    public void writeDocIds(byte[] bytes) throws IOException {
+        docIdsStream.write(bytes);
+        docIdsFileOffset += bytes.length;
+    }
+
+    public void writeDocIds(byte[] bytes, int offset, int length) throws IOException {
+        docIdsStream.write(bytes, offset, length);
+        docIdsFileOffset += length;
+    }
+
+    // writes length zero bytes, to be overwritten with writeDocIdsAt
+    public void reserveDocIds(long length) throws IOException {
+        byte[] zeros = new byte[(int) Math.min(length, Constants.MERGE_BUFFER_SIZE)];
+        for (long written = 0; written < length; written += zeros.length) {
+            writeDocIds(zeros, 0, (int) Math.min(zeros.length, length - written));
+        }
+    }
+
+    public void writeFrequencies(byte[] bytes) throws IOException {
+        frequenciesStream.write(bytes);
+        frequenciesFileOffset += bytes.length;
+    }
+
+    // VariableByte encoding of a single value, returns the number of bytes written
+    public int writeEncodedDocId(int value) throws IOException {
+        int length = EncodingUtils.encode(value, docIdsStream);
+        docIdsFileOffset += length;
+        return length;
+    }
+
+    public int writeEncodedFrequency(int value) throws IOException {
+        int length = EncodingUtils.encode(value, frequenciesStream);
+        frequenciesFileOffset += length;
+        return length;
+    }
+
+    // bit packing of a block of values, returns the number of bytes written
+    public int writeBitPackedFrequencies(int[] values, int length) throws IOException {
+        int bytesWritten = EncodingUtils.encodeBitPacked(values, length, frequenciesStream);
+        frequenciesFileOffset += bytesWritten;
+        return bytesWritten;
+    }
+
+    public int writeBitPackedDocIds(int[] values, int length) throws IOException {
+        int bytesWritten = EncodingUtils.encodeBitPacked(values, length, docIdsStream);
+        docIdsFileOffset += bytesWritten;
+        return bytesWritten;
+    }
+
+    // overwrites bytes that were already written, the file offset doesn't change
+    public void writeDocIdsAt(long offset, byte[] bytes) throws IOException {
+        docIdsStream.flush();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            docIdsChannel.write(buffer, offset + buffer.position());
+        }
+    }
+
+    public void writeLexiconEntry(byte[] lexiconEntry) throws IOException {
+        lexiconStream.write(lexiconEntry);
+    }
+
+    @Override
+    public void close() throws IOException {
+        docIdsStream.close();
+        frequenciesStream.close();
+        lexiconStream.close();
+    }
+}
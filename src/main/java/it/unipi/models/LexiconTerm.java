@@ -64,6 +64,14 @@ public class LexiconTerm {
         this.collectionFrequency = collectionFrequency;
     }
 
+    public long getDocIdsOffset() {
+        return docIdsOffset;
+    }
+
+    public long getFrequenciesOffset() {
+        return frequenciesOffset;
+    }
+
     public void setDocIdsOffset(long docIdsOffset) {
         this.docIdsOffset = docIdsOffset;
     }
@@ -88,6 +96,14 @@ public class LexiconTerm {
         this.frequenciesSize = frequenciesSize;
     }
 
+    public double getTermUpperBound() {
+        return termUpperBound;
+    }
+
+    public void setTermUpperBound(double termUpperBound) {
+        this.termUpperBound = termUpperBound;
+    }
+
     // used for serializing an entry in binary format
     public byte[] serializeBinary() {
 
@@ -1,23 +1,18 @@
 package it.unipi.models;
 
 import it.unipi.utils.Constants;
-import it.unipi.utils.DiskDataStructuresSearch;
 import it.unipi.utils.EncodingUtils;
+import it.unipi.utils.IndexingProfiler;
+import it.unipi.utils.IndexingProfiler.Phase;
 import it.unipi.utils.ScoringFunctions;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.nio.MappedByteBuffer;
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class LexiconTermBinaryIndexing extends LexiconTermIndexing {
 
-    // used to keep file pointers during merge
-    static public int docIDsFileOffset = 0;
-    static public int frequenciesFileOffset = 0;
-
     public LexiconTermBinaryIndexing() {
     }
 
@@ -36,93 +31,236 @@ public class LexiconTermBinaryIndexing extends LexiconTermIndexing {
     }
 
 
-    public void computeStatistics(MappedByteBuffer docTableBuffer, CollectionStatistics collectionStatistics){
+    // the merged posting list is written while it is being merged, without materializing it:
+    // startPostingList, one addPosting for each posting in docId order, endPostingList
+    // the skip pointers are reserved before the doc ids and written at the end, each block is written as soon as it is full
+    // with the bit packed codec the docIds of a list shorter than ELIAS_FANO_THRESHOLD are kept in memory, to choose their
+    // representation at the end, the longer lists are Elias-Fano encoded while they are added
 
-        // computing the term upper bound and collection frequency
-        this.termUpperBound = -1;
-        int i = 0;
-        int collectionFrequency = 0;
-        for(int docID: this.postingListDocIds){
-            Document d = DiskDataStructuresSearch.docTableDiskSearch(docID, docTableBuffer);
-            //we use BM25 as scoring function
-            double score = ScoringFunctions.BM25(d.getLength(), this.postingListFrequencies.get(i), this, collectionStatistics);
-            //double score = ScoringFunctions.TFIDF(this.postingListFrequencies.get(i), this, collectionStatistics);
-            if (score > this.termUpperBound){
-                this.termUpperBound = score;
-            }
-            collectionFrequency = collectionFrequency + this.postingListFrequencies.get(i);
-            i++;
-        }
-        this.setCollectionFrequency(collectionFrequency);
-    }
+    // number of postings of each skip block, 0 if the posting list has no skip pointers
+    private int skipBlockSize;
+    // size of a skip pointer of the codec
+    private int skipPointerSize;
+    // skip pointers followed by the maximum score of each skip block, written as a placeholder before the doc ids
+    // and filled while the postings are added
+    private byte[] skipPointersBytes;
+    private int numberOfSkipPointers;
+    // maximum score of the current skip block
+    private double blockMaxScore;
+    private int numberOfPostingsAdded;
+    private int previousDocId;
+    // encoded bytes of the posting lists, skip pointers excluded (bit packed docIds: the ones kept in memory)
+    private long encodedDocIdsLength;
+    private long encodedFrequenciesLength;
+    private double idf;
+    private PostingsCodec postingsCodec;
+    // block being filled by the bit packed codec: docId gaps minus 1 and frequencies minus 1
+    private int[] blockDocIds;
+    private int[] blockFrequencies;
+    // bit packed codec, lists shorter than ELIAS_FANO_THRESHOLD: encoded docId blocks and the docIds, for the Elias-Fano
+    // representation if it is the smaller one
+    private ByteArrayOutputStream encodedBlocks;
+    private int[] docIds;
+    private int universe;
+    // bit packed codec, longer lists: Elias-Fano representation, written while the postings are added
+    private EliasFanoEncoder eliasFanoDocIds;
 
-    // used for writing to disk in binary format during merge
-    public void writeToDisk(OutputStream docIDStream, OutputStream frequenciesStream, OutputStream lexiconStream, ArrayList<Integer> oldPostingListDocIds) throws IOException {
+    // the document frequency must already be the one of the merged posting list
+    public void startPostingList(InvertedIndexWriter invertedIndexWriter, CollectionStatistics collectionStatistics) throws IOException {
 
-        int numSkipBlocks;
-        int blockSize;
-
-        // (doc id,offsets) list for skip pointers
-        LinkedHashMap<Integer, SkipPointerEntry> skipPointers = new LinkedHashMap<>();
+        // set inverted file offsets for this term
+        this.setDocIdsOffset(invertedIndexWriter.getDocIdsFileOffset());
+        this.setFrequenciesOffset(invertedIndexWriter.getFrequenciesFileOffset());
         this.docIdsSize = 0;
+        this.frequenciesSize = 0;
+        this.collectionFrequency = 0;
+        this.termUpperBound = -1;
+        numberOfPostingsAdded = 0;
+        encodedDocIdsLength = 0;
+        encodedFrequenciesLength = 0;
+        skipBlockSize = 0;
+        skipPointersBytes = null;
+        numberOfSkipPointers = 0;
+        blockMaxScore = 0;
+        idf = ScoringFunctions.IDF(this, collectionStatistics);
+        postingsCodec = invertedIndexWriter.getPostingsCodec();
 
-        // if the posting list is long, create skip pointers to be used for nextGEQ implementation
-        if (this.documentFrequency > Constants.SKIP_POINTERS_THRESHOLD) {
-
+        if (postingsCodec.isBlocked()) {
+            // the blocks have a fixed size, each one apart from the first has a skip pointer
+            skipBlockSize = Constants.BIT_PACKED_BLOCK_SIZE;
+            skipPointerSize = (postingsCodec == PostingsCodec.BIT_PACKED) ? Constants.BIT_PACKED_SKIP_ENTRY_SIZE : Constants.INTERLEAVED_SKIP_ENTRY_SIZE;
+            if (blockDocIds == null) {
+                blockDocIds = new int[Constants.BIT_PACKED_BLOCK_SIZE];
+                blockFrequencies = new int[Constants.BIT_PACKED_BLOCK_SIZE];
+            }
+            int numSkipBlocks = (this.documentFrequency + skipBlockSize - 1) / skipBlockSize;
+            numberOfSkipPointers = numSkipBlocks - 1;
+            skipPointersBytes = new byte[numberOfSkipPointers * skipPointerSize + blockMaxScoresSize(numSkipBlocks)];
+            // the docIds are renumbered densely, so they are smaller than the number of documents
+            universe = collectionStatistics.getNumDocs();
+            if (postingsCodec == PostingsCodec.BIT_PACKED_INTERLEAVED) {
+                this.docIdsSize += skipPointersBytes.length;
+                invertedIndexWriter.writeDocIds(skipPointersBytes);
+            } else if (this.documentFrequency >= Constants.ELIAS_FANO_THRESHOLD) {
+                // long enough for the faster nextGEQ of Elias-Fano to matter
+                eliasFanoDocIds = new EliasFanoEncoder(this.documentFrequency, universe, blockMaxScoresSize(numSkipBlocks), invertedIndexWriter);
+            } else {
+                if (encodedBlocks == null) {
+                    encodedBlocks = new ByteArrayOutputStream();
+                    docIds = new int[Constants.ELIAS_FANO_THRESHOLD];
+                }
+                encodedBlocks.reset();
+            }
+        } else if (this.documentFrequency > Constants.SKIP_POINTERS_THRESHOLD) {
+            // if the posting list is long, create skip pointers to be used for nextGEQ implementation
             //create sqrt(df) blocks of sqrt(df) size (rounded to the highest value when needed)
-            blockSize = (int) Math.ceil(Math.sqrt(this.documentFrequency));
-            numSkipBlocks = (int) Math.ceil((double)this.documentFrequency / (double)blockSize);
+            skipBlockSize = (int) Math.ceil(Math.sqrt(this.documentFrequency));
+            skipPointerSize = Constants.SKIP_BLOCK_DIMENSION;
+            int numSkipBlocks = (int) Math.ceil((double)this.documentFrequency / (double)skipBlockSize);
+            // avoid inserting details about the first block
+            numberOfSkipPointers = numSkipBlocks - 1;
+            skipPointersBytes = new byte[numberOfSkipPointers * skipPointerSize + blockMaxScoresSize(numSkipBlocks)];
+            this.docIdsSize += skipPointersBytes.length;
+            invertedIndexWriter.writeDocIds(skipPointersBytes);
+        }
+    }
 
-            long docIdOffset = 0;
-            long frequencyOffset = 0;
+    // lengthNormalization is the BM25 length normalization of the document, see ScoringFunctions.BM25LengthNormalization
+    public void addPosting(int docId, int frequency, double lengthNormalization, InvertedIndexWriter invertedIndexWriter) throws IOException {
 
-            // avoid inserting details about the first block
-            for (int i = 0; i < numSkipBlocks - 1; i++) {
-                // first docId of the block, use the real one coming from oldPostingListDocIds
-                int docId = oldPostingListDocIds.get(blockSize * (i + 1));
-                // in subList from is inclusive, to is exclusive
-                docIdOffset += EncodingUtils.getEncodingLength(this.getPostingListDocIds().subList((i * blockSize) , ((i + 1) * blockSize)));
-                frequencyOffset += EncodingUtils.getEncodingLength(this.getPostingListFrequencies().subList((i * blockSize), ((i + 1) * blockSize)));
-                skipPointers.put(docId, new SkipPointerEntry(docIdOffset, frequencyOffset));
+        long start = IndexingProfiler.startDetailed();
+        // first posting of a skip block (apart from the first one), its docId is the key of the skip pointer
+        if (skipBlockSize > 0 && numberOfPostingsAdded > 0 && numberOfPostingsAdded % skipBlockSize == 0) {
+            if (postingsCodec.isBlocked()) {
+                writeBlock(skipBlockSize, invertedIndexWriter);
+            }
+            writeBlockMaxScore(numberOfPostingsAdded / skipBlockSize - 1);
+            int skipPointerPosition = (numberOfPostingsAdded / skipBlockSize - 1) * skipPointerSize;
+            System.arraycopy(EncodingUtils.intToByteArray(docId), 0, skipPointersBytes, skipPointerPosition, 4);
+            if (postingsCodec == PostingsCodec.BIT_PACKED) {
+                System.arraycopy(EncodingUtils.intToByteArray((int) encodedDocIdsLength), 0, skipPointersBytes, skipPointerPosition + 4, 4);
+                System.arraycopy(EncodingUtils.intToByteArray((int) encodedFrequenciesLength), 0, skipPointersBytes, skipPointerPosition + 8, 4);
+                if (eliasFanoDocIds != null) eliasFanoDocIds.addSkipPointer(numberOfPostingsAdded, docId, (int) encodedFrequenciesLength);
+            } else if (postingsCodec == PostingsCodec.BIT_PACKED_INTERLEAVED) {
+                System.arraycopy(EncodingUtils.intToByteArray((int) encodedDocIdsLength), 0, skipPointersBytes, skipPointerPosition + 4, 4);
+            } else {
+                System.arraycopy(EncodingUtils.longToByteArray(encodedDocIdsLength), 0, skipPointersBytes, skipPointerPosition + 4, 8);
+                System.arraycopy(EncodingUtils.longToByteArray(encodedFrequenciesLength), 0, skipPointersBytes, skipPointerPosition + 12, 8);
             }
         }
 
-        // set inverted file offsets for this term
-        this.setDocIdsOffset(docIDsFileOffset);
-        this.setFrequenciesOffset(frequenciesFileOffset);
-
-        // writing the skip block to file before the doc ids
-        if (skipPointers.size() > 0) {
-            byte[] skipPointersBytes = new byte[skipPointers.size() * Constants.SKIP_BLOCK_DIMENSION];
-            int i = 0;
-            for (Map.Entry<Integer, SkipPointerEntry> skipPointer: skipPointers.entrySet()) {
-                System.arraycopy(EncodingUtils.intToByteArray(skipPointer.getKey()), 0, skipPointersBytes, i * Constants.SKIP_BLOCK_DIMENSION, 4);
-                System.arraycopy(EncodingUtils.longToByteArray(skipPointer.getValue().docIdOffset()), 0, skipPointersBytes, (i * Constants.SKIP_BLOCK_DIMENSION) + 4, 8);
-                System.arraycopy(EncodingUtils.longToByteArray(skipPointer.getValue().freqOffset()), 0, skipPointersBytes, (i * Constants.SKIP_BLOCK_DIMENSION) + 12, 8);
-                i++;
+        if (postingsCodec.isBlocked()) {
+            // the first docId of a block is known from its skip pointer, the first one of the list is stored as it is
+            int positionInBlock = numberOfPostingsAdded % skipBlockSize;
+            if (positionInBlock == 0) {
+                blockDocIds[0] = (numberOfPostingsAdded == 0) ? docId : 0;
+            } else {
+                blockDocIds[positionInBlock] = docId - previousDocId - 1;
             }
-            docIDsFileOffset += skipPointersBytes.length;
-            this.docIdsSize += skipPointersBytes.length;
-            docIDStream.write(skipPointersBytes);
+            blockFrequencies[positionInBlock] = frequency - 1;
+            if (eliasFanoDocIds != null) {
+                eliasFanoDocIds.add(numberOfPostingsAdded, docId);
+            } else if (postingsCodec == PostingsCodec.BIT_PACKED) {
+                docIds[numberOfPostingsAdded] = docId;
+            }
+        } else {
+            // gaps implementation
+            int docIdGap = (numberOfPostingsAdded == 0) ? docId : docId - previousDocId;
+            encodedDocIdsLength += invertedIndexWriter.writeEncodedDocId(docIdGap);
+            encodedFrequenciesLength += invertedIndexWriter.writeEncodedFrequency(frequency);
         }
+        previousDocId = docId;
+        numberOfPostingsAdded++;
+        start = IndexingProfiler.lapDetailed(Phase.ENCODING, start);
 
-        // encoded posting list used for performance during merge
-        byte[] encodedDocIDs = EncodingUtils.encode(postingListDocIds);
+        // computing the term upper bound and collection frequency, we use BM25 as scoring function
+        double score = ScoringFunctions.BM25(frequency, lengthNormalization, idf);
+        if (score > this.termUpperBound){
+            this.termUpperBound = score;
+        }
+        if (score > blockMaxScore) {
+            blockMaxScore = score;
+        }
+        this.collectionFrequency += frequency;
+        IndexingProfiler.stopDetailed(Phase.UPPER_BOUNDS, start);
+    }
 
-        // updating general file docId offset and doc id size
-        docIDsFileOffset += encodedDocIDs.length;
-        this.docIdsSize += encodedDocIDs.length;
-        docIDStream.write(encodedDocIDs);
+    // the lists with a single block have no block max scores, the term upper bound is their maximum score
+    private static int blockMaxScoresSize(int numSkipBlocks) {
+        return (numSkipBlocks > 1) ? numSkipBlocks * Constants.BLOCK_MAX_SCORE_SIZE : 0;
+    }
 
-        byte[] encodedFrequencies = EncodingUtils.encode(postingListFrequencies);
+    // rounded up to a float, so that it is still an upper bound of the scores of the block
+    private void writeBlockMaxScore(int block) {
+        if (numberOfSkipPointers == 0) return;
+        float score = (float) blockMaxScore;
+        if (score < blockMaxScore) score = Math.nextUp(score);
+        int position = numberOfSkipPointers * skipPointerSize + block * Constants.BLOCK_MAX_SCORE_SIZE;
+        System.arraycopy(EncodingUtils.intToByteArray(Float.floatToIntBits(score)), 0, skipPointersBytes, position, 4);
+        blockMaxScore = 0;
+    }
 
-        // updating general file frequency offset and frequency size
-        frequenciesFileOffset += encodedFrequencies.length;
-        this.frequenciesSize += encodedFrequencies.length;
-        frequenciesStream.write(encodedFrequencies);
+    // the interleaved blocks are written after the skip pointers, the bit packed docIds are kept in memory unless they are
+    // Elias-Fano encoded
+    private void writeBlock(int length, InvertedIndexWriter invertedIndexWriter) throws IOException {
+        if (postingsCodec == PostingsCodec.BIT_PACKED_INTERLEAVED) {
+            encodedDocIdsLength += invertedIndexWriter.writeBitPackedDocIds(blockDocIds, length);
+            encodedDocIdsLength += invertedIndexWriter.writeBitPackedDocIds(blockFrequencies, length);
+            return;
+        }
+        if (eliasFanoDocIds == null) {
+            encodedDocIdsLength += EncodingUtils.encodeBitPacked(blockDocIds, length, encodedBlocks);
+        }
+        encodedFrequenciesLength += invertedIndexWriter.writeBitPackedFrequencies(blockFrequencies, length);
+    }
+
+    // writing the skip pointers in their placeholder and the term to the lexicon
+    public void endPostingList(InvertedIndexWriter invertedIndexWriter) throws IOException {
+        if (skipPointersBytes != null) {
+            writeBlockMaxScore(numberOfSkipPointers);
+        }
+        if (postingsCodec == PostingsCodec.BIT_PACKED_INTERLEAVED) {
+            writeBlock(numberOfPostingsAdded - (numberOfPostingsAdded - 1) / skipBlockSize * skipBlockSize, invertedIndexWriter);
+            invertedIndexWriter.writeDocIdsAt(this.docIdsOffset, skipPointersBytes);
+            this.docIdsSize += (int) encodedDocIdsLength;
+        } else if (postingsCodec == PostingsCodec.BIT_PACKED) {
+            // last block, possibly not full
+            writeBlock(numberOfPostingsAdded - (numberOfPostingsAdded - 1) / skipBlockSize * skipBlockSize, invertedIndexWriter);
 
-        // lexicon
-        lexiconStream.write(this.serialize());
+            byte[] blockMaxScores = Arrays.copyOfRange(skipPointersBytes, numberOfSkipPointers * skipPointerSize, skipPointersBytes.length);
+            if (eliasFanoDocIds == null) {
+                // Elias-Fano if it is smaller
+                int bitPackedSize = 1 + skipPointersBytes.length + (int) encodedDocIdsLength;
+                if (EliasFanoEncoder.size(this.documentFrequency, universe, blockMaxScores.length) < bitPackedSize) {
+                    eliasFanoDocIds = new EliasFanoEncoder(this.documentFrequency, universe, blockMaxScores.length, invertedIndexWriter);
+                    ByteBuffer skipPointers = ByteBuffer.wrap(skipPointersBytes);
+                    for (int i = 0; i < this.documentFrequency; i++) {
+                        if (i > 0 && i % skipBlockSize == 0) {
+                            eliasFanoDocIds.addSkipPointer(i, docIds[i], skipPointers.getInt((i / skipBlockSize - 1) * skipPointerSize + 8));
+                        }
+                        eliasFanoDocIds.add(i, docIds[i]);
+                    }
+                } else {
+                    invertedIndexWriter.writeDocIds(new byte[]{Constants.BIT_PACKED_DOC_IDS});
+                    invertedIndexWriter.writeDocIds(skipPointersBytes);
+                    invertedIndexWriter.writeDocIds(encodedBlocks.toByteArray());
+                    this.docIdsSize = bitPackedSize;
+                }
+            }
+            if (eliasFanoDocIds != null) {
+                this.docIdsSize = eliasFanoDocIds.finish(blockMaxScores);
+            }
+            this.frequenciesSize = (int) encodedFrequenciesLength;
+            eliasFanoDocIds = null;
+        } else {
+            if (skipPointersBytes != null) {
+                invertedIndexWriter.writeDocIdsAt(this.docIdsOffset, skipPointersBytes);
+            }
+            this.docIdsSize += (int) encodedDocIdsLength;
+            this.frequenciesSize += (int) encodedFrequenciesLength;
+        }
+        invertedIndexWriter.writeLexiconEntry(this.serialize());
+        skipPointersBytes = null;
     }
 
 }
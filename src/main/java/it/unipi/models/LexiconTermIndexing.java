@@ -1,13 +1,15 @@
 package it.unipi.models;
 
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
 
 public class LexiconTermIndexing extends LexiconTerm {
 
     // posting list of the term used during Indexing
     protected ArrayList<Integer> postingListDocIds = new ArrayList<>();
     protected ArrayList<Integer> postingListFrequencies = new ArrayList<>();
-    private int lastDocIdInserted;
 
 
     public ArrayList<Integer> getPostingListDocIds() {
@@ -24,27 +26,34 @@ public class LexiconTermIndexing extends LexiconTerm {
 
     public LexiconTermIndexing() {
         super();
-        lastDocIdInserted = -1;
     }
 
     public LexiconTermIndexing(String term) {
         super(term);
-        lastDocIdInserted = -1;
     }
 
-    // used for the initial creation of the partial posting lists
-    public void addToPostingList(int docID) {
-        if(lastDocIdInserted != docID){
-            // new document, thus new posting
-            lastDocIdInserted = docID;
-            postingListDocIds.add(docID);
-            postingListFrequencies.add(1);
-            documentFrequency++;
+    // used during merge, the partial posting lists come from blocks written by different workers so their docIds can interleave
+    public void mergePostingLists(List<List<Integer>> docIdsLists, List<List<Integer>> frequenciesLists) {
+        int[] positions = new int[docIdsLists.size()];
+        // partial lists ordered by their next docId
+        PriorityQueue<Integer> activeLists = new PriorityQueue<>(Comparator.comparingInt(i -> docIdsLists.get(i).get(positions[i])));
+        for (int i = 0; i < docIdsLists.size(); i++) {
+            if (!docIdsLists.get(i).isEmpty()) activeLists.add(i);
         }
-        else{
-            // additional occurrence for the previous document
-            Integer frequency = postingListFrequencies.get(postingListFrequencies.size() - 1);
-            postingListFrequencies.set(postingListFrequencies.size() - 1, frequency + 1);
+        while (!activeLists.isEmpty()) {
+            int listIndex = activeLists.poll();
+            List<Integer> docIds = docIdsLists.get(listIndex);
+            List<Integer> frequencies = frequenciesLists.get(listIndex);
+            // a partial list contains runs of consecutive documents, we copy until the next docId of another list
+            int limit = activeLists.isEmpty() ? Integer.MAX_VALUE : docIdsLists.get(activeLists.peek()).get(positions[activeLists.peek()]);
+            int position = positions[listIndex];
+            do {
+                postingListDocIds.add(docIds.get(position));
+                postingListFrequencies.add(frequencies.get(position));
+                position++;
+            } while (position < docIds.size() && docIds.get(position) < limit);
+            positions[listIndex] = position;
+            if (position < docIds.size()) activeLists.add(listIndex);
         }
     }
 
@@ -2,7 +2,6 @@ package it.unipi.models;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 
 public class LexiconTermTextualIndexing extends LexiconTermIndexing {
@@ -45,10 +44,4 @@ public class LexiconTermTextualIndexing extends LexiconTermIndexing {
             else lexiconStream.write(lexiconEntry[i]+"\n");
     }
 
-    public void extendPostingList(ArrayList<Integer> docIDs, ArrayList<Integer> frequencies) {
-        //used during merge
-        postingListDocIds.addAll(docIDs);
-        postingListFrequencies.addAll(frequencies);
-    }
-
 }
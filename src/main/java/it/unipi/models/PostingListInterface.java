@@ -1,69 +1,128 @@
 package it.unipi.models;
 
 import it.unipi.utils.Constants;
+import it.unipi.utils.DiskDataStructuresSearch;
 import it.unipi.utils.EncodingUtils;
+import it.unipi.utils.IndexFiles;
+import it.unipi.utils.MappedPostings;
 
 import javax.annotation.Nonnull;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.ByteBuffer;
 import java.util.*;
 
+// the postings are decoded in bulk into reusable arrays straight from the memory mapped posting lists,
+// so next() is an array index increment and opening a list allocates the same memory whatever its length
 public class PostingListInterface implements Comparable<PostingListInterface> {
 
     private final String term;
-    private final FileChannel docIdsChannel;
-    // memory mapped buffer of the posting list portion relative to the term
-    private final MappedByteBuffer docIdsBuffer;
-    private final FileChannel freqChannel;
-    // memory mapped buffer of the posting list portion relative to the term
-    private final MappedByteBuffer freqBuffer;
+    // view of the posting list portion relative to the term in the memory mapped postings of its index
+    private ByteBuffer docIdsBuffer;
+    // view of the posting list portion relative to the term in the memory mapped postings of its index
+    private ByteBuffer freqBuffer;
     private int currentDocID;
-    private int previousDocID;
     private int currentFreq;
     // useful if there are skip blocks
     private final int docIdsStartingOffset;
     // statistics for MaxScore
     private final double termUpperBound;
-    // skip blocks
-    private final LinkedHashMap<Integer, SkipPointerEntry> skipPointers;
+    private final PostingsCodec postingsCodec;
+    private final int documentFrequency;
+    // skip pointers, read from the start of the docIds posting list when needed
+    private final int numberOfSkipPointers;
+    private final int skipPointerSize;
+    private final int skipPointersPosition;
+    // bit packed codec: docIds Elias-Fano encoded instead of bit packed in blocks
+    private final boolean eliasFano;
+    // Elias-Fano: number of low bits, positions of the high part samples, of the lower bits and of the upper bits
+    private final int lowBits;
+    private final int maxHigh;
+    private final int samplesPosition;
+    private final int lowerBitsPosition;
+    private final int upperBitsPosition;
+    // maximum score of each skip block, after the skip pointers, -1 if the posting list has none
+    private final int blockMaxScoresPosition;
+    // block max scores are computed with the statistics of the segment, see ScoringFunctions.BM25UpperBoundScale
+    private double blockMaxScoreScale = 1;
+    // skip block of the last docId whose block max score was requested
+    private int shallowBlock = 0;
+    // idf of the term with the statistics of the whole collection, computed once for each query
+    private double idf;
+
+    // decoded postings: a block of the bit packed codec, or the next VariableByte encoded postings
+    private final int[] decodedDocIds = new int[Constants.BIT_PACKED_BLOCK_SIZE];
+    private final int[] decodedFrequencies = new int[Constants.BIT_PACKED_BLOCK_SIZE];
+    private int decodedLength = 0;
+    private int decodedPosition = 0;
+    // bit packed codec: block in the decoded arrays
+    private int currentBlock = -1;
+    // VariableByte codec: positions of the next posting to be decoded
+    private int docIdsPosition;
+    private int frequenciesPosition = 0;
+
+
+    // the constructor corresponds to openList()
+    public PostingListInterface(LexiconTerm lexiconTerm) throws IOException {
+        this(lexiconTerm, IndexFiles.MAIN_INDEX, DiskDataStructuresSearch.readCollectionStatistics());
+    }
 
+    // posting list of a term of the main index or of a segment, encoded as recorded in its collection statistics
+    // the posting files are mapped for this list only, the ones opening many lists share the mapping of their index
+    public PostingListInterface(LexiconTerm lexiconTerm, IndexFiles indexFiles, CollectionStatistics collectionStatistics) throws IOException {
+        this(lexiconTerm, new MappedPostings(indexFiles), collectionStatistics);
+    }
 
-    // the constructor corresponds to openList() (otherwise FileChannels could not be final)
-    @SuppressWarnings("resource")
-    public PostingListInterface(LexiconTerm lexiconTerm) throws IOException {
+    public PostingListInterface(LexiconTerm lexiconTerm, MappedPostings postings, CollectionStatistics collectionStatistics) throws IOException {
+        this.postingsCodec = collectionStatistics.getPostingsCodec();
         term = lexiconTerm.getTerm();
         termUpperBound = lexiconTerm.termUpperBound;
-        int docIdsSize = lexiconTerm.getDocIdsSize();
-        int frequenciesSize = lexiconTerm.getFrequenciesSize();
-        docIdsChannel = new FileInputStream(Constants.POSTINGS_DOC_IDS_FILE_PATH + Constants.DAT_FORMAT).getChannel();
-        docIdsBuffer = docIdsChannel.map(FileChannel.MapMode.READ_ONLY, lexiconTerm.docIdsOffset, docIdsSize).load();
-        freqChannel = new FileInputStream(Constants.POSTINGS_FREQUENCIES_FILE_PATH + Constants.DAT_FORMAT).getChannel();
-        freqBuffer = freqChannel.map(FileChannel.MapMode.READ_ONLY, lexiconTerm.frequenciesOffset, frequenciesSize).load();
-        previousDocID = -1;
-        skipPointers = new LinkedHashMap<>();
-
-        int documentFrequency = lexiconTerm.getDocumentFrequency();
-
-        // checking if the term has skip pointers
-        if (documentFrequency > Constants.SKIP_POINTERS_THRESHOLD) {
-            // number of skip blocks if root of document freq
+        docIdsBuffer = postings.docIds(lexiconTerm.docIdsOffset, lexiconTerm.getDocIdsSize());
+        // with the interleaved codec the frequencies are in the docIds posting list
+        freqBuffer = (postingsCodec == PostingsCodec.BIT_PACKED_INTERLEAVED) ? docIdsBuffer : postings.frequencies(lexiconTerm.frequenciesOffset, lexiconTerm.getFrequenciesSize());
+
+        documentFrequency = lexiconTerm.getDocumentFrequency();
+
+        // the bit packed docIds start with their representation
+        eliasFano = postingsCodec == PostingsCodec.BIT_PACKED && docIdsBuffer.get(0) == Constants.ELIAS_FANO_DOC_IDS;
+        if (postingsCodec == PostingsCodec.BIT_PACKED) {
+            // a skip pointer for each block apart from the first one
+            numberOfSkipPointers = (documentFrequency - 1) / Constants.BIT_PACKED_BLOCK_SIZE;
+            skipPointerSize = eliasFano ? Constants.ELIAS_FANO_SKIP_ENTRY_SIZE : Constants.BIT_PACKED_SKIP_ENTRY_SIZE;
+        } else if (postingsCodec == PostingsCodec.BIT_PACKED_INTERLEAVED) {
+            numberOfSkipPointers = (documentFrequency - 1) / Constants.BIT_PACKED_BLOCK_SIZE;
+            skipPointerSize = Constants.INTERLEAVED_SKIP_ENTRY_SIZE;
+        } else if (documentFrequency > Constants.SKIP_POINTERS_THRESHOLD) {
+            // number of skip blocks if root of document freq, the first one has no skip pointer
             int blockSize = (int) Math.ceil(Math.sqrt(documentFrequency));
-            int numSkipBlocks = (int) Math.ceil((double)documentFrequency / (double)blockSize);
-            int currentBlock = 0;
-            // retrieving all the skip blocks
-            while (currentBlock < (numSkipBlocks - 1)) {
-                int docId = docIdsBuffer.getInt();
-                long docIdOffset = docIdsBuffer.getLong();
-                long freqOffset = docIdsBuffer.getLong();
-                skipPointers.put(docId, new SkipPointerEntry(docIdOffset, freqOffset));
-                currentBlock++;
-            }
+            numberOfSkipPointers = (int) Math.ceil((double)documentFrequency / (double)blockSize) - 1;
+            skipPointerSize = Constants.SKIP_BLOCK_DIMENSION;
+        } else {
+            numberOfSkipPointers = 0;
+            skipPointerSize = Constants.SKIP_BLOCK_DIMENSION;
+        }
+
+        int blockMaxScoresSize = (collectionStatistics.hasBlockMaxScores() && numberOfSkipPointers > 0) ? (numberOfSkipPointers + 1) * Constants.BLOCK_MAX_SCORE_SIZE : 0;
+        if (eliasFano) {
+            lowBits = docIdsBuffer.get(1);
+            maxHigh = docIdsBuffer.getInt(2);
+            skipPointersPosition = 6;
+            samplesPosition = skipPointersPosition + numberOfSkipPointers * skipPointerSize + blockMaxScoresSize;
+            lowerBitsPosition = samplesPosition + 4 * (maxHigh / Constants.ELIAS_FANO_SAMPLING + 1);
+            upperBitsPosition = lowerBitsPosition + 8 * (int) (((long) documentFrequency * lowBits + 63) >>> 6);
+        } else {
+            lowBits = 0;
+            maxHigh = 0;
+            skipPointersPosition = (postingsCodec == PostingsCodec.BIT_PACKED) ? 1 : 0;
+            samplesPosition = 0;
+            lowerBitsPosition = 0;
+            upperBitsPosition = 0;
         }
 
-        // Need to do it after reading the skip blocks because the offset in the skip pointers is relative to the start of the actual posting list
-        docIdsStartingOffset = docIdsBuffer.position();
+        blockMaxScoresPosition = (blockMaxScoresSize > 0) ? skipPointersPosition + numberOfSkipPointers * skipPointerSize : -1;
+
+        // the offsets in the skip pointers are relative to the start of the actual posting list
+        docIdsStartingOffset = skipPointersPosition + numberOfSkipPointers * skipPointerSize + blockMaxScoresSize;
+        docIdsPosition = docIdsStartingOffset;
     }
 
     public int getDocId() {
@@ -78,7 +137,12 @@ public class PostingListInterface implements Comparable<PostingListInterface> {
         return term;
     }
 
+    // skip pointers by the docId of the first posting of their skip block
     public LinkedHashMap<Integer, SkipPointerEntry> getSkipPointers() {
+        LinkedHashMap<Integer, SkipPointerEntry> skipPointers = new LinkedHashMap<>();
+        for (int i = 0; i < numberOfSkipPointers; i++) {
+            skipPointers.put(skipDocId(i), new SkipPointerEntry(skipDocIdsOffset(i), skipFrequenciesOffset(i)));
+        }
         return skipPointers;
     }
 
@@ -86,95 +150,315 @@ public class PostingListInterface implements Comparable<PostingListInterface> {
         return termUpperBound;
     }
 
-    public void closeList() {
-        try {
-            docIdsBuffer.clear();
-            docIdsChannel.close();
-            freqBuffer.clear();
-            freqChannel.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+    public double getIdf() {
+        return idf;
+    }
+
+    public void setIdf(double idf) {
+        this.idf = idf;
+    }
+
+    public void setBlockMaxScoreScale(double blockMaxScoreScale) {
+        this.blockMaxScoreScale = blockMaxScoreScale;
+    }
+
+    // upper bound of the scores of the skip block whose docId range contains docId, without moving the list
+    // the term upper bound if the posting list has no block max scores
+    public double getBlockMaxScore(int docId) {
+        if (blockMaxScoresPosition == -1) return termUpperBound;
+        moveShallow(docId);
+        double blockMaxScore = docIdsBuffer.getFloat(blockMaxScoresPosition + shallowBlock * Constants.BLOCK_MAX_SCORE_SIZE);
+        if (blockMaxScoreScale == 1) return Math.min(termUpperBound, blockMaxScore);
+        if (Double.isInfinite(blockMaxScoreScale)) return termUpperBound;
+        return Math.min(termUpperBound, blockMaxScore * blockMaxScoreScale);
+    }
+
+    // last docId of the docId range of the skip block containing docId, Integer.MAX_VALUE for the last block
+    public int getBlockLastDocId(int docId) {
+        if (blockMaxScoresPosition == -1) return Integer.MAX_VALUE;
+        moveShallow(docId);
+        return (shallowBlock < numberOfSkipPointers) ? skipDocId(shallowBlock) - 1 : Integer.MAX_VALUE;
+    }
+
+    // finds the skip block containing docId without decoding it, starting from the last one found
+    private void moveShallow(int docId) {
+        if (shallowBlock > 0 && skipDocId(shallowBlock - 1) > docId) shallowBlock = 0;
+        if (shallowBlock == numberOfSkipPointers || skipDocId(shallowBlock) > docId) return;
+        // binary search of the last skip pointer with a docId not greater than docId, the block starts there
+        int low = shallowBlock + 1;
+        int high = numberOfSkipPointers - 1;
+        int skipPointer = shallowBlock;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (skipDocId(middle) <= docId) {
+                skipPointer = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
         }
+        shallowBlock = skipPointer + 1;
+    }
+
+    // drops the views, the mapping is released with its index once no list refers to it
+    public void closeList() {
+        docIdsBuffer = null;
+        freqBuffer = null;
     }
 
     // returns false is we are at the end of the posting list, otherwise true
     // moves forward by one doc in the posting lists
     public boolean next() {
 
-        if (!docIdsBuffer.hasRemaining() || !freqBuffer.hasRemaining()) return false;
+        if (decodedPosition == decodedLength && !decodeNext()) return false;
 
-        List<Byte> encodedDocId = getNextInt(docIdsBuffer);
+        currentDocID = decodedDocIds[decodedPosition];
+        currentFreq = decodedFrequencies[decodedPosition];
+        decodedPosition++;
+        return true;
+    }
 
-        // if the current posting is the first in the posting list, currentDocID is the real docID
-        currentDocID = EncodingUtils.decode(encodedDocId).get(0);
+    // moves to the first doc_id greater or equal than docId and returns true, also when it is the current or the last posting
+    // returns false only if there is no such doc_id, the posting list is then exhausted
+    public boolean nextGEQ(int docId) {
 
-        // if the current posting is not the first, currentDocID is the gap from the previous one, so we compute the actual docID
-        if(previousDocID != -1)
-            currentDocID += previousDocID;
+        // current docId is already GEQ than docId, no need to do anything
+        if (decodedPosition > 0 && currentDocID >= docId) return true;
 
-        // save currentID as the last docID read, it will be needed to compute the next one
-        previousDocID = currentDocID;
+        // the skip pointers are used only if docId is after the decoded postings
+        if (decodedLength == 0 || decodedDocIds[decodedLength - 1] < docId) {
+            skipTo(docId);
+        }
+
+        // we use next() until we reach a doc GEQ than docId
+        while (next()) {
+            if (currentDocID >= docId) return true;
+        }
+        return false;
+    }
 
-        List<Byte> encodedFreq = getNextInt(freqBuffer);
-        currentFreq = EncodingUtils.decode(encodedFreq).get(0);
+    private boolean hasNextPosting() {
+        if (decodedPosition < decodedLength) return true;
+        if (postingsCodec.isBlocked()) return currentBlock < numberOfSkipPointers;
+        return docIdsPosition < docIdsBuffer.limit();
+    }
 
+    // decodes the postings following the decoded ones, returns false if the posting list is finished
+    private boolean decodeNext() {
+        if (!hasNextPosting()) return false;
+        if (postingsCodec.isBlocked()) {
+            decodeBlock(currentBlock + 1);
+        } else {
+            decodeVariableByte(-1);
+        }
         return true;
     }
 
-    // decodes a VariableByte encoded int from the posting list
-    private List<Byte> getNextInt(MappedByteBuffer list) {
-        ArrayList<Byte> encodedInt = new ArrayList<>();
-        byte buffer;
-        do {
-            buffer = list.get();
-            encodedInt.add(buffer);
-        } while ((buffer & 0xff) < 128); // last digit of a VariableByte encoded int is 1xxxxxxx
+    // moves the decoding to the last skip block starting at or before docId, if it starts after the decoded postings
+    private void skipTo(int docId) {
+        if (eliasFano) {
+            // the docId is searched among all the postings with the high part samples, the list is positioned right before it
+            int index = Math.min(eliasFanoIndexGEQ(docId), documentFrequency - 1);
+            if (index / Constants.BIT_PACKED_BLOCK_SIZE > currentBlock) {
+                decodeBlock(index / Constants.BIT_PACKED_BLOCK_SIZE);
+                decodedPosition = index % Constants.BIT_PACKED_BLOCK_SIZE;
+            }
+            return;
+        }
 
-        return encodedInt;
+        int lastDecodedDocId = (decodedLength == 0) ? -1 : decodedDocIds[decodedLength - 1];
+
+        // binary search of the last skip pointer with a docId not greater than docId
+        int skipPointer = -1;
+        int low = 0;
+        int high = numberOfSkipPointers - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (skipDocId(middle) <= docId) {
+                skipPointer = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (skipPointer == -1 || skipDocId(skipPointer) <= lastDecodedDocId) return;
+
+        if (postingsCodec.isBlocked()) {
+            decodeBlock(skipPointer + 1);
+        } else {
+            docIdsPosition = docIdsStartingOffset + skipDocIdsOffset(skipPointer);
+            frequenciesPosition = skipFrequenciesOffset(skipPointer);
+            decodeVariableByte(skipDocId(skipPointer));
+        }
     }
 
-    // returns false is we are at the end of the posting list, otherwise true
-    // moves to a doc_id greater or equal than docId (if it exists)
-    public boolean nextGEQ(int docId) {
+    private int skipDocId(int skipPointer) {
+        if (eliasFano) {
+            // the skip pointer has the position in the upper bits of the first docId of its block
+            int index = (skipPointer + 1) * Constants.BIT_PACKED_BLOCK_SIZE;
+            return eliasFanoDocId(index, skipDocIdsOffset(skipPointer));
+        }
+        return docIdsBuffer.getInt(skipPointersPosition + skipPointer * skipPointerSize);
+    }
 
-        if (!docIdsBuffer.hasRemaining() || !freqBuffer.hasRemaining()) return false;
+    // Elias-Fano: position in the upper bits of the first docId of the block
+    private int skipDocIdsOffset(int skipPointer) {
+        if (eliasFano) return docIdsBuffer.getInt(skipPointersPosition + skipPointer * skipPointerSize);
+        if (postingsCodec.isBlocked()) return docIdsBuffer.getInt(skipPointersPosition + skipPointer * skipPointerSize + 4);
+        return (int) docIdsBuffer.getLong(skipPointersPosition + skipPointer * skipPointerSize + 4);
+    }
 
-        // current docId is already GEQ than docId, no need to do anything
-        if (currentDocID >= docId) return true;
+    // interleaved codec: offset of the block, its frequencies follow its docIds
+    private int skipFrequenciesOffset(int skipPointer) {
+        if (postingsCodec == PostingsCodec.BIT_PACKED_INTERLEAVED) return skipDocIdsOffset(skipPointer);
+        if (eliasFano) return docIdsBuffer.getInt(skipPointersPosition + skipPointer * skipPointerSize + 4);
+        if (postingsCodec == PostingsCodec.BIT_PACKED) return docIdsBuffer.getInt(skipPointersPosition + skipPointer * skipPointerSize + 8);
+        return (int) docIdsBuffer.getLong(skipPointersPosition + skipPointer * skipPointerSize + 12);
+    }
 
-        int startingDocId = currentDocID;
+    // Elias-Fano: docId of the posting at index, whose high part is set at upperPosition in the upper bits
+    private int eliasFanoDocId(int index, long upperPosition) {
+        return (int) ((upperPosition - index) << lowBits) | eliasFanoLowPart(index);
+    }
 
-        int skipDocId = 0;
-        int skipDocIdOffset = 0;
-        int skipFreqOffset = 0;
+    private int eliasFanoLowPart(int index) {
+        if (lowBits == 0) return 0;
+        long bitPosition = (long) index * lowBits;
+        int word = (int) (bitPosition >>> 6);
+        int shift = (int) (bitPosition & 63);
+        long value = docIdsBuffer.getLong(lowerBitsPosition + 8 * word) >>> shift;
+        if (shift + lowBits > 64) {
+            value |= docIdsBuffer.getLong(lowerBitsPosition + 8 * (word + 1)) << (64 - shift);
+        }
+        return (int) (value & ((1L << lowBits) - 1));
+    }
 
-        boolean postingListHasNext = true;
+    // Elias-Fano: position of the first set bit of the upper bits at or after position
+    private long eliasFanoNextSetBit(long position) {
+        int word = (int) (position >>> 6);
+        long bits = docIdsBuffer.getLong(upperBitsPosition + 8 * word) & (-1L << (position & 63));
+        while (bits == 0) {
+            word++;
+            bits = docIdsBuffer.getLong(upperBitsPosition + 8 * word);
+        }
+        return ((long) word << 6) + Long.numberOfTrailingZeros(bits);
+    }
 
-        for (Map.Entry<Integer, SkipPointerEntry> skipPointer : skipPointers.entrySet()) {
-            if (skipPointer.getKey() < startingDocId) continue; // currentDocId is already GEQ than the docId of the skip pointer
-            if (skipPointer.getKey() <= docId) {
-                skipDocId = skipPointer.getKey();
-                skipDocIdOffset = (int) skipPointer.getValue().docIdOffset();
-                skipFreqOffset = (int) skipPointer.getValue().freqOffset();
-            } else break; // we reached a skipDocId greater than docId
+    // Elias-Fano: index of the first posting with a docId not smaller than docId, documentFrequency if there is none
+    private int eliasFanoIndexGEQ(int docId) {
+        int high = docId >>> lowBits;
+        if (high > maxHigh) return documentFrequency;
+
+        // start of the high part, after its (high - 1)-th zero, counted from the closest sample
+        long position = docIdsBuffer.getInt(samplesPosition + 4 * (high / Constants.ELIAS_FANO_SAMPLING));
+        int zeros = high % Constants.ELIAS_FANO_SAMPLING;
+        int word = (int) (position >>> 6);
+        long bits = ~docIdsBuffer.getLong(upperBitsPosition + 8 * word) & (-1L << (position & 63));
+        while (zeros > 0) {
+            int wordZeros = Long.bitCount(bits);
+            if (wordZeros >= zeros) {
+                // clearing the zeros before the one we are looking for
+                for (int i = 1; i < zeros; i++) {
+                    bits &= bits - 1;
+                }
+                position = ((long) word << 6) + Long.numberOfTrailingZeros(bits) + 1;
+                break;
+            }
+            zeros -= wordZeros;
+            word++;
+            bits = ~docIdsBuffer.getLong(upperBitsPosition + 8 * word);
         }
 
-        // we move the buffers to the skip offsets
-        if (skipDocId > startingDocId) {
-            docIdsBuffer.position(docIdsStartingOffset + skipDocIdOffset);
-            freqBuffer.position(skipFreqOffset);
-            next();
+        // the postings before the high part are the set bits before its start, then the docIds are compared in order
+        for (int index = (int) (position - high); index < documentFrequency; index++) {
+            position = eliasFanoNextSetBit(position);
+            if (eliasFanoDocId(index, position) >= docId) return index;
+            position++;
+        }
+        return documentFrequency;
+    }
 
-            currentDocID = skipDocId;
-            previousDocID = skipDocId;
+    // decodes up to BIT_PACKED_BLOCK_SIZE VariableByte encoded postings from the current positions
+    // firstDocId is the docId of the first one when it is known from a skip pointer, -1 otherwise
+    private void decodeVariableByte(int firstDocId) {
+        // the first docId of the posting list is stored as it is, the following ones as gaps
+        int docId = (decodedLength == 0) ? -1 : decodedDocIds[decodedLength - 1];
+        int limit = docIdsBuffer.limit();
+        int length = 0;
+        while (length < decodedDocIds.length && docIdsPosition < limit) {
+            int gap = 0;
+            int unsignedByte;
+            // last digit of a VariableByte encoded int is 1xxxxxxx
+            do {
+                unsignedByte = docIdsBuffer.get(docIdsPosition++) & 0xff;
+                gap = (gap << 7) | (unsignedByte & 127);
+            } while (unsignedByte < 128);
+            if (length == 0 && firstDocId != -1) {
+                docId = firstDocId;
+            } else {
+                docId = (docId == -1) ? gap : docId + gap;
+            }
+            decodedDocIds[length] = docId;
+
+            int frequency = 0;
+            do {
+                unsignedByte = freqBuffer.get(frequenciesPosition++) & 0xff;
+                frequency = (frequency << 7) | (unsignedByte & 127);
+            } while (unsignedByte < 128);
+            decodedFrequencies[length] = frequency;
+            length++;
         }
+        decodedLength = length;
+        decodedPosition = 0;
+    }
 
-        // we use next() until we reach a doc GEQ than docId
-        while (currentDocID < docId && postingListHasNext) {
-            postingListHasNext = next();
+    // bit packed codec: decodes the docIds and the frequencies of a block, positioning the list before its first posting
+    private void decodeBlock(int block) {
+        if (eliasFano) {
+            decodeEliasFanoBlock(block);
+            return;
+        }
+        int docIdsPosition = docIdsStartingOffset + ((block == 0) ? 0 : skipDocIdsOffset(block - 1));
+        int frequenciesPosition = (block == 0) ? 0 : skipFrequenciesOffset(block - 1);
+        decodedLength = Math.min(Constants.BIT_PACKED_BLOCK_SIZE, documentFrequency - block * Constants.BIT_PACKED_BLOCK_SIZE);
+        int docIdsEnd = EncodingUtils.decodeBitPacked(docIdsBuffer, docIdsPosition, decodedDocIds, decodedLength);
+        if (postingsCodec == PostingsCodec.BIT_PACKED_INTERLEAVED) frequenciesPosition = docIdsEnd;
+        EncodingUtils.decodeBitPacked(freqBuffer, frequenciesPosition, decodedFrequencies, decodedLength);
+
+        // gaps minus 1, the first docId of a block apart from the first one comes from its skip pointer
+        int docId = (block == 0) ? -1 : skipDocId(block - 1) - 1;
+        for (int i = 0; i < decodedLength; i++) {
+            docId += decodedDocIds[i] + 1;
+            decodedDocIds[i] = docId;
+            decodedFrequencies[i]++;
         }
+        currentBlock = block;
+        decodedPosition = 0;
+    }
 
-        return postingListHasNext;
+    // Elias-Fano: the docIds of the block are the set bits of the upper bits from its skip pointer, the frequencies are bit packed
+    private void decodeEliasFanoBlock(int block) {
+        int firstIndex = block * Constants.BIT_PACKED_BLOCK_SIZE;
+        long position = (block == 0) ? 0 : skipDocIdsOffset(block - 1);
+        int frequenciesPosition = (block == 0) ? 0 : skipFrequenciesOffset(block - 1);
+        decodedLength = Math.min(Constants.BIT_PACKED_BLOCK_SIZE, documentFrequency - firstIndex);
+        EncodingUtils.decodeBitPacked(freqBuffer, frequenciesPosition, decodedFrequencies, decodedLength);
+
+        // the set bits are read a word at a time, position - index is the high part of the docId
+        int word = (int) (position >>> 6);
+        long bits = docIdsBuffer.getLong(upperBitsPosition + 8 * word) & (-1L << (position & 63));
+        for (int i = 0; i < decodedLength; i++) {
+            while (bits == 0) {
+                word++;
+                bits = docIdsBuffer.getLong(upperBitsPosition + 8 * word);
+            }
+            position = ((long) word << 6) + Long.numberOfTrailingZeros(bits);
+            bits &= bits - 1;
+            decodedDocIds[i] = eliasFanoDocId(firstIndex + i, position);
+            decodedFrequencies[i]++;
+        }
+        currentBlock = block;
+        decodedPosition = 0;
     }
 
     @Override
@@ -0,0 +1,35 @@
+package it.unipi.models;
+
+import it.unipi.utils.FileSystemUtils;
+import org.apache.commons.configuration2.Configuration;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+
+import java.io.IOException;
+import java.util.Locale;
+
+// encoding of the posting lists of a binary index, chosen with the postingsCodec property when the index is written
+// and recorded in its collection statistics, so indexes and segments written with different codecs can be read together
+public enum PostingsCodec {
+    // VariableByte gaps and frequencies, sqrt(df) skip pointers on the long posting lists
+    VARIABLE_BYTE,
+    // blocks of BIT_PACKED_BLOCK_SIZE gaps and frequencies, bit packed with the bit width of the block, and a skip pointer for each block
+    BIT_PACKED,
+    // the same blocks, each one with its docIds followed by its frequencies in the docIds file, and a skip pointer
+    // with the offset of the block, so a posting list is a single memory mapping and a posting a single page
+    BIT_PACKED_INTERLEAVED;
+
+    // posting lists encoded in blocks of BIT_PACKED_BLOCK_SIZE postings
+    public boolean isBlocked() {
+        return this != VARIABLE_BYTE;
+    }
+
+    // codec used for writing new indexes
+    public static PostingsCodec fromConfiguration() throws ConfigurationException, IOException {
+        return fromConfiguration(FileSystemUtils.loadAppProperties());
+    }
+
+    public static PostingsCodec fromConfiguration(Configuration configuration) {
+        String codec = configuration.getString("postingsCodec", VARIABLE_BYTE.name());
+        return valueOf(codec.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,29 @@
+package it.unipi.models;
+
+import it.unipi.utils.FileSystemUtils;
+import org.apache.commons.configuration2.ex.ConfigurationException;
+
+import java.io.IOException;
+import java.util.Locale;
+
+// dynamic pruning algorithm of the disjunctive queries, chosen with the pruningStrategy property
+public enum PruningStrategy {
+    // essential and non essential lists split by the term upper bounds
+    MAXSCORE,
+    // lists sorted by docId, scoring only the pivots where the sum of the term upper bounds of the lists up to them can enter the top k
+    WAND,
+    // MaxScore, with the non essential lists checked against the block max scores of the current document
+    BLOCK_MAX_MAXSCORE,
+    // WAND pivoting on the term upper bounds, then skipping the pivots whose block max scores can not enter the top k
+    BLOCK_MAX_WAND;
+
+    public static PruningStrategy fromConfiguration() throws ConfigurationException, IOException {
+        String strategy = FileSystemUtils.loadAppProperties().getString("pruningStrategy", MAXSCORE.name());
+        return fromName(strategy);
+    }
+
+    // case insensitive, as in the configuration and in the queries
+    public static PruningStrategy fromName(String strategy) {
+        return valueOf(strategy.trim().toUpperCase(Locale.ROOT));
+    }
+}
@@ -0,0 +1,97 @@
+package it.unipi.query.processor;
+
+import it.unipi.models.CollectionStatistics;
+import it.unipi.models.LexiconTerm;
+import it.unipi.utils.Constants;
+import it.unipi.utils.DeletionBitmap;
+import it.unipi.utils.DiskDataStructuresSearch;
+import it.unipi.utils.IndexFiles;
+import it.unipi.utils.MappedPostings;
+import it.unipi.utils.ScoringFunctions;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// memory mapped data structures of the main index or of a segment, each one with its own docIds and statistics
+// never modified: when its deletion bitmap changes a new IndexSegment shares the memory mappings with the new bitmap,
+// so the snapshots still holding this one keep their view of the deleted documents
+final class IndexSegment {
+
+    final IndexFiles files;
+    // memory mapping of the lexicon file
+    final MappedByteBuffer lexiconBuffer;
+    // memory mapping of the doc table file
+    final MappedByteBuffer docTableBuffer;
+    // memory mapping of the posting files, each posting list opened by a query reads its own portion of it
+    final MappedPostings postings;
+    // number of terms in the lexicon (used for binary search)
+    final int numberOfTerms;
+    // statistics of the segment, used for rescaling its term upper bounds
+    final CollectionStatistics collectionStatistics;
+    // documents deleted from the segment, skipped during query processing
+    final DeletionBitmap deletedDocuments;
+    // last modification of the deletion bitmap when it was loaded
+    private final long deletionsVersion;
+
+    IndexSegment(IndexFiles files) throws IOException {
+        this.files = files;
+        collectionStatistics = DiskDataStructuresSearch.readCollectionStatistics(files);
+        try (FileChannel lexiconChannel = FileChannel.open(Paths.get(files.lexicon()));
+             FileChannel docTableChannel = FileChannel.open(Paths.get(files.documentTable()))) {
+            lexiconBuffer = lexiconChannel.map(FileChannel.MapMode.READ_ONLY, 0, lexiconChannel.size()).load();
+            docTableBuffer = docTableChannel.map(FileChannel.MapMode.READ_ONLY, 0, docTableChannel.size()).load();
+            numberOfTerms = (int) lexiconChannel.size() / Constants.LEXICON_ENTRY_SIZE;
+        }
+        postings = new MappedPostings(files);
+        deletionsVersion = deletionsFileVersion();
+        deletedDocuments = DeletionBitmap.load(files, collectionStatistics.getNumDocs());
+    }
+
+    private IndexSegment(IndexSegment segment, long deletionsVersion) throws IOException {
+        files = segment.files;
+        lexiconBuffer = segment.lexiconBuffer;
+        docTableBuffer = segment.docTableBuffer;
+        postings = segment.postings;
+        numberOfTerms = segment.numberOfTerms;
+        collectionStatistics = segment.collectionStatistics;
+        this.deletionsVersion = deletionsVersion;
+        deletedDocuments = DeletionBitmap.load(files, collectionStatistics.getNumDocs());
+    }
+
+    private long deletionsFileVersion() throws IOException {
+        Path deletedDocumentsFile = Paths.get(files.deletedDocuments());
+        return Files.exists(deletedDocumentsFile) ? Files.getLastModifiedTime(deletedDocumentsFile).toMillis() : 0;
+    }
+
+    // true if the deletion bitmap changed since it was loaded
+    boolean deletionsChanged() throws IOException {
+        return deletionsFileVersion() != deletionsVersion;
+    }
+
+    // the segment with the current deletion bitmap, this one if it did not change
+    IndexSegment reloadDeletions() throws IOException {
+        long version = deletionsFileVersion();
+        return (version == deletionsVersion) ? this : new IndexSegment(this, version);
+    }
+
+    // BM25 length normalization of each document, computed with the statistics of the whole collection and kept
+    // resident so that scoring a posting does not read the doc table
+    float[] computeLengthNormalizations(CollectionStatistics globalStatistics) {
+        float[] normalizations = new float[docTableBuffer.capacity() / Constants.DOCUMENT_ENTRY_SIZE];
+        for (int docId = 0; docId < normalizations.length; docId++) {
+            // rounded up, so that the scores are not above the term upper bounds computed with the exact ones
+            double normalization = ScoringFunctions.BM25LengthNormalization(DiskDataStructuresSearch.docLength(docId, docTableBuffer), globalStatistics);
+            float roundedNormalization = (float) normalization;
+            normalizations[docId] = (roundedNormalization < normalization) ? Math.nextUp(roundedNormalization) : roundedNormalization;
+        }
+        return normalizations;
+    }
+
+    LexiconTerm lexiconSearch(String term) {
+        return DiskDataStructuresSearch.lexiconDiskSearch(term, numberOfTerms, lexiconBuffer);
+    }
+}
@@ -0,0 +1,22 @@
+package it.unipi.query.processor;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import it.unipi.models.CollectionStatistics;
+import it.unipi.models.DocumentScore;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.SortedSet;
+
+// the main index and the segments a query is processed on, with the statistics of the whole collection and the length
+// normalizations computed with them, never modified: appending a segment or deleting a document replaces it as a whole,
+// so the queries running meanwhile keep a consistent view of the collection
+record IndexSnapshot(List<IndexSegment> segments, CollectionStatistics collectionStatistics, float[][] lengthNormalizations,
+                     long segmentCatalogVersion, Cache<HashSet<String>, SortedSet<DocumentScore>> queryCache) {
+
+    // the cached results belong to the snapshot, since they could miss documents of new segments or contain deleted documents
+    static Cache<HashSet<String>, SortedSet<DocumentScore>> newQueryCache() {
+        return CacheBuilder.newBuilder().maximumSize(500).initialCapacity(500).build();
+    }
+}
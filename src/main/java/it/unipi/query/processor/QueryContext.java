@@ -0,0 +1,36 @@
+package it.unipi.query.processor;
+
+import it.unipi.models.DocumentScore;
+import it.unipi.models.PruningStrategy;
+import it.unipi.models.QueryType;
+
+import java.util.HashSet;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+// state of a single query, so that a QueryProcessor can run queries from several threads at once
+final class QueryContext {
+
+    // index the query is processed on, the same one from start to end
+    final IndexSnapshot index;
+    // best k documents found by the query, their docNos are read only at the end
+    final TopKHeap topK = new TopKHeap();
+    // query results (ordered by decreasing score)
+    final SortedSet<DocumentScore> queryResults = new TreeSet<>();
+    // tokens of the query, the first one is the query type
+    String[] tokens;
+    // query tokens after stopword removal and stemming
+    String[] preprocessedTokens;
+    // query tokens (sets do not allow duplicates)
+    HashSet<String> tokenSet = new HashSet<>();
+    QueryType queryType;
+    // dynamic pruning of the disjunctive queries, the configured one unless the query sets another one
+    PruningStrategy pruningStrategy;
+
+    // k is the number of documents to be returned
+    QueryContext(IndexSnapshot index, int k, PruningStrategy pruningStrategy) {
+        this.index = index;
+        this.pruningStrategy = pruningStrategy;
+        topK.reset(k);
+    }
+}
@@ -1,7 +1,6 @@
 package it.unipi.query.processor;
 
 import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import it.unipi.exceptions.IllegalQueryTypeException;
 import it.unipi.exceptions.NoResultsFoundException;
 import it.unipi.models.*;
@@ -13,57 +12,156 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class QueryProcessor {
     private final String[] QUIT_CODES = new String[]{"Q", "q", "QUIT", "quit", "EXIT", "exit"};
-    private final CollectionStatistics collectionStatistics;
-    // priority queue used to store query results (ordered by decreasing score)
-    private final SortedSet<DocumentScore> docsPriorityQueue;
-    // hash set used to store query tokens (sets do not allow duplicates)
-    private HashSet<String> tokenSet = new HashSet<>();
-    private QueryType queryType;
-    // memory mapping of the lexicon file
+    // main index and segments added in append mode, each query is processed on all of them
+    // read without locking by the queries, replaced only while holding the lock of the query processor
+    private volatile IndexSnapshot index;
+    // memory mapping of the lexicon file of the main index (the one loaded by the constructor)
     public final MappedByteBuffer lexiconBuffer;
-    // memory mapping of the doc table file
+    // memory mapping of the doc table file of the main index (the one loaded by the constructor)
     public final MappedByteBuffer docTableBuffer;
-    // number of terms in the lexicon (used for binary search)
+    // number of terms in the lexicon of the main index (used for binary search)
     public final int numberOfTerms;
-    // LRU cache used to store query results
-    private final Cache<HashSet<String>, SortedSet<DocumentScore>> queryCache = CacheBuilder.newBuilder().maximumSize(500).initialCapacity(500).build();
-
-    // number of documents to be returned by the query processor
-    private int k;
 
     private final boolean stemming;
     private final boolean stopwordsRemoval;
+    // dynamic pruning of the disjunctive queries, the configured one unless the query sets another one
+    private final PruningStrategy pruningStrategy;
+    // true if the indexes are not reloaded when the segment catalog changes
+    private final boolean fixedIndex;
+    // time of the next check of the segment catalog and of the deletion bitmaps
+    private final AtomicLong nextRefreshCheck = new AtomicLong();
 
     public QueryProcessor() throws IOException, ConfigurationException {
 
-        //used to compute scoring functions
-        collectionStatistics = DiskDataStructuresSearch.readCollectionStatistics();
-        docsPriorityQueue = new TreeSet<>();
-
-        FileChannel lexiconChannel = FileChannel.open(Paths.get(Constants.LEXICON_FILE_PATH + Constants.DAT_FORMAT));
-        lexiconBuffer = lexiconChannel.map(FileChannel.MapMode.READ_ONLY, 0, lexiconChannel.size()).load();
-        FileChannel docTableChannel = FileChannel.open(Paths.get(Constants.DOCUMENT_TABLE_FILE_PATH + Constants.DAT_FORMAT));
-        docTableBuffer = docTableChannel.map(FileChannel.MapMode.READ_ONLY, 0, docTableChannel.size()).load();
-
-        //used for binary search over lexicon data structure
-        numberOfTerms = (int)lexiconChannel.size() / Constants.LEXICON_ENTRY_SIZE;
+        // loading the main index and the segments and computing the statistics used by the scoring functions
+        index = loadIndex(null);
+        IndexSegment mainIndex = index.segments().get(0);
+        lexiconBuffer = mainIndex.lexiconBuffer;
+        docTableBuffer = mainIndex.docTableBuffer;
+        numberOfTerms = mainIndex.numberOfTerms;
 
         Configuration appProperties = FileSystemUtils.loadAppProperties();
         stemming = appProperties.getBoolean("stemming");
         stopwordsRemoval = appProperties.getBoolean("stopwords");
+        pruningStrategy = PruningStrategy.fromConfiguration();
+        fixedIndex = false;
+    }
+
+    // query processor on the given indexes only, the first one as the main index, without preprocessing the query tokens
+    // and without reloading the indexes: used for testing the query processing on indexes built elsewhere
+    QueryProcessor(List<IndexFiles> indexes, PruningStrategy pruningStrategy) throws IOException {
+
+        List<IndexSegment> segments = new ArrayList<>();
+        for (IndexFiles files : indexes) {
+            segments.add(new IndexSegment(files));
+        }
+        IndexSegment mainIndex = segments.get(0);
+        lexiconBuffer = mainIndex.lexiconBuffer;
+        docTableBuffer = mainIndex.docTableBuffer;
+        numberOfTerms = mainIndex.numberOfTerms;
+        index = newSnapshot(segments, null, -1);
+
+        stemming = false;
+        stopwordsRemoval = false;
+        this.pruningStrategy = pruningStrategy;
+        fixedIndex = true;
+    }
+
+    // reloads the segments if the catalog changed, so appended segments and a compacted main index go live without
+    // restarting the query processor, and the deletion bitmaps if a document was deleted
+    // the files are checked at most once every INDEX_REFRESH_INTERVAL ms, by the first query starting after it,
+    // the other queries go on with the current index meanwhile
+    private IndexSnapshot refreshIndex() throws IOException {
+        IndexSnapshot current = index;
+        if (fixedIndex) return current;
+        long now = System.currentTimeMillis();
+        long nextCheck = nextRefreshCheck.get();
+        if (now < nextCheck || !nextRefreshCheck.compareAndSet(nextCheck, now + Constants.INDEX_REFRESH_INTERVAL)) return current;
+        if (!isStale(current)) return current;
+        synchronized (this) {
+            current = index;
+            if (isStale(current)) {
+                current = loadIndex(current);
+                index = current;
+            }
+            return current;
+        }
+    }
+
+    private static boolean isStale(IndexSnapshot index) throws IOException {
+        if (SegmentCatalog.lastModified() != index.segmentCatalogVersion()) return true;
+        for (IndexSegment segment : index.segments()) {
+            if (segment.deletionsChanged()) return true;
+        }
+        return false;
+    }
+
+    // the segments and the length normalizations are taken from the previous index if they did not change
+    private static IndexSnapshot loadIndex(IndexSnapshot previous) throws IOException {
+        long catalogVersion = SegmentCatalog.lastModified();
+        List<IndexSegment> segments = new ArrayList<>();
+        if (previous != null && catalogVersion == previous.segmentCatalogVersion()) {
+            // only the deletions changed
+            for (IndexSegment segment : previous.segments()) {
+                segments.add(segment.reloadDeletions());
+            }
+        } else {
+            List<IndexFiles> indexes = SegmentCatalog.readIndexes();
+            // the main index is opened again only if it was replaced by a compaction or by a new full indexing
+            IndexSegment previousMainIndex = (previous == null) ? null : previous.segments().get(0);
+            segments.add(previousMainIndex != null && previousMainIndex.files.equals(indexes.get(0)) ? previousMainIndex.reloadDeletions() : new IndexSegment(indexes.get(0)));
+            for (IndexFiles segment : indexes.subList(1, indexes.size())) {
+                segments.add(new IndexSegment(segment));
+            }
+        }
+
+        return newSnapshot(segments, previous, catalogVersion);
+    }
+
+    private static IndexSnapshot newSnapshot(List<IndexSegment> segments, IndexSnapshot previous, long catalogVersion) {
+        // deleted documents are still counted, until the index is compacted
+        CollectionStatistics collectionStatistics;
+        if (segments.size() == 1) {
+            collectionStatistics = segments.get(0).collectionStatistics;
+        } else {
+            int numDocs = 0;
+            double numTokens = 0;
+            for (IndexSegment segment : segments) {
+                numDocs += segment.collectionStatistics.getNumDocs();
+                numTokens += segment.collectionStatistics.getAvgDocLen() * segment.collectionStatistics.getNumDocs();
+            }
+            collectionStatistics = new CollectionStatistics();
+            collectionStatistics.setNumDocs(numDocs);
+            collectionStatistics.setAvgDocLen(numTokens / numDocs);
+        }
+
+        // the length normalizations depend on the average document length of the whole collection
+        // they are reused for the segments with the same doc table, also when their deletions changed
+        float[][] lengthNormalizations = new float[segments.size()][];
+        for (int i = 0; i < segments.size(); i++) {
+            int previousIndex = -1;
+            for (int j = 0; previous != null && j < previous.segments().size(); j++) {
+                if (previous.segments().get(j).docTableBuffer == segments.get(i).docTableBuffer) previousIndex = j;
+            }
+            if (previousIndex != -1 && previous.collectionStatistics().getAvgDocLen() == collectionStatistics.getAvgDocLen()) {
+                lengthNormalizations[i] = previous.lengthNormalizations()[previousIndex];
+            } else {
+                lengthNormalizations[i] = segments.get(i).computeLengthNormalizations(collectionStatistics);
+            }
+        }
+        return new IndexSnapshot(List.copyOf(segments), collectionStatistics, lengthNormalizations, catalogVersion, IndexSnapshot.newQueryCache());
     }
 
     public void commandLine(){
 
         System.out.println("Starting the command line..");
-        System.out.println("Input Format: [AND|OR] term1 ... termN");
+        System.out.println("Input Format: [AND|OR[:strategy]] term1 ... termN");
 
         try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in))) {
             String line;
@@ -73,7 +171,21 @@ public class QueryProcessor {
                     System.out.println("Shutting down...");
                     break;
                 }
-                runQuery(line, Constants.NUMBER_OF_OUTPUT_DOCUMENTS);
+                long startQuery = System.currentTimeMillis();
+                try {
+                    QueryContext context = executeQuery(line, Constants.NUMBER_OF_OUTPUT_DOCUMENTS);
+                    printQuery(context);
+                    for(DocumentScore ds : context.queryResults){
+                        System.out.println(ds.docNo() + " " + ds.score());
+                    }
+                } catch(IllegalQueryTypeException e){
+                    e.printStackTrace();
+                    System.out.println("Input Format: [AND|OR[:strategy]] term1 ... termN");
+                } catch (NoResultsFoundException e){
+                    e.printStackTrace();
+                }
+                long end = System.currentTimeMillis();
+                System.out.println(((double)(end - startQuery)/1000) + " seconds");
                 System.out.print("> ");
             }
         } catch (IOException e) {
@@ -81,42 +193,53 @@ public class QueryProcessor {
         }
     }
 
-    public SortedSet<DocumentScore> runQuery(String query, int k) {
+    private static void printQuery(QueryContext context) {
+        String[] tokens = context.tokens;
+        if (context.queryType == QueryType.CONJUNCTIVE) {
+            System.out.println("You have requested a conjunctive query with the following tokens:");
+        } else {
+            System.out.println("You have requested a disjunctive query with the following tokens:");
+        }
+        System.out.println(String.join(", ", Arrays.asList(tokens).subList(1, tokens.length)));
+        if (tokens.length > Constants.MAX_QUERY_LENGTH) {
+            System.out.println("Query too long, all the tokens after " + tokens[Constants.MAX_QUERY_LENGTH] + " are ignored");
+        }
+        System.out.println("List of preprocessed tokens:");
+        System.out.println(String.join(", ", context.preprocessedTokens));
+    }
 
-        this.k = k;
+    // can be called by several threads at once, each query has its own context
+    // returns the results without printing anything, an illegal query has no results
+    public SortedSet<DocumentScore> runQuery(String query, int k) {
+        try {
+            return executeQuery(query, k).queryResults;
+        } catch (IllegalQueryTypeException | NoResultsFoundException e) {
+            return new TreeSet<>();
+        }
+    }
 
-        long startQuery = System.currentTimeMillis();
+    // processes the query on the current index, the returned context has its tokens and its results
+    private QueryContext executeQuery(String query, int k) throws IllegalQueryTypeException, NoResultsFoundException {
 
-        boolean success = false;
+        QueryContext context;
+        boolean success;
         try {
-            success = processQuery(query);
-        } catch(IllegalQueryTypeException e){
-            e.printStackTrace();
-            System.out.println("Input Format: [AND|OR] term1 ... termN");
-        } catch (NoResultsFoundException e){
-            e.printStackTrace();
+            context = new QueryContext(refreshIndex(), k, pruningStrategy);
+            success = processQuery(query, context);
         } catch (ExecutionException | IOException e) {
             throw new RuntimeException(e);
         }
-        if(success) {
-            for(DocumentScore ds : docsPriorityQueue){
-                System.out.println(ds.docNo() + " " + ds.score());
-            }
-        }
-
-        long end = System.currentTimeMillis();
-        System.out.println(((double)(end - startQuery)/1000) + " seconds");
-
-        SortedSet<DocumentScore> results = new TreeSet<>();
 
         // if the query was successful, save query results in cache
         if (success) {
 
-            results.addAll(docsPriorityQueue);
+            SortedSet<DocumentScore> results = new TreeSet<>(context.queryResults);
 
             // updating the query cache
+            HashSet<String> tokenSet = context.tokenSet;
+            Cache<HashSet<String>, SortedSet<DocumentScore>> queryCache = context.index.queryCache();
             if (queryCache.getIfPresent(tokenSet) == null) {
-                if(queryType == QueryType.CONJUNCTIVE){
+                if(context.queryType == QueryType.CONJUNCTIVE){
                     tokenSet.add("and");
                 }
                 else{
@@ -125,43 +248,42 @@ public class QueryProcessor {
                 // save query type, query tokens and output documents
                 queryCache.put(tokenSet, results);
             }
-
-            docsPriorityQueue.clear();
         }
 
-        return results;
+        return context;
     }
 
-    public boolean processQuery(String query) throws IllegalQueryTypeException, IOException, ExecutionException, NoResultsFoundException {
+    private boolean processQuery(String query, QueryContext context) throws IllegalQueryTypeException, IOException, ExecutionException, NoResultsFoundException {
+
+        // the query type can be followed by a pruning strategy, as in OR:wand term1 ... termN
+        String trimmedQuery = query.stripLeading();
+        int queryTypeEnd = trimmedQuery.indexOf(' ') == -1 ? trimmedQuery.length() : trimmedQuery.indexOf(' ');
+        int strategySeparator = trimmedQuery.indexOf(':');
+        if (strategySeparator != -1 && strategySeparator < queryTypeEnd) {
+            try {
+                context.pruningStrategy = PruningStrategy.fromName(trimmedQuery.substring(strategySeparator + 1, queryTypeEnd));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalQueryTypeException();
+            }
+            query = trimmedQuery.substring(0, strategySeparator) + trimmedQuery.substring(queryTypeEnd);
+        }
 
         // same preprocessing as the documents
         String[] tokens = TextProcessingUtils.tokenize(query);
 
         // checking the query type
         if (tokens[0].equals("and")) {
-            queryType = QueryType.CONJUNCTIVE;
-            System.out.println("You have requested a conjunctive query with the following tokens:");
+            context.queryType = QueryType.CONJUNCTIVE;
         } else if (tokens[0].equals("or")) {
-            queryType = QueryType.DISJUNCTIVE;
-            System.out.println("You have requested a disjunctive query with the following tokens:");
+            context.queryType = QueryType.DISJUNCTIVE;
         } else {
             throw new IllegalQueryTypeException();
         }
+        context.tokens = tokens;
 
-        // printing the query tokens
-        for(int i = 1; i < tokens.length; ++i)
-            if(i < tokens.length-1)
-                System.out.print(tokens[i] + ", ");
-            else
-                System.out.print(tokens[i] + '\n');
-
-        int limit = tokens.length;
-        if (tokens.length > Constants.MAX_QUERY_LENGTH) {
-            System.out.println("Query too long, all the tokens after " + tokens[Constants.MAX_QUERY_LENGTH] + " are ignored");
-            limit = Constants.MAX_QUERY_LENGTH + 1;
-        }
-        System.out.println("List of preprocessed tokens:");
-        tokenSet = new HashSet<>();
+        // the tokens after the first MAX_QUERY_LENGTH ones are ignored
+        int limit = Math.min(tokens.length, Constants.MAX_QUERY_LENGTH + 1);
+        HashSet<String> tokenSet = context.tokenSet;
         for (int i = 1; i < limit; ++i){
             // skipping first token specifying the type of the query
             String token = tokens[i];
@@ -172,57 +294,102 @@ public class QueryProcessor {
             }
             tokenSet.add(token);
         }
-
-        // printing the query tokens
-        String[] preprocessedTokens = tokenSet.toArray(new String[tokenSet.size()]);
-        for(int i = 0; i < preprocessedTokens.length; ++i)
-            if(i < preprocessedTokens.length-1)
-                System.out.print(preprocessedTokens[i] + ", ");
-            else
-                System.out.print(preprocessedTokens[i] + '\n');
+        context.preprocessedTokens = tokenSet.toArray(new String[0]);
 
         SortedSet<DocumentScore> documentScores;
         // checking if the query has already been processed
         tokenSet.add(tokens[0]); // adding the query type
-        if ((documentScores = queryCache.getIfPresent(tokenSet)) != null) {
-            docsPriorityQueue.addAll(documentScores);
+        if ((documentScores = context.index.queryCache().getIfPresent(tokenSet)) != null) {
+            context.queryResults.addAll(documentScores);
             return true;
         }
         tokenSet.remove(tokens[0]); // removing the query type
 
-        ArrayList<PostingListInterface> postingLists = new ArrayList<>();
-
+        String[] queryTerms = tokenSet.toArray(new String[0]);
+        List<IndexSegment> segments = context.index.segments();
+        // terms' info from the lexicon of each segment, null if the segment doesn't contain the term
+        LexiconTerm[][] segmentsLexiconTerms = new LexiconTerm[segments.size()][queryTerms.length];
+        // terms with their global document frequency, used for scoring
         HashMap<String, LexiconTerm> lexiconTerms = new HashMap<>();
 
-        // retrieving the terms' info from the lexicon
-        for (String token : tokenSet) {
-            LexiconTerm lexiconTerm;
-            lexiconTerm = DiskDataStructuresSearch.lexiconDiskSearch(token, numberOfTerms, lexiconBuffer);
-
-            if (lexiconTerm == null) {
-                //if one of the query terms isn't present in the lexicon and the query type is conjunctive, no documents are returned
-                if(queryType == QueryType.CONJUNCTIVE){
-                    return false;
-                }
-                else{
-                    continue;
+        // retrieving the terms' info from the lexicons
+        for (int i = 0; i < segments.size(); i++) {
+            for (int j = 0; j < queryTerms.length; j++) {
+                LexiconTerm lexiconTerm = segments.get(i).lexiconSearch(queryTerms[j]);
+                segmentsLexiconTerms[i][j] = lexiconTerm;
+                if (lexiconTerm != null) {
+                    LexiconTerm globalLexiconTerm = lexiconTerms.computeIfAbsent(queryTerms[j], LexiconTerm::new);
+                    globalLexiconTerm.setDocumentFrequency(globalLexiconTerm.getDocumentFrequency() + lexiconTerm.getDocumentFrequency());
                 }
             }
-            lexiconTerms.put(token, lexiconTerm);
-            PostingListInterface pl = new PostingListInterface(lexiconTerm);
-            postingLists.add(pl);
         }
 
+        //if one of the query terms isn't present in the lexicon and the query type is conjunctive, no documents are returned
+        if (context.queryType == QueryType.CONJUNCTIVE && lexiconTerms.size() < queryTerms.length) {
+            return false;
+        }
+
+        // the segments share the results, so the threshold reached on a segment is used for pruning the next ones
+        boolean success = false;
+        for (int i = 0; i < segments.size(); i++) {
+            context.topK.startSegment(i);
+            if (processSegment(context, i, queryTerms, segmentsLexiconTerms[i], lexiconTerms)) {
+                success = true;
+            }
+        }
+        if (success) resolveResults(context);
+        return success;
+    }
+
+    // the docNos of the results are read from the doc table of their segment
+    private static void resolveResults(QueryContext context) {
+        TopKHeap topK = context.topK;
+        for (int i = 0; i < topK.size(); i++) {
+            IndexSegment segment = context.index.segments().get(topK.segment(i));
+            String docNo = DiskDataStructuresSearch.docTableDiskSearch(topK.docId(i), segment.docTableBuffer).getDocNo();
+            context.queryResults.add(new DocumentScore(docNo, topK.score(i)));
+        }
+    }
+
+    private boolean processSegment(QueryContext context, int segmentIndex, String[] queryTerms, LexiconTerm[] segmentLexiconTerms, HashMap<String, LexiconTerm> lexiconTerms) throws IOException {
+
+        // a conjunctive query has no results in a segment not containing all the terms
+        if (context.queryType == QueryType.CONJUNCTIVE && Arrays.asList(segmentLexiconTerms).contains(null)) {
+            return false;
+        }
+
+        IndexSegment segment = context.index.segments().get(segmentIndex);
+        CollectionStatistics collectionStatistics = context.index.collectionStatistics();
+        ArrayList<PostingListInterface> postingLists = new ArrayList<>();
+        try {
+            for (int i = 0; i < queryTerms.length; i++) {
+                LexiconTerm lexiconTerm = segmentLexiconTerms[i];
+                if (lexiconTerm == null) continue;
+                // the upper bound stored in the lexicon is computed with the statistics of the segment
+                lexiconTerm.setTermUpperBound(ScoringFunctions.BM25UpperBound(lexiconTerm.getTermUpperBound(), lexiconTerm, segment.collectionStatistics, lexiconTerms.get(queryTerms[i]), collectionStatistics));
+                PostingListInterface postingList = new PostingListInterface(lexiconTerm, segment.postings, segment.collectionStatistics);
+                postingList.setBlockMaxScoreScale(ScoringFunctions.BM25UpperBoundScale(lexiconTerm, segment.collectionStatistics, lexiconTerms.get(queryTerms[i]), collectionStatistics));
+                postingList.setIdf(ScoringFunctions.IDF(lexiconTerms.get(queryTerms[i]), collectionStatistics));
+                postingLists.add(postingList);
+            }
+            // the empty lists are removed from the copy, every list opened for the query is closed at the end
+            return processPostingLists(context, segmentIndex, segment, new ArrayList<>(postingLists));
+        } finally {
+            for (PostingListInterface postingList : postingLists) {
+                postingList.closeList();
+            }
+        }
+    }
+
+    private static boolean processPostingLists(QueryContext context, int segmentIndex, IndexSegment segment, ArrayList<PostingListInterface> postingLists) {
+
         // sorting the posting lists in increasing order of max score contribution
         Collections.sort(postingLists);
 
         // checking for empty posting lists
         for (Iterator<PostingListInterface> postingListIterator = postingLists.iterator(); postingListIterator.hasNext();) {
             PostingListInterface postingList = postingListIterator.next();
-            if (!postingList.next()) {
-                postingList.closeList();
-                postingListIterator.remove();
-            }
+            if (!postingList.next()) postingListIterator.remove();
         }
 
         if (postingLists.isEmpty()) return false;
@@ -236,28 +403,38 @@ public class QueryProcessor {
             docUpperBounds.add(i, docUpperBounds.get(i - 1) + postingLists.get(i).getTermUpperBound());
         }
 
-        switch (queryType) {
+        // BM25 length normalization of each document of the segment
+        float[] lengthNormalizations = context.index.lengthNormalizations()[segmentIndex];
+        switch (context.queryType) {
             case CONJUNCTIVE -> {
-                return processConjunctiveQuery(postingLists, docUpperBounds, lexiconTerms);
+                return processConjunctiveQuery(context.topK, postingLists, docUpperBounds, segment, lengthNormalizations);
             }
             case DISJUNCTIVE -> {
-                return processDisjunctiveQuery(postingLists, docUpperBounds, lexiconTerms);
+                return switch (context.pruningStrategy) {
+                    case MAXSCORE -> processDisjunctiveQuery(context.topK, postingLists, docUpperBounds, segment, lengthNormalizations, false);
+                    case BLOCK_MAX_MAXSCORE -> processDisjunctiveQuery(context.topK, postingLists, docUpperBounds, segment, lengthNormalizations, true);
+                    case WAND -> processDisjunctiveQueryWand(context.topK, postingLists, segment, lengthNormalizations, false);
+                    case BLOCK_MAX_WAND -> processDisjunctiveQueryWand(context.topK, postingLists, segment, lengthNormalizations, true);
+                };
             }
         }
 
         return false;
     }
 
-    private boolean processDisjunctiveQuery(List<PostingListInterface> postingLists, List<Double> docUpperBounds, HashMap<String, LexiconTerm> lexiconTerms) {
+    // with blockMax, the non essential lists are bounded by their block max scores at the current document (Block-Max MaxScore)
+    private static boolean processDisjunctiveQuery(TopKHeap topK, List<PostingListInterface> postingLists, List<Double> docUpperBounds, IndexSegment segment, float[] lengthNormalizations, boolean blockMax) {
+
+        int n = postingLists.size();
+        // for Block-Max MaxScore, upper bounds of the non essential lists at the current document, summed as docUpperBounds
+        double[] blockUpperBounds = new double[n];
 
-        // for MaxScore
-        double threshold = 0;
-        int pivot = 0;
+        // for MaxScore, starting from the results of the previous segments
+        double threshold = updateThreshold(topK);
+        int pivot = topK.isFull() ? updatePivot(0, n, docUpperBounds, threshold) : 0;
         int currentDocId;
         double score;
 
-        int n = postingLists.size();
-
         // getting the min doc id from all the posting lists
         if (!postingLists.isEmpty()) {
             currentDocId = postingLists.stream()
@@ -269,6 +446,7 @@ public class QueryProcessor {
 
         // used to keep track of terminated posting lists
         HashSet<Integer> finishedPostingLists = new HashSet<>();
+        DeletionBitmap deletedDocuments = segment.deletedDocuments;
 
         while (currentDocId != -1 && pivot < n) {
 
@@ -278,15 +456,15 @@ public class QueryProcessor {
             int next = -1;
             // BM25 score
             score = 0;
-            // loading the doc from disk
-            Document currentDoc = DiskDataStructuresSearch.docTableDiskSearch(currentDocId, docTableBuffer);
+            // deleted documents are skipped without being scored
+            boolean deleted = deletedDocuments.isDeleted(currentDocId);
 
             // essential lists
             for (int i = pivot; i < n; i++) {
                 if (finishedPostingLists.contains(i)) continue; // if the list is finished I move on
                 PostingListInterface postingList = postingLists.get(i);
                 if (postingList.getDocId() == currentDocId) {
-                    score += ScoringFunctions.BM25(currentDoc.getLength(), postingList.getFreq(), lexiconTerms.get(postingList.getTerm()), collectionStatistics);
+                    if (!deleted) score += ScoringFunctions.BM25(postingList.getFreq(), lengthNormalizations[currentDocId], postingList.getIdf());
                     // moving the pointer to the next posting (if present)
                     if (!postingList.next()) finishedPostingLists.add(i);
                 }
@@ -296,27 +474,32 @@ public class QueryProcessor {
                 }
             }
 
+            if (blockMax && !deleted) {
+                for (int i = 0; i < pivot; i++) {
+                    double blockMaxScore = finishedPostingLists.contains(i) ? 0 : postingLists.get(i).getBlockMaxScore(currentDocId);
+                    blockUpperBounds[i] = (i == 0) ? blockMaxScore : blockUpperBounds[i - 1] + blockMaxScore;
+                }
+            }
+
             // non essential lists
-            for (int i = pivot - 1; i >= 0; i--) {
+            for (int i = pivot - 1; i >= 0 && !deleted; i--) {
                 if (finishedPostingLists.contains(i)) continue; // if the list is finished I move on
                 if (score + docUpperBounds.get(i) <= threshold) break;
+                if (blockMax && score + blockUpperBounds[i] <= threshold) break;
                 PostingListInterface postingList = postingLists.get(i);
                 // moving the pointer to a docId GEQ than currentDocId (if present)
                 if (!postingList.nextGEQ(currentDocId)) {
                     finishedPostingLists.add(i);
                 }
                 if (postingList.getDocId() == currentDocId) {
-                    score += ScoringFunctions.BM25(currentDoc.getLength(), postingList.getFreq(), lexiconTerms.get(postingList.getTerm()), collectionStatistics);
+                    score += ScoringFunctions.BM25(postingList.getFreq(), lengthNormalizations[currentDocId], postingList.getIdf());
                 }
             }
 
-            DocumentScore docScore = new DocumentScore(currentDoc.getDocNo(), score);
-
             // updating the priority queue
-            if (docsPriorityQueue.size() < k || score > docsPriorityQueue.last().score()) {
-                updatePriorityQueue(docScore);
+            if (!deleted && topK.offer(currentDocId, score)) {
                 // list pivot update
-                threshold = updateThreshold();
+                threshold = updateThreshold(topK);
                 pivot = updatePivot(pivot, n, docUpperBounds, threshold);
             }
 
@@ -326,31 +509,145 @@ public class QueryProcessor {
         return true;
     }
 
-    private boolean processConjunctiveQuery(List<PostingListInterface> postingLists, List<Double> docUpperBounds, HashMap<String, LexiconTerm> lexiconTerms) {
+    // WAND: the lists are kept sorted by docId, the pivot is the first docId where the sum of the term upper bounds
+    // of the lists up to it beats the threshold, the lists before it are moved to it with nextGEQ and then it is scored
+    // with blockMax (Block-Max WAND) the pivot is scored only if the sum of the block max scores of these lists beats the threshold too,
+    // otherwise no document is scored before the end of the first of their blocks, or the docId of the next list
+    private static boolean processDisjunctiveQueryWand(TopKHeap topK, List<PostingListInterface> postingLists, IndexSegment segment, float[] lengthNormalizations, boolean blockMax) {
+
+        // the finished lists are removed from the first active ones
+        PostingListInterface[] cursors = postingLists.toArray(new PostingListInterface[0]);
+        int active = cursors.length;
+        sortByDocId(cursors, active);
+
+        // starting from the results of the previous segments
+        double threshold = updateThreshold(topK);
+        DeletionBitmap deletedDocuments = segment.deletedDocuments;
+
+        while (active > 0) {
+
+            // finding the pivot list
+            double upperBound = 0;
+            int pivot = -1;
+            for (int i = 0; i < active; i++) {
+                upperBound += cursors[i].getTermUpperBound();
+                if (upperBound > threshold) {
+                    pivot = i;
+                    break;
+                }
+            }
+            // no document left can enter the top k
+            if (pivot == -1) break;
 
-        // for MaxScore
-        double threshold = 0;
-        int pivot = 0;
-        int currentDocId;
-        double score;
+            // the lists on the same docId are all taken, so the next list starts after the pivot docId
+            int pivotDocId = cursors[pivot].getDocId();
+            while (pivot + 1 < active && cursors[pivot + 1].getDocId() == pivotDocId) {
+                pivot++;
+            }
 
-        int n = postingLists.size();
+            double blockUpperBound = upperBound;
+            if (blockMax) {
+                blockUpperBound = 0;
+                for (int i = 0; i <= pivot; i++) {
+                    blockUpperBound += cursors[i].getBlockMaxScore(pivotDocId);
+                }
+            }
 
-        // getting the max doc id from all the posting lists
-        currentDocId = postingLists.get(0).getDocId();
-        for (PostingListInterface postingList: postingLists) {
-            if (postingList.getDocId() > currentDocId) {
-                currentDocId = postingList.getDocId();
+            if (blockUpperBound > threshold) {
+                if (cursors[0].getDocId() == pivotDocId) {
+                    // all the lists up to the pivot are on the pivot docId, deleted documents are skipped without being scored
+                    boolean deleted = deletedDocuments.isDeleted(pivotDocId);
+                    double score = 0;
+                    for (int i = 0; i <= pivot; i++) {
+                        PostingListInterface postingList = cursors[i];
+                        if (!deleted) score += ScoringFunctions.BM25(postingList.getFreq(), lengthNormalizations[pivotDocId], postingList.getIdf());
+                        if (!postingList.next()) cursors[i] = null;
+                    }
+                    if (!deleted && topK.offer(pivotDocId, score)) {
+                        threshold = updateThreshold(topK);
+                    }
+                } else {
+                    // moving to the pivot docId the list before it with the highest upper bound
+                    int list = highestUpperBound(cursors, pivot, pivotDocId);
+                    if (!cursors[list].nextGEQ(pivotDocId)) cursors[list] = null;
+                }
+            } else {
+                // first docId after the blocks of the lists up to the pivot
+                long nextDocId = Integer.MAX_VALUE + 1L;
+                for (int i = 0; i <= pivot; i++) {
+                    nextDocId = Math.min(nextDocId, cursors[i].getBlockLastDocId(pivotDocId) + 1L);
+                }
+                if (pivot + 1 < active) {
+                    nextDocId = Math.min(nextDocId, cursors[pivot + 1].getDocId());
+                }
+                // the lists up to the pivot end in their last block, and there are no other lists
+                if (nextDocId > Integer.MAX_VALUE) break;
+                int list = highestUpperBound(cursors, pivot + 1, (int) nextDocId);
+                if (!cursors[list].nextGEQ((int) nextDocId)) cursors[list] = null;
+            }
+
+            // removing the finished lists and sorting again the others
+            int remaining = 0;
+            for (int i = 0; i < active; i++) {
+                if (cursors[i] != null) cursors[remaining++] = cursors[i];
+            }
+            active = remaining;
+            sortByDocId(cursors, active);
+        }
+        return true;
+    }
+
+    // insertion sort, the lists are almost sorted after moving some of them
+    private static void sortByDocId(PostingListInterface[] cursors, int length) {
+        for (int i = 1; i < length; i++) {
+            PostingListInterface postingList = cursors[i];
+            int j = i - 1;
+            while (j >= 0 && cursors[j].getDocId() > postingList.getDocId()) {
+                cursors[j + 1] = cursors[j];
+                j--;
+            }
+            cursors[j + 1] = postingList;
+        }
+    }
+
+    // list among the first ones before docId with the highest term upper bound
+    private static int highestUpperBound(PostingListInterface[] cursors, int length, int docId) {
+        int list = -1;
+        for (int i = 0; i < length; i++) {
+            if (cursors[i].getDocId() < docId && (list == -1 || cursors[i].getTermUpperBound() > cursors[list].getTermUpperBound())) {
+                list = i;
             }
         }
+        return list;
+    }
+
+    private static boolean processConjunctiveQuery(TopKHeap topK, List<PostingListInterface> postingLists, List<Double> docUpperBounds, IndexSegment segment, float[] lengthNormalizations) {
+
+        int n = postingLists.size();
+
+        // for MaxScore, starting from the results of the previous segments
+        double threshold = updateThreshold(topK);
+        int pivot = topK.isFull() ? updatePivot(0, n, docUpperBounds, threshold) : 0;
+        int currentDocId;
+        double score;
+
+        // getting the max doc id from all the posting lists
+        currentDocId = maxDocId(postingLists);
 
         // conjunctive query, if just one posting list is finished we can exit
         boolean atLeastAPostingListIsFinished = false;
+        DeletionBitmap deletedDocuments = segment.deletedDocuments;
 
         while (pivot < n && !atLeastAPostingListIsFinished) {
 
+            // deleted documents are skipped without being scored, moving an essential list past them
+            if (deletedDocuments.isDeleted(currentDocId)) {
+                if (!postingLists.get(n - 1).nextGEQ(currentDocId + 1)) atLeastAPostingListIsFinished = true;
+                currentDocId = maxDocId(postingLists);
+                continue;
+            }
+
             score = 0;
-            Document currentDoc = DiskDataStructuresSearch.docTableDiskSearch(currentDocId, docTableBuffer);
 
             // essential lists
             for (int i = pivot; i < n; i++) {
@@ -360,7 +657,7 @@ public class QueryProcessor {
                     atLeastAPostingListIsFinished = true;
                 }
                 if (postingList.getDocId() == currentDocId) {
-                    score += ScoringFunctions.BM25(currentDoc.getLength(), postingList.getFreq(), lexiconTerms.get(postingList.getTerm()), collectionStatistics);
+                    score += ScoringFunctions.BM25(postingList.getFreq(), lengthNormalizations[currentDocId], postingList.getIdf());
                     // moving the pointer to the next posting (if present)
                     if (!postingList.next()) atLeastAPostingListIsFinished = true;
                 } else { // not all the posting lists have currentDocId, so we do not score it
@@ -380,7 +677,7 @@ public class QueryProcessor {
                         atLeastAPostingListIsFinished = true;
                     }
                     if (postingList.getDocId() == currentDocId) {
-                        score += ScoringFunctions.BM25(currentDoc.getLength(), postingList.getFreq(), lexiconTerms.get(postingList.getTerm()), collectionStatistics);
+                        score += ScoringFunctions.BM25(postingList.getFreq(), lengthNormalizations[currentDocId], postingList.getIdf());
                     } else { // not all the posting lists have currentDocId, so we do not score it
                         score = -1;
                         break;
@@ -390,41 +687,36 @@ public class QueryProcessor {
 
             // if the document has been scored we update the priority queue
             if (score != -1) {
-                DocumentScore docScore = new DocumentScore(currentDoc.getDocNo(), score);
-
-                if (docsPriorityQueue.size() < k || score > docsPriorityQueue.last().score()) {
-                    updatePriorityQueue(docScore);
+                if (topK.offer(currentDocId, score)) {
                     // list pivot update
-                    threshold = updateThreshold();
+                    threshold = updateThreshold(topK);
                     pivot = updatePivot(pivot, n, docUpperBounds, threshold);
                 }
             }
 
             // current doc_id update (max of all the posting lists' current docId)
-            currentDocId = -1;
-            for (PostingListInterface postingList: postingLists) {
-                if (postingList.getDocId() > currentDocId) {
-                    currentDocId = postingList.getDocId();
-                }
-            }
+            currentDocId = maxDocId(postingLists);
         }
         return true;
     }
 
-    private void updatePriorityQueue(DocumentScore docScore) {
-        docsPriorityQueue.add(docScore);
-        if (docsPriorityQueue.size() > k) {
-            docsPriorityQueue.remove(docsPriorityQueue.last());
+    private static int maxDocId(List<PostingListInterface> postingLists) {
+        int maxDocId = -1;
+        for (PostingListInterface postingList: postingLists) {
+            if (postingList.getDocId() > maxDocId) {
+                maxDocId = postingList.getDocId();
+            }
         }
+        return maxDocId;
     }
 
-    private double updateThreshold() {
-        if(docsPriorityQueue.size() == k){
-            return docsPriorityQueue.last().score();
+    private static double updateThreshold(TopKHeap topK) {
+        if(topK.isFull()){
+            return topK.minScore();
         } else return 0.0;
     }
 
-    private int updatePivot(int pivot, int n, List<Double> docUpperBounds, double threshold) {
+    private static int updatePivot(int pivot, int n, List<Double> docUpperBounds, double threshold) {
         while (pivot < n && docUpperBounds.get(pivot) <= threshold) {
             pivot++;
         }
@@ -0,0 +1,112 @@
+package it.unipi.query.processor;
+
+// min-heap of the best k (docId, score) pairs of a query, in primitive arrays allocated once for the whole query
+// the docNos are read from the doc table only for the final results, see QueryProcessor.resolveResults
+// the documents are offered in increasing (segment, docId) order, among documents with the same score the first ones are kept
+final class TopKHeap {
+
+    private int k;
+    private int size;
+    private double[] scores = new double[0];
+    private int[] docIds = new int[0];
+    // segment of each docId, the heap is shared by the segments of the query
+    private int[] segments = new int[0];
+    // segment of the documents offered next
+    private int currentSegment;
+
+    // empties the heap for a query returning k documents
+    void reset(int k) {
+        if (k > scores.length) {
+            scores = new double[k];
+            docIds = new int[k];
+            segments = new int[k];
+        }
+        this.k = k;
+        size = 0;
+        currentSegment = 0;
+    }
+
+    void startSegment(int segment) {
+        currentSegment = segment;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isFull() {
+        return size == k;
+    }
+
+    // score of the k-th document, the one a new document has to beat
+    double minScore() {
+        return (size == 0) ? Double.POSITIVE_INFINITY : scores[0];
+    }
+
+    // adds the document if it beats the k-th one, returns true in that case
+    // a document with the same score as the k-th one comes after it, so it does not beat it
+    boolean offer(int docId, double score) {
+        if (k == 0 || (size == k && score <= scores[0])) return false;
+        if (size < k) {
+            siftUp(size++, docId, score);
+        } else {
+            siftDown(0, docId, score);
+        }
+        return true;
+    }
+
+    double score(int i) {
+        return scores[i];
+    }
+
+    int docId(int i) {
+        return docIds[i];
+    }
+
+    int segment(int i) {
+        return segments[i];
+    }
+
+    // the new document comes after all the others, so it is below the ones with its same score
+    private void siftUp(int position, int docId, double score) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (scores[parent] < score) break;
+            move(parent, position);
+            position = parent;
+        }
+        set(position, docId, score);
+    }
+
+    // replaces the root, moving the worse children up
+    private void siftDown(int position, int docId, double score) {
+        int half = size >>> 1;
+        while (position < half) {
+            int child = 2 * position + 1;
+            if (child + 1 < size && isWorse(child + 1, child)) child++;
+            if (score <= scores[child]) break;
+            move(child, position);
+            position = child;
+        }
+        set(position, docId, score);
+    }
+
+    // lower score, or same score and later document
+    private boolean isWorse(int i, int j) {
+        if (scores[i] != scores[j]) return scores[i] < scores[j];
+        if (segments[i] != segments[j]) return segments[i] > segments[j];
+        return docIds[i] > docIds[j];
+    }
+
+    private void move(int from, int to) {
+        scores[to] = scores[from];
+        docIds[to] = docIds[from];
+        segments[to] = segments[from];
+    }
+
+    private void set(int position, int docId, double score) {
+        scores[position] = score;
+        docIds[position] = docId;
+        segments[position] = currentSegment;
+    }
+}
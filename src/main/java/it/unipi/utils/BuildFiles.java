@@ -0,0 +1,81 @@
+package it.unipi.utils;
+
+// immutable class used to locate the temporary files of an index build: partial blocks, intermediate runs, term ranges and manifest
+// each build keeps them in the directory of the index it writes, so that appending a segment does not touch an interrupted build of the main index
+// the paths of the partial files are followed by the block number and the file extension
+public record BuildFiles(String directory) {
+
+    private static final String INVERTED_INDEX_PATH = "inverted_index/";
+    private static final String LEXICON_PATH = "lexicon/";
+    private static final String DOCUMENT_TABLE_PATH = "document_table/";
+
+    public static BuildFiles of(IndexFiles outputFiles) {
+        return new BuildFiles(outputFiles.directory());
+    }
+
+    // folders containing the partial files, removed once the build is complete
+    public String[] temporaryDirectories() {
+        return new String[]{directory + DOCUMENT_TABLE_PATH, directory + INVERTED_INDEX_PATH, directory + LEXICON_PATH};
+    }
+
+    // progress of the build, removed with the temporary folders
+    public String manifest() {
+        return directory + "build_manifest" + Constants.TXT_FORMAT;
+    }
+
+    public String partialPostingsDocIds() {
+        return directory + INVERTED_INDEX_PATH + "postings_doc_ids";
+    }
+
+    public String partialPostingsFrequencies() {
+        return directory + INVERTED_INDEX_PATH + "postings_frequencies";
+    }
+
+    public String partialLexicon() {
+        return directory + LEXICON_PATH + "lexicon";
+    }
+
+    public String partialDocumentTable() {
+        return directory + DOCUMENT_TABLE_PATH + "document_table";
+    }
+
+    // files of a partial block
+    public String[] partialFiles() {
+        return new String[]{partialPostingsDocIds(), partialPostingsFrequencies(), partialLexicon(), partialDocumentTable()};
+    }
+
+    // files written by the threads merging the term ranges
+    public String rangePostingsDocIds() {
+        return directory + INVERTED_INDEX_PATH + "range_postings_doc_ids";
+    }
+
+    public String rangePostingsFrequencies() {
+        return directory + INVERTED_INDEX_PATH + "range_postings_frequencies";
+    }
+
+    public String rangeLexicon() {
+        return directory + LEXICON_PATH + "range_lexicon";
+    }
+
+    // intermediate runs of a multi-level merge, same format of the partial files
+    public String runPostingsDocIds() {
+        return directory + INVERTED_INDEX_PATH + "run_postings_doc_ids";
+    }
+
+    public String runPostingsFrequencies() {
+        return directory + INVERTED_INDEX_PATH + "run_postings_frequencies";
+    }
+
+    public String runLexicon() {
+        return directory + LEXICON_PATH + "run_lexicon";
+    }
+
+    public String runDocumentTable() {
+        return directory + DOCUMENT_TABLE_PATH + "run_document_table";
+    }
+
+    // same order of the partial files
+    public String[] runFiles() {
+        return new String[]{runPostingsDocIds(), runPostingsFrequencies(), runLexicon(), runDocumentTable()};
+    }
+}
@@ -3,42 +3,90 @@ package it.unipi.utils;
 public final class Constants {
 
     // file paths
-    public static final String[] DIRECTORIES_PATHS = new String[]{"./resources", "./resources/document_table/", "./resources/inverted_index/", "./resources/lexicon/" };
-    public static final String[] TEMPORARY_DIRECTORIES_PATHS = new String[]{"./resources/document_table/", "./resources/inverted_index/", "./resources/lexicon/" };
-    private static final String RESOURCES_PATH = "./resources/";
-    private static final String INVERTED_INDEX_PATH = "inverted_index/";
+    public static final String RESOURCES_PATH = "./resources/";
 
-    public static final String PARTIAL_POSTINGS_DOC_IDS_FILE_PATH = RESOURCES_PATH + INVERTED_INDEX_PATH + "postings_doc_ids";
     public static final String POSTINGS_DOC_IDS_FILE_PATH = RESOURCES_PATH + "postings_doc_ids";
-    public static final String PARTIAL_POSTINGS_FREQUENCIES_FILE_PATH = RESOURCES_PATH + INVERTED_INDEX_PATH + "postings_frequencies";
     public static final String POSTINGS_FREQUENCIES_FILE_PATH = RESOURCES_PATH + "postings_frequencies";
 
     public static final String LEXICON_FILE_PATH = RESOURCES_PATH + "lexicon";
-    public static final String PARTIAL_LEXICON_FILE_PATH = RESOURCES_PATH + "lexicon/lexicon";
 
     public static final String DOCUMENT_TABLE_FILE_PATH = RESOURCES_PATH + "document_table";
-    public static final String PARTIAL_DOCUMENT_TABLE_FILE_PATH = RESOURCES_PATH + "document_table/document_table";
 
     public static final String COLLECTION_STATISTICS_FILE_PATH = RESOURCES_PATH + "collection_statistics";
 
+    // timers and counters of the last build
+    public static final String BUILD_REPORT_FILE_PATH = RESOURCES_PATH + "build_report.json";
+    // segments added to the main index in append mode, each one in its own directory
+    public static final String SEGMENTS_PATH = RESOURCES_PATH + "segments/";
+    public static final String SEGMENTS_CATALOG_FILE_PATH = SEGMENTS_PATH + "segments";
+    // held while writing the catalog, which is also written by the background merges running in other processes
+    public static final String SEGMENTS_CATALOG_LOCK_FILE_PATH = SEGMENTS_PATH + "segments.lock";
+    // held by the process merging the segments, so that two merges never take the same segments
+    public static final String SEGMENTS_MERGE_LOCK_FILE_PATH = SEGMENTS_PATH + "merge.lock";
+    // output of the background merges
+    public static final String SEGMENTS_MERGE_LOG_FILE_PATH = SEGMENTS_PATH + "merge.log";
+
     public static final String COLLECTION_PATH = "./collection/collection.tar.gz";
     public static final String STOPWORDS_PATH = RESOURCES_PATH + "stopwords.txt";
 
     public static final String DAT_FORMAT = ".dat";
     public static final String TXT_FORMAT = ".txt";
 
-    // memory percentages for SPIMI implementation
-    public static final double MEMORY_FULL_THRESHOLD_PERCENTAGE = 0.75;
-    public static final double MEMORY_ENOUGH_THRESHOLD_PERCENTAGE = 0.25;
+    // default memory budget (in MB) of the SPIMI blocks being built, shared among the indexing workers
+    public static final long DEFAULT_INDEXING_MEMORY_BUDGET = 512;
+    // default number of full blocks that can wait to be written to disk
+    public static final int DEFAULT_MAX_IN_FLIGHT_BLOCKS = 2;
+    // the term space is split in MERGE_RANGES_PER_THREAD ranges for each merging thread, sampling MERGE_SAMPLES_PER_RANGE terms per range from each block
+    public static final int MERGE_RANGES_PER_THREAD = 4;
+    public static final int MERGE_SAMPLES_PER_RANGE = 16;
+    // default maximum number of blocks opened at the same time by all the concurrent merges, more blocks are first merged in intermediate runs
+    public static final int DEFAULT_MERGE_FAN_IN = 64;
+    // size of the buffers of the files read and written during merge
+    public static final int MERGE_BUFFER_SIZE = 128 * 1024;
+    // default number of segments of the same tier merged together in the background
+    public static final int DEFAULT_SEGMENT_MERGE_FACTOR = 10;
+    // time (in ms) a segment removed from the catalog is kept on disk, so that the query processors still reading it
+    // see the new catalog and finish their queries on it before it is deleted
+    public static final long RETIRED_SEGMENTS_GRACE_PERIOD = 60_000;
+    // time (in ms) between two checks of the query processor for appended segments, compactions and deleted documents
+    public static final long INDEX_REFRESH_INTERVAL = 1000;
+    // default maximum number of tokens whose stem is cached
+    public static final long DEFAULT_STEMMING_CACHE_SIZE = 100_000;
+    // default number of threads reading the chunks of the collection
+    public static final int DEFAULT_READING_THREADS = 2;
+    // default maximum size (in MB) of the chunks an uncompressed collection is split into
+    public static final long DEFAULT_COLLECTION_CHUNK_SIZE = 64;
+    // number of collection lines handed over to an indexing worker at a time
+    public static final int INDEXING_BATCH_SIZE = 1000;
 
     // 20 (term) + 4 (df) + 4 (cf) + 8 (docIdOffset) + 8 (freqOffset) + 4 (docIdSize) + 4 (docIdSize) + 8 (termUpperBound) = 60 bytes
     public static final int LEXICON_ENTRY_SIZE = 60;
+    // 4 (numDocs) + 8 (avgDocLen) + 1 (postings codec) + 1 (block max scores) = 14 bytes
+    public static final int COLLECTION_STATISTICS_SIZE = 14;
     // 30 (doc_no) + 4 (docId) + 4 (length) = 38 bytes
     public static final int DOCUMENT_ENTRY_SIZE = 38;
 
     public static final int SKIP_POINTERS_THRESHOLD = 1024;
     // 4 (docId) + 8 (docId offset) + 8 (frequency offset) = 20 bytes
     public static final int SKIP_BLOCK_DIMENSION = 20;
+    // maximum BM25 score of a skip block, a float for each block after the skip pointers of the posting lists having them
+    public static final int BLOCK_MAX_SCORE_SIZE = 4;
+    // number of postings of a block of the bit packed codec
+    public static final int BIT_PACKED_BLOCK_SIZE = 128;
+    // 4 (first docId) + 4 (docId offset) + 4 (frequency offset) = 12 bytes
+    public static final int BIT_PACKED_SKIP_ENTRY_SIZE = 12;
+    // 4 (first docId) + 4 (block offset) = 8 bytes
+    public static final int INTERLEAVED_SKIP_ENTRY_SIZE = 8;
+    // representation of the docIds of a term with the bit packed codec, first byte of its docIds posting list
+    public static final byte BIT_PACKED_DOC_IDS = 0;
+    public static final byte ELIAS_FANO_DOC_IDS = 1;
+    // the docIds of the terms with a longer posting list are Elias-Fano encoded even if the bit packed blocks are smaller,
+    // and written while they are merged, the shorter ones are kept in memory until the smaller representation is known
+    public static final int ELIAS_FANO_THRESHOLD = 4096;
+    // 4 (upper bits position) + 4 (frequency offset) = 8 bytes
+    public static final int ELIAS_FANO_SKIP_ENTRY_SIZE = 8;
+    // a sample of the position in the upper bits every ELIAS_FANO_SAMPLING high parts
+    public static final int ELIAS_FANO_SAMPLING = 256;
     public static final int MAX_TERM_LEN = 20; // in bytes
 
     // using typical values
@@ -0,0 +1,58 @@
+package it.unipi.utils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+
+// deleted documents of the main index or of a segment, one bit for each docId
+// on disk it is a sequence of big endian longs, the file exists only if at least a document was deleted
+public class DeletionBitmap {
+
+    private final long[] words;
+    private int numberOfDeletedDocuments;
+
+    // bitmap with no deleted document
+    public DeletionBitmap(int numDocs) {
+        words = new long[(numDocs >>> 6) + 1];
+    }
+
+    public static DeletionBitmap load(IndexFiles files, int numDocs) throws IOException {
+        DeletionBitmap deletionBitmap = new DeletionBitmap(numDocs);
+        Path path = Paths.get(files.deletedDocuments());
+        if (!Files.exists(path)) return deletionBitmap;
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        for (int i = 0; i < deletionBitmap.words.length && buffer.remaining() >= 8; i++) {
+            deletionBitmap.words[i] = buffer.getLong();
+            deletionBitmap.numberOfDeletedDocuments += Long.bitCount(deletionBitmap.words[i]);
+        }
+        return deletionBitmap;
+    }
+
+    // called for each posting during query processing, so it is just a bit test
+    public boolean isDeleted(int docId) {
+        return (words[docId >>> 6] & (1L << docId)) != 0;
+    }
+
+    // returns false if the document was already deleted
+    public boolean delete(int docId) {
+        if (isDeleted(docId)) return false;
+        words[docId >>> 6] |= 1L << docId;
+        numberOfDeletedDocuments++;
+        return true;
+    }
+
+    public int getNumberOfDeletedDocuments() {
+        return numberOfDeletedDocuments;
+    }
+
+    // the file is replaced atomically, so a query processor never reads a partial bitmap
+    public void write(IndexFiles files) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * words.length);
+        for (long word : words) {
+            buffer.putLong(word);
+        }
+        Path temporaryFile = Paths.get(files.deletedDocuments() + ".tmp");
+        Files.write(temporaryFile, buffer.array());
+        Files.move(temporaryFile, Paths.get(files.deletedDocuments()), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
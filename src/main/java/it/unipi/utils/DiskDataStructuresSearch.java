@@ -4,13 +4,18 @@ import it.unipi.models.*;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 
 public class DiskDataStructuresSearch {
     public static CollectionStatistics readCollectionStatistics(){
+        return readCollectionStatistics(IndexFiles.MAIN_INDEX);
+    }
+
+    public static CollectionStatistics readCollectionStatistics(IndexFiles indexFiles){
         CollectionStatistics collectionStatistics = new CollectionStatistics();
-        try (FileInputStream fisCollectionStatistics = new FileInputStream(Constants.COLLECTION_STATISTICS_FILE_PATH + Constants.DAT_FORMAT)){
-            byte[] csBytes = fisCollectionStatistics.readNBytes(12);
+        try (FileInputStream fisCollectionStatistics = new FileInputStream(indexFiles.collectionStatistics())){
+            byte[] csBytes = fisCollectionStatistics.readNBytes(Constants.COLLECTION_STATISTICS_SIZE);
             collectionStatistics.deserializeBinary(csBytes);
         } catch (IOException e) {
             e.printStackTrace();
@@ -19,24 +24,29 @@ public class DiskDataStructuresSearch {
     }
 
     // retrieves a Document from the doc table given a docId
-    public static Document docTableDiskSearch(int docId, MappedByteBuffer docTableBuffer) {
+    // the searches read at absolute offsets without moving the position of the buffer, so threads can share it
+    public static Document docTableDiskSearch(int docId, ByteBuffer docTableBuffer) {
         Document doc = new Document();
         // doc table is ordered on the basis of docIds
         int fileSeekPointer = docId * Constants.DOCUMENT_ENTRY_SIZE;
-        // position the pointer at the start of the entry for the docId to retrieve
-        docTableBuffer.position(fileSeekPointer);
         byte[] result = new byte[Constants.DOCUMENT_ENTRY_SIZE];
         // retrieve the number of bytes corresponding to a doc table entry
-        docTableBuffer.get(result, 0, Constants.DOCUMENT_ENTRY_SIZE);
+        docTableBuffer.get(fileSeekPointer, result, 0, Constants.DOCUMENT_ENTRY_SIZE);
         doc.deserializeBinary(result);
         return doc;
     }
 
+    // length of a document, read without decoding the rest of its doc table entry
+    public static int docLength(int docId, ByteBuffer docTableBuffer) {
+        return docTableBuffer.getInt(docId * Constants.DOCUMENT_ENTRY_SIZE + Constants.DOCUMENT_ENTRY_SIZE - 4);
+    }
+
     // retrieves a term from the lexicon using binary search
     public static LexiconTerm lexiconDiskSearch(String term, int numberOfTerms, MappedByteBuffer lexiconBuffer) {
         int pointer;
 
         LexiconTerm currentEntry = new LexiconTerm();
+        byte[] buffer = new byte[Constants.LEXICON_ENTRY_SIZE];
         int leftExtreme = 0;
         int rightExtreme = numberOfTerms;
 
@@ -44,11 +54,9 @@ public class DiskDataStructuresSearch {
 
             //update file pointer
             pointer = (leftExtreme + ((rightExtreme - leftExtreme) / 2)) * Constants.LEXICON_ENTRY_SIZE;
-            lexiconBuffer.position(pointer);
-            byte[] buffer = new byte[Constants.LEXICON_ENTRY_SIZE];
 
             //retrieve and decode term
-            lexiconBuffer.get(buffer, 0, Constants.LEXICON_ENTRY_SIZE);
+            lexiconBuffer.get(pointer, buffer, 0, Constants.LEXICON_ENTRY_SIZE);
             String currentTerm = currentEntry.deserializeTerm(buffer);
 
             //check if the term is lexicographically greater, lower or equal the searched term
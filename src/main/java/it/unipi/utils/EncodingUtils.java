@@ -2,6 +2,8 @@ package it.unipi.utils;
 
 import com.google.common.primitives.Bytes;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
@@ -45,6 +47,118 @@ public class EncodingUtils {
         return byteStream;
     }
 
+    // VariableByte encoding of a single number directly into the stream, returns the number of bytes written
+    public static int encode(int n, OutputStream outputStream) throws IOException {
+        // number of 7 bits groups
+        int length = 1;
+        while (length < 5 && (n >>> (7 * length)) != 0) {
+            length++;
+        }
+        for (int i = length - 1; i > 0; i--) {
+            outputStream.write((n >>> (7 * i)) & 127);
+        }
+        outputStream.write((n & 127) + 128);
+        return length;
+    }
+
+    // bit packing of a block of less than 256 values, with the bit width minimizing the size of the block (PForDelta):
+    // the values needing more bits are exceptions, whose high bits are stored after the packed ones
+    // layout: bit width, number of exceptions, the low bits of each value packed in ints, then position and VariableByte high bits of each exception
+    // returns the number of bytes written
+    public static int encodeBitPacked(int[] values, int length, OutputStream outputStream) throws IOException {
+        // number of values for each bit length
+        int[] bitLengths = new int[33];
+        for (int i = 0; i < length; i++) {
+            bitLengths[32 - Integer.numberOfLeadingZeros(values[i])]++;
+        }
+        int bitWidth = 32;
+        int minimumSize = Integer.MAX_VALUE;
+        for (int candidate = 0; candidate <= 32; candidate++) {
+            int size = 4 * ((length * candidate + 31) >>> 5);
+            for (int bitLength = candidate + 1; bitLength <= 32; bitLength++) {
+                size += bitLengths[bitLength] * (1 + (bitLength - candidate + 6) / 7);
+            }
+            if (size < minimumSize) {
+                minimumSize = size;
+                bitWidth = candidate;
+            }
+        }
+
+        int numberOfExceptions = 0;
+        for (int bitLength = bitWidth + 1; bitLength <= 32; bitLength++) {
+            numberOfExceptions += bitLengths[bitLength];
+        }
+        outputStream.write(bitWidth);
+        outputStream.write(numberOfExceptions);
+        int bytesWritten = 2;
+
+        long mask = (1L << bitWidth) - 1;
+        long packed = 0;
+        int packedBits = 0;
+        for (int i = 0; i < length; i++) {
+            packed |= (values[i] & mask) << packedBits;
+            packedBits += bitWidth;
+            if (packedBits >= 32) {
+                bytesWritten += writeInt((int) packed, outputStream);
+                packed >>>= 32;
+                packedBits -= 32;
+            }
+        }
+        if (packedBits > 0) {
+            bytesWritten += writeInt((int) packed, outputStream);
+        }
+
+        for (int i = 0; i < length && numberOfExceptions > 0; i++) {
+            if ((values[i] >>> bitWidth) != 0) {
+                outputStream.write(i);
+                bytesWritten += 1 + encode(values[i] >>> bitWidth, outputStream);
+            }
+        }
+        return bytesWritten;
+    }
+
+    // decodes a block written by encodeBitPacked starting at position, returns the position following the block
+    public static int decodeBitPacked(ByteBuffer buffer, int position, int[] values, int length) {
+        int bitWidth = buffer.get(position) & 0xff;
+        int numberOfExceptions = buffer.get(position + 1) & 0xff;
+        position += 2;
+
+        long mask = (1L << bitWidth) - 1;
+        long packed = 0;
+        int packedBits = 0;
+        for (int i = 0; i < length; i++) {
+            if (packedBits < bitWidth) {
+                packed |= (buffer.getInt(position) & 0xffffffffL) << packedBits;
+                position += 4;
+                packedBits += 32;
+            }
+            values[i] = (int) (packed & mask);
+            packed >>>= bitWidth;
+            packedBits -= bitWidth;
+        }
+
+        for (int i = 0; i < numberOfExceptions; i++) {
+            int exceptionPosition = buffer.get(position++) & 0xff;
+            int highBits = 0;
+            int unsignedByte;
+            do {
+                unsignedByte = buffer.get(position++) & 0xff;
+                highBits = (highBits << 7) | (unsignedByte & 127);
+            } while (unsignedByte < 128);
+            values[exceptionPosition] |= highBits << bitWidth;
+        }
+        return position;
+    }
+
+    // big endian, as ByteBuffer.getInt
+    private static int writeInt(int value, OutputStream outputStream) throws IOException {
+        outputStream.write(value >>> 24);
+        outputStream.write(value >>> 16);
+        outputStream.write(value >>> 8);
+        outputStream.write(value);
+        return 4;
+    }
+
     // useful if we don't want to decode the whole posting lists for creating skip pointers
     public static int getEncodingLength(List<Integer> numbers){
         int bytesLength = 0;
@@ -93,6 +207,15 @@ public class EncodingUtils {
         return byteBuffer.array();
     }
 
+    // given an array of (docId, frequency) pairs returns the byte representation of the docIds (first = 0) or of the frequencies (first = 1)
+    public static byte[] intPairsToByteArray(int[] pairs, int first, int numberOfPairs) {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(numberOfPairs * 4);
+        for (int i = first; i < 2 * numberOfPairs; i += 2) {
+            byteBuffer.putInt(pairs[i]);
+        }
+        return byteBuffer.array();
+    }
+
     //given a double return the byte representation
     public static byte[] doubleToByteArray(double value) {
         return ByteBuffer.allocate(8).putDouble(value).array();
@@ -14,20 +14,26 @@ import java.util.stream.Stream;
 
 public final class FileSystemUtils {
 
-    // creates the necessary directories in order to avoid exceptions
-    public static void setupEnvironment(){
+    // creates the necessary directories of a build in order to avoid exceptions
+    public static void setupEnvironment(BuildFiles buildFiles){
         try {
-            for(String directory: Constants.DIRECTORIES_PATHS)
+            for(String directory: buildFiles.temporaryDirectories())
                 Files.createDirectories(Paths.get(directory));
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    // removes the folders containing the partial files
-    public static void deleteTemporaryFolders(){
-        for(String directory: Constants.TEMPORARY_DIRECTORIES_PATHS) {
+    // removes the folders containing the partial files and the manifest of the build
+    public static void deleteTemporaryFolders(BuildFiles buildFiles){
+        try {
+            Files.deleteIfExists(Paths.get(buildFiles.manifest()));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for(String directory: buildFiles.temporaryDirectories()) {
             Path pathToBeDeleted = Paths.get(directory);
+            if (!Files.exists(pathToBeDeleted)) continue;
             try (Stream<Path> files = Files.walk(pathToBeDeleted)) {
                 files.sorted(Comparator.reverseOrder())
                         .map(Path::toFile)
@@ -0,0 +1,37 @@
+package it.unipi.utils;
+
+// immutable class used to locate the files of a binary index
+// the main index is in ./resources/, each segment added in append mode has its own directory with the same files
+public record IndexFiles(String directory) {
+
+    public static final IndexFiles MAIN_INDEX = new IndexFiles(Constants.RESOURCES_PATH);
+
+    public static IndexFiles ofSegment(String segmentName) {
+        return new IndexFiles(Constants.SEGMENTS_PATH + segmentName + "/");
+    }
+
+    public String postingsDocIds() {
+        return directory + "postings_doc_ids" + Constants.DAT_FORMAT;
+    }
+
+    public String postingsFrequencies() {
+        return directory + "postings_frequencies" + Constants.DAT_FORMAT;
+    }
+
+    public String lexicon() {
+        return directory + "lexicon" + Constants.DAT_FORMAT;
+    }
+
+    public String documentTable() {
+        return directory + "document_table" + Constants.DAT_FORMAT;
+    }
+
+    public String collectionStatistics() {
+        return directory + "collection_statistics" + Constants.DAT_FORMAT;
+    }
+
+    // missing if no document of the index was deleted
+    public String deletedDocuments() {
+        return directory + "deleted_documents" + Constants.DAT_FORMAT;
+    }
+}
@@ -0,0 +1,174 @@
+package it.unipi.utils;
+
+import org.apache.commons.configuration2.ex.ConfigurationException;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+// timers and counters of the phases of an index build, reported as JSON at the end of the build
+// the coarse timers (once for each batch, block or merge range) are always on, the fine ones (once for each token or posting)
+// only if the indexingProfiling property is true, since they cost more than some of the phases they measure
+// the time of a phase is summed over the threads running it
+public final class IndexingProfiler {
+
+    public enum Phase {
+        // decoding and splitting the collection in lines
+        READING,
+        // processing the documents, stopword filtering and stemming included unless they are measured on their own
+        TOKENIZING,
+        STOPWORDS,
+        STEMMING,
+        // adding the postings to the SPIMI blocks
+        ACCUMULATION,
+        // workers waiting for the docIds of their batch or for a block to be written
+        DOCID_WAIT,
+        FLUSH_WAIT,
+        BLOCK_FLUSH,
+        RUN_MERGE,
+        DOCUMENT_TABLE_MERGE,
+        LENGTH_NORMALIZATIONS,
+        // merge of the posting lists, the three following phases included
+        POSTINGS_MERGE,
+        MERGE_DECODING,
+        ENCODING,
+        UPPER_BOUNDS,
+        CONCATENATION
+    }
+
+    public enum Counter {
+        DOCUMENTS, TOKENS, INPUT_BYTES, BLOCKS, RUNS, TERMS, POSTINGS
+    }
+
+    // fine grained timers
+    public static final boolean DETAILED;
+
+    private static final LongAdder[] phaseNanos = new LongAdder[Phase.values().length];
+    private static final LongAdder[] phaseCalls = new LongAdder[Phase.values().length];
+    private static final LongAdder[] counters = new LongAdder[Counter.values().length];
+
+    static {
+        try {
+            DETAILED = FileSystemUtils.loadAppProperties().getBoolean("indexingProfiling", false);
+        } catch (IOException | ConfigurationException e) {
+            throw new RuntimeException(e);
+        }
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i] = new LongAdder();
+            phaseCalls[i] = new LongAdder();
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    private IndexingProfiler() {
+    }
+
+    // called at the start of a build
+    public static void reset() {
+        for (int i = 0; i < phaseNanos.length; i++) {
+            phaseNanos[i].reset();
+            phaseCalls[i].reset();
+        }
+        for (LongAdder counter : counters) {
+            counter.reset();
+        }
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP) memoryPool.resetPeakUsage();
+        }
+    }
+
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    public static void stop(Phase phase, long start) {
+        phaseNanos[phase.ordinal()].add(System.nanoTime() - start);
+        phaseCalls[phase.ordinal()].increment();
+    }
+
+    // stops the phase and returns the start of the next one
+    public static long lap(Phase phase, long start) {
+        long now = System.nanoTime();
+        phaseNanos[phase.ordinal()].add(now - start);
+        phaseCalls[phase.ordinal()].increment();
+        return now;
+    }
+
+    // the fine grained timers are no-ops unless DETAILED
+    public static long startDetailed() {
+        return DETAILED ? System.nanoTime() : 0;
+    }
+
+    public static void stopDetailed(Phase phase, long start) {
+        if (DETAILED) stop(phase, start);
+    }
+
+    public static long lapDetailed(Phase phase, long start) {
+        return DETAILED ? lap(phase, start) : 0;
+    }
+
+    public static void count(Counter counter, long value) {
+        counters[counter.ordinal()].add(value);
+    }
+
+    // sum of the peaks of the heap memory pools since the last reset
+    private static long peakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean memoryPool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (memoryPool.getType() == MemoryType.HEAP) peak += memoryPool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    public static String toJson(long indexingMillis, long mergeMillis) {
+        double indexingSeconds = Math.max(indexingMillis, 1) / 1000.0;
+        long documents = counters[Counter.DOCUMENTS.ordinal()].sum();
+        double inputMegabytes = counters[Counter.INPUT_BYTES.ordinal()].sum() / (1024.0 * 1024.0);
+
+        StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"detailed\": ").append(DETAILED).append(",\n");
+        json.append("  \"wallTimeMs\": {\"indexing\": ").append(indexingMillis).append(", \"merge\": ").append(mergeMillis)
+                .append(", \"total\": ").append(indexingMillis + mergeMillis).append("},\n");
+        json.append(String.format(Locale.ROOT, "  \"throughput\": {\"documentsPerSecond\": %.1f, \"megabytesPerSecond\": %.2f},%n",
+                documents / indexingSeconds, inputMegabytes / indexingSeconds));
+        json.append("  \"counters\": {");
+        for (Counter counter : Counter.values()) {
+            json.append(counter.ordinal() == 0 ? "" : ", ").append('"').append(camelCase(counter.name())).append("\": ").append(counters[counter.ordinal()].sum());
+        }
+        json.append("},\n");
+        json.append(String.format(Locale.ROOT, "  \"peakHeapMegabytes\": %.1f,%n", peakHeapBytes() / (1024.0 * 1024.0)));
+        json.append("  \"phases\": {\n");
+        for (Phase phase : Phase.values()) {
+            long nanos = phaseNanos[phase.ordinal()].sum();
+            // without the fine timers, stopword filtering and stemming are part of the tokenization
+            if (phase == Phase.TOKENIZING) {
+                nanos -= phaseNanos[Phase.STOPWORDS.ordinal()].sum() + phaseNanos[Phase.STEMMING.ordinal()].sum();
+            }
+            json.append(String.format(Locale.ROOT, "    \"%s\": {\"threadTimeMs\": %.1f, \"calls\": %d}%s%n",
+                    camelCase(phase.name()), nanos / 1e6, phaseCalls[phase.ordinal()].sum(), phase.ordinal() == Phase.values().length - 1 ? "" : ","));
+        }
+        json.append("  }\n}\n");
+        return json.toString();
+    }
+
+    public static void writeReport(String path, long indexingMillis, long mergeMillis) throws IOException {
+        Files.writeString(Paths.get(path), toJson(indexingMillis, mergeMillis), StandardCharsets.UTF_8);
+        System.out.println("Build report written to " + path);
+    }
+
+    private static String camelCase(String name) {
+        StringBuilder camelCase = new StringBuilder();
+        for (String word : name.toLowerCase(Locale.ROOT).split("_")) {
+            camelCase.append(camelCase.length() == 0 ? word : Character.toUpperCase(word.charAt(0)) + word.substring(1));
+        }
+        return camelCase.toString();
+    }
+}
@@ -0,0 +1,63 @@
+package it.unipi.utils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+
+// memory mapping of the posting files of an index, done once and shared by all its posting lists
+// each posting list reads a view of its own portion, so opening a list neither opens the files nor loads its pages
+public final class MappedPostings {
+
+    private final MappedFile docIds;
+    private final MappedFile frequencies;
+
+    public MappedPostings(IndexFiles files) throws IOException {
+        docIds = new MappedFile(files.postingsDocIds());
+        frequencies = new MappedFile(files.postingsFrequencies());
+    }
+
+    // view of the docIds posting list starting at offset, its position 0 is the first byte of the list
+    public ByteBuffer docIds(long offset, int size) throws IOException {
+        return docIds.slice(offset, size);
+    }
+
+    public ByteBuffer frequencies(long offset, int size) throws IOException {
+        return frequencies.slice(offset, size);
+    }
+
+    // a single mapping is limited to 2 GB, so a larger file is mapped in windows starting every WINDOW_STRIDE bytes:
+    // each window is almost twice as long, so a posting list not longer than the stride is entirely in the window where it starts
+    private static final class MappedFile {
+
+        private static final long WINDOW_STRIDE = 1L << 30;
+
+        private final String path;
+        private final MappedByteBuffer[] windows;
+
+        MappedFile(String path) throws IOException {
+            this.path = path;
+            try (FileChannel channel = FileChannel.open(Paths.get(path))) {
+                long size = channel.size();
+                windows = new MappedByteBuffer[(size <= Integer.MAX_VALUE) ? 1 : (int) ((size - 1) / WINDOW_STRIDE + 1)];
+                for (int i = 0; i < windows.length; i++) {
+                    long start = i * WINDOW_STRIDE;
+                    windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, Integer.MAX_VALUE));
+                }
+            }
+        }
+
+        ByteBuffer slice(long offset, int size) throws IOException {
+            int window = (int) Math.min(offset / WINDOW_STRIDE, windows.length - 1);
+            long start = window * WINDOW_STRIDE;
+            if (offset + size <= start + windows[window].capacity()) {
+                return windows[window].slice((int) (offset - start), size);
+            }
+            // longer than the stride, mapped on its own
+            try (FileChannel channel = FileChannel.open(Paths.get(path))) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+            }
+        }
+    }
+}
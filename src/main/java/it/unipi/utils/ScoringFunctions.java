@@ -5,10 +5,46 @@ import it.unipi.models.LexiconTerm;
 
 public class ScoringFunctions {
     public static double BM25(int docLength, int termDocFreq, LexiconTerm term, CollectionStatistics cs){
-        int docFreq = term.getDocumentFrequency();
-        double avgDocLen = cs.getAvgDocLen();
         // compute partial score
-        return ((double) termDocFreq / ((Constants.K_BM25*((1 - Constants.B_BM25) + Constants.B_BM25 * ( (double) docLength / avgDocLen))) + termDocFreq)) * Math.log((double) cs.getNumDocs() / docFreq);
+        return BM25(termDocFreq, BM25LengthNormalization(docLength, cs), IDF(term, cs));
+    }
+
+    // BM25 with the document and term dependent factors already computed
+    public static double BM25(int termDocFreq, double lengthNormalization, double idf){
+        return ((double) termDocFreq / (lengthNormalization + termDocFreq)) * idf;
+    }
+
+    // document dependent part of the BM25 denominator, it doesn't depend on the term
+    public static double BM25LengthNormalization(int docLength, CollectionStatistics cs){
+        return Constants.K_BM25*((1 - Constants.B_BM25) + Constants.B_BM25 * ( (double) docLength / cs.getAvgDocLen()));
+    }
+
+    public static double IDF(LexiconTerm term, CollectionStatistics cs){
+        return Math.log((double) cs.getNumDocs() / term.getDocumentFrequency());
+    }
+
+    // upper bound of the BM25 scores of a term in a segment, computed with the statistics of the segment, rescaled to global statistics
+    // idf is rescaled exactly, while the length normalization part grows at most by globalAvgDocLen / segmentAvgDocLen
+    // the result is never more than the global idf, since termDocFreq / (lengthNormalization + termDocFreq) < 1
+    public static double BM25UpperBound(double segmentUpperBound, LexiconTerm segmentTerm, CollectionStatistics segmentStatistics, LexiconTerm term, CollectionStatistics cs){
+        double segmentIdf = IDF(segmentTerm, segmentStatistics);
+        double idf = IDF(term, cs);
+        double lengthFactor = Math.max(1, cs.getAvgDocLen() / segmentStatistics.getAvgDocLen());
+        // same statistics, e.g. a single segment
+        if (segmentIdf == idf && lengthFactor == 1) return segmentUpperBound;
+        if (segmentIdf <= 0) return idf;
+        return Math.min(idf, segmentUpperBound / segmentIdf * idf * lengthFactor);
+    }
+
+    // factor rescaling the block max scores of a term in a segment to global statistics, as in BM25UpperBound
+    // the rescaled scores are then capped by the rescaled term upper bound, infinite if they can not be rescaled
+    public static double BM25UpperBoundScale(LexiconTerm segmentTerm, CollectionStatistics segmentStatistics, LexiconTerm term, CollectionStatistics cs){
+        double segmentIdf = IDF(segmentTerm, segmentStatistics);
+        double idf = IDF(term, cs);
+        double lengthFactor = Math.max(1, cs.getAvgDocLen() / segmentStatistics.getAvgDocLen());
+        if (segmentIdf == idf && lengthFactor == 1) return 1;
+        if (segmentIdf <= 0) return Double.POSITIVE_INFINITY;
+        return idf / segmentIdf * lengthFactor;
     }
 
     public static double TFIDF(int termDocFreq, LexiconTerm term, CollectionStatistics cs){
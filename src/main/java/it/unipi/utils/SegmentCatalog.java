@@ -0,0 +1,278 @@
+package it.unipi.utils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+// list of the live segments added to the main index in append mode, one name for each line
+// a segment becomes visible to the query processor only once it is in the catalog
+// a segment removed from the catalog is retired: it stays on disk, listed as "retired <name> <time of removal>", for
+// RETIRED_SEGMENTS_GRACE_PERIOD ms, since the query processors open its posting files until they see the new catalog
+// the main index is in resources/, unless it was compacted into a segment directory, listed as "main <name>"
+public final class SegmentCatalog {
+
+    private static final Path CATALOG = Paths.get(Constants.SEGMENTS_CATALOG_FILE_PATH + Constants.TXT_FORMAT);
+    private static final String SEGMENT_PREFIX = "segment_";
+    private static final String RETIRED_PREFIX = "retired ";
+    private static final String MAIN_PREFIX = "main ";
+    // name of the main index in resources/ when it is retired, only its index files are deleted
+    private static final String RESOURCES_MAIN_INDEX = "resources";
+
+    // lock of the catalog held by this process, with the number of nested holders
+    private static FileChannel catalogLock;
+    private static int catalogLockHolders = 0;
+
+    private SegmentCatalog() {
+    }
+
+    public static synchronized List<String> readSegments() throws IOException {
+        List<String> segments = new ArrayList<>();
+        for (String line : readCatalog()) {
+            if (isSegment(line)) segments.add(line);
+        }
+        return segments;
+    }
+
+    public static synchronized IndexFiles mainIndex() throws IOException {
+        return mainIndexFiles(readCatalog());
+    }
+
+    // the main index followed by the live segments, from a single read of the catalog
+    public static synchronized List<IndexFiles> readIndexes() throws IOException {
+        List<String> lines = readCatalog();
+        List<IndexFiles> indexes = new ArrayList<>();
+        indexes.add(mainIndexFiles(lines));
+        for (String line : lines) {
+            if (isSegment(line)) indexes.add(IndexFiles.ofSegment(line));
+        }
+        return indexes;
+    }
+
+    private static boolean isSegment(String line) {
+        return !line.startsWith(RETIRED_PREFIX) && !line.startsWith(MAIN_PREFIX);
+    }
+
+    private static IndexFiles mainIndexFiles(List<String> lines) {
+        String mainIndex = mainIndex(lines);
+        return (mainIndex == null) ? IndexFiles.MAIN_INDEX : IndexFiles.ofSegment(mainIndex);
+    }
+
+    // segment containing the main index, null if it is in resources/
+    private static String mainIndex(List<String> lines) {
+        for (String line : lines) {
+            if (line.startsWith(MAIN_PREFIX)) return line.substring(MAIN_PREFIX.length());
+        }
+        return null;
+    }
+
+    private static List<String> readCatalog() throws IOException {
+        if (!Files.exists(CATALOG)) return List.of();
+        List<String> lines = new ArrayList<>();
+        for (String line : Files.readAllLines(CATALOG, StandardCharsets.UTF_8)) {
+            if (!line.isBlank()) lines.add(line.strip());
+        }
+        return lines;
+    }
+
+    // used by the query processor for detecting new segments and merges
+    public static long lastModified() throws IOException {
+        return Files.exists(CATALOG) ? Files.getLastModifiedTime(CATALOG).toMillis() : 0;
+    }
+
+    // name of a segment that does not exist yet, the directory is created
+    // another process can be creating a segment at the same time, so the directory is created only if it does not exist
+    public static synchronized String newSegment() throws IOException {
+        Files.createDirectories(Paths.get(Constants.SEGMENTS_PATH));
+        int lastSegment = -1;
+        try (Stream<Path> directories = Files.list(Paths.get(Constants.SEGMENTS_PATH))) {
+            for (Path directory : (Iterable<Path>) directories::iterator) {
+                String name = directory.getFileName().toString();
+                if (Files.isDirectory(directory) && name.startsWith(SEGMENT_PREFIX)) {
+                    try {
+                        lastSegment = Math.max(lastSegment, Integer.parseInt(name.substring(SEGMENT_PREFIX.length())));
+                    } catch (NumberFormatException ignored) {
+                        // not created by the catalog
+                    }
+                }
+            }
+        }
+        while (true) {
+            String segment = SEGMENT_PREFIX + (++lastSegment);
+            try {
+                Files.createDirectory(Paths.get(IndexFiles.ofSegment(segment).directory()));
+                return segment;
+            } catch (FileAlreadyExistsException e) {
+                // taken by another process
+            }
+        }
+    }
+
+    // atomically replaces the removed segments with the added one (null if no segment is added), the removed ones are retired
+    public static synchronized void replaceSegments(List<String> removedSegments, String addedSegment) throws IOException {
+        lockCatalog();
+        try {
+            List<String> lines = new ArrayList<>(readCatalog());
+            lines.removeAll(removedSegments);
+            if (addedSegment != null) {
+                // the live segments come before the retired ones
+                int retired = 0;
+                while (retired < lines.size() && !lines.get(retired).startsWith(RETIRED_PREFIX)) retired++;
+                lines.add(retired, addedSegment);
+            }
+            for (String segment : removedSegments) {
+                lines.add(RETIRED_PREFIX + segment + " " + System.currentTimeMillis());
+            }
+            writeCatalog(lines);
+        } finally {
+            unlockCatalog();
+        }
+    }
+
+    public static void addSegment(String segment) throws IOException {
+        replaceSegments(List.of(), segment);
+    }
+
+    // atomically replaces the main index with the one in segment (null for the one in resources/), the previous one is retired
+    public static void replaceMainIndex(String segment) throws IOException {
+        replaceMainIndex(segment, List.of());
+    }
+
+    // as above, retiring also the given segments in the same update
+    // used by a full indexing, whose main index already contains the documents of the segments appended before it
+    public static synchronized void replaceMainIndex(String segment, List<String> retiredSegments) throws IOException {
+        lockCatalog();
+        try {
+            List<String> lines = new ArrayList<>(readCatalog());
+            String previousMainIndex = mainIndex(lines);
+            lines.removeAll(retiredSegments);
+            long now = System.currentTimeMillis();
+            for (String retiredSegment : retiredSegments) {
+                lines.add(RETIRED_PREFIX + retiredSegment + " " + now);
+            }
+            if (!Objects.equals(previousMainIndex, segment)) {
+                lines.removeIf(line -> line.startsWith(MAIN_PREFIX));
+                if (segment != null) lines.add(0, MAIN_PREFIX + segment);
+                lines.add(RETIRED_PREFIX + (previousMainIndex == null ? RESOURCES_MAIN_INDEX : previousMainIndex) + " " + now);
+            }
+            writeCatalog(lines);
+        } finally {
+            unlockCatalog();
+        }
+    }
+
+    // a full indexing writes the main index in resources/ again, so its files must not be deleted if they were retired
+    public static synchronized void keepResourcesMainIndex() throws IOException {
+        lockCatalog();
+        try {
+            List<String> lines = new ArrayList<>(readCatalog());
+            if (lines.removeIf(line -> line.startsWith(RETIRED_PREFIX + RESOURCES_MAIN_INDEX + " "))) writeCatalog(lines);
+        } finally {
+            unlockCatalog();
+        }
+    }
+
+    // deletes the segments retired for more than the grace period, also done by every update of the catalog
+    public static synchronized void deleteRetiredSegments() throws IOException {
+        lockCatalog();
+        try {
+            List<String> lines = new ArrayList<>(readCatalog());
+            if (removeExpiredSegments(lines)) writeCatalog(lines);
+        } finally {
+            unlockCatalog();
+        }
+    }
+
+    // deletes the files of the expired retired segments and removes them from the lines, returns true if any was removed
+    private static boolean removeExpiredSegments(List<String> lines) throws IOException {
+        boolean deleted = false;
+        for (int i = lines.size() - 1; i >= 0; i--) {
+            if (!lines.get(i).startsWith(RETIRED_PREFIX)) continue;
+            String[] retiredSegment = lines.get(i).split(" ");
+            if (System.currentTimeMillis() - Long.parseLong(retiredSegment[2]) >= Constants.RETIRED_SEGMENTS_GRACE_PERIOD) {
+                if (retiredSegment[1].equals(RESOURCES_MAIN_INDEX)) {
+                    deleteIndexFiles(IndexFiles.MAIN_INDEX);
+                } else {
+                    deleteSegment(retiredSegment[1]);
+                }
+                lines.remove(i);
+                deleted = true;
+            }
+        }
+        return deleted;
+    }
+
+    // deletes the directory of a segment that is not listed in the catalog
+    public static void deleteSegment(String segment) throws IOException {
+        Path directory = Paths.get(IndexFiles.ofSegment(segment).directory());
+        if (!Files.exists(directory)) return;
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files.sorted((first, second) -> second.compareTo(first))::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private static void deleteIndexFiles(IndexFiles files) throws IOException {
+        for (String file : List.of(files.postingsDocIds(), files.postingsFrequencies(), files.lexicon(), files.documentTable(), files.collectionStatistics(), files.deletedDocuments())) {
+            Files.deleteIfExists(Paths.get(file));
+        }
+    }
+
+    // called holding the catalog lock
+    private static void writeCatalog(List<String> lines) throws IOException {
+        removeExpiredSegments(lines);
+        Path temporaryCatalog = Paths.get(Constants.SEGMENTS_CATALOG_FILE_PATH + Constants.TXT_FORMAT + ".tmp");
+        Files.write(temporaryCatalog, lines, StandardCharsets.UTF_8);
+        Files.move(temporaryCatalog, CATALOG, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // update of the index files that has to be atomic with respect to the catalog, see underLock
+    public interface LockedUpdate<T> {
+        T run() throws IOException;
+    }
+
+    // runs the update holding the catalog lock, so that no other process changes the catalog or the deletions in the meantime
+    // the methods of the catalog can be called by the update, they share the lock
+    public static synchronized <T> T underLock(LockedUpdate<T> update) throws IOException {
+        lockCatalog();
+        try {
+            return update.run();
+        } finally {
+            unlockCatalog();
+        }
+    }
+
+    // the catalog is read and written holding a lock shared with the other processes
+    // it is taken once by this process and counted, since a file lock can not be taken twice by the same process
+    // always called holding the monitor of the class
+    private static void lockCatalog() throws IOException {
+        if (catalogLockHolders++ > 0) return;
+        try {
+            Files.createDirectories(Paths.get(Constants.SEGMENTS_PATH));
+            FileChannel lockChannel = FileChannel.open(Paths.get(Constants.SEGMENTS_CATALOG_LOCK_FILE_PATH), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            try {
+                lockChannel.lock();
+            } catch (IOException e) {
+                lockChannel.close();
+                throw e;
+            }
+            catalogLock = lockChannel;
+        } catch (IOException e) {
+            catalogLockHolders--;
+            throw e;
+        }
+    }
+
+    // the lock is released, by closing its channel, when the outermost holder releases it
+    private static void unlockCatalog() throws IOException {
+        if (--catalogLockHolders > 0) return;
+        FileChannel lockChannel = catalogLock;
+        catalogLock = null;
+        lockChannel.close();
+    }
+}
@@ -1,33 +1,58 @@
 package it.unipi.utils;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.tartarus.snowball.ext.englishStemmer;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.regex.Pattern;
+import java.util.function.Consumer;
 
 public class TextProcessingUtils {
     // we use a hashset because contains() is O(1)
     private static final HashSet<String> stopWords;
-    // Snowball stemmer, better than Porter
-    private static final englishStemmer englishStemmer = new englishStemmer();
-    // removes punctuation and strange characters
-    static Pattern cleanRegex = Pattern.compile("[^a-zA-Z0-9]");
-    // splits by spaces
-    static Pattern splitRegex = Pattern.compile(" +");
-
+    // Snowball stemmer, better than Porter. It keeps the word being stemmed as internal state, so each thread needs its own instance
+    private static final ThreadLocal<englishStemmer> englishStemmers = ThreadLocal.withInitial(englishStemmer::new);
+    // bounded memo of the stems shared by the threads, since the vocabulary is Zipfian most tokens are already in it (null if disabled)
+    private static final LoadingCache<String, String> stemmingCache;
+    // for each char, the ASCII letter or digit it becomes once lowercased, 0 if it is a separator
+    private static final char[] TOKEN_CHARS = new char[Character.MAX_VALUE + 1];
+    // chars that become more than one char once lowercased (e.g. U+0130 becomes i followed by a combining dot), ending the token
+    private static final boolean[] ENDS_TOKEN = new boolean[Character.MAX_VALUE + 1];
     static {
+        // the table reproduces lowercasing the text with the default locale and replacing what is not in [a-zA-Z0-9] with a space
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            String lowerCase = String.valueOf((char) c).toLowerCase();
+            if (isTokenChar(lowerCase.charAt(0))) {
+                TOKEN_CHARS[c] = lowerCase.charAt(0);
+                ENDS_TOKEN[c] = lowerCase.length() > 1;
+            }
+        }
         try {
             stopWords = new HashSet<>(Files.readAllLines(Paths.get(Constants.STOPWORDS_PATH)));
-        } catch (IOException e) {
+            long stemmingCacheSize = FileSystemUtils.loadAppProperties().getLong("stemmingCacheSize", Constants.DEFAULT_STEMMING_CACHE_SIZE);
+            stemmingCache = (stemmingCacheSize <= 0) ? null : CacheBuilder.newBuilder()
+                    .maximumSize(stemmingCacheSize)
+                    .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                    .recordStats()
+                    .build(CacheLoader.from(TextProcessingUtils::stem));
+        } catch (IOException | ConfigurationException e) {
             throw new RuntimeException(e);
         }
     }
 
     public static boolean isAStopWord(String token){
-        return stopWords.contains(token);
+        long start = IndexingProfiler.startDetailed();
+        boolean stopWord = stopWords.contains(token);
+        IndexingProfiler.stopDetailed(IndexingProfiler.Phase.STOPWORDS, start);
+        return stopWord;
     }
 
     // token cannot be longer than MAX_TERM_LEN
@@ -35,16 +60,65 @@ public class TextProcessingUtils {
         return token.length() > Constants.MAX_TERM_LEN ? token.substring(0, Constants.MAX_TERM_LEN) : token;
     }
 
+    private static boolean isTokenChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9');
+    }
+
     public static String[] tokenize(String document){
-        // normalization
-        document = document.toLowerCase();
-        //remove punctuation and strange characters
-        document = cleanRegex.matcher(document).replaceAll(" ");
-        //split in tokens
-        return splitRegex.split(document);
+        ArrayList<String> tokens = new ArrayList<>();
+        tokenize(document, tokens::add);
+        return tokens.toArray(new String[0]);
+    }
+
+    // normalizes and splits the document in a single pass over its chars, without copies of the whole document
+    // the tokens are the ones of lowercasing, replacing the chars that are not ASCII letters or digits with spaces and splitting by " +",
+    // including the empty token the split returns when the document starts with a separator
+    public static void tokenize(String document, Consumer<String> tokenConsumer) {
+        int length = document.length();
+        if (length == 0) {
+            tokenConsumer.accept("");
+            return;
+        }
+        boolean leadingSeparator = TOKEN_CHARS[document.charAt(0)] == 0;
+        boolean firstToken = true;
+        char[] token = new char[Math.min(length, 32)];
+        int tokenLength = 0;
+
+        for (int i = 0; i <= length; i++) {
+            char tokenChar = (i < length) ? TOKEN_CHARS[document.charAt(i)] : 0;
+            if (tokenChar != 0) {
+                if (tokenLength == token.length) {
+                    token = Arrays.copyOf(token, 2 * tokenLength);
+                }
+                token[tokenLength++] = tokenChar;
+                if (!ENDS_TOKEN[document.charAt(i)]) continue;
+            }
+
+            // separator (or end of the document), the current token is complete
+            if (tokenLength == 0) continue;
+            if (firstToken && leadingSeparator) {
+                tokenConsumer.accept("");
+            }
+            firstToken = false;
+            tokenConsumer.accept(new String(token, 0, tokenLength));
+            tokenLength = 0;
+        }
     }
 
     public static String stemToken(String token) {
+        long start = IndexingProfiler.startDetailed();
+        String stem = (stemmingCache == null) ? stem(token) : stemmingCache.getUnchecked(token);
+        IndexingProfiler.stopDetailed(IndexingProfiler.Phase.STEMMING, start);
+        return stem;
+    }
+
+    // hits, misses and evictions of the stemming cache
+    public static CacheStats getStemmingCacheStats() {
+        return (stemmingCache == null) ? new CacheStats(0, 0, 0, 0, 0, 0) : stemmingCache.stats();
+    }
+
+    private static String stem(String token) {
+        englishStemmer englishStemmer = englishStemmers.get();
         englishStemmer.setCurrent(token);
         if (englishStemmer.stem()) {
             token = englishStemmer.getCurrent();
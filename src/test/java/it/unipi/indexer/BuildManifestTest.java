@@ -0,0 +1,142 @@
+package it.unipi.indexer;
+
+import it.unipi.utils.IndexFiles;
+import org.apache.commons.configuration2.BaseConfiguration;
+import org.apache.commons.configuration2.Configuration;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// a build resumed from the manifest of an interrupted one must write the same index as a build that was never interrupted,
+// also if another build (an append) runs in the meantime
+public class BuildManifestTest {
+
+    private static final int NUMBER_OF_DOCUMENTS = 10_000;
+    private static final int VOCABULARY_SIZE = 500;
+
+    @TempDir
+    Path temporaryDirectory;
+
+    @Test
+    void resumeDuringIndexingTest() throws IOException {
+
+        String collection = writeCollection();
+        IndexFiles expected = build("expected", collection);
+
+        // killed while the workers were writing their blocks: only some of them are in the manifest, the last line is cut
+        IndexFiles interrupted = index("interrupted", collection);
+        List<String> manifest = Files.readAllLines(manifestPath(interrupted), StandardCharsets.UTF_8);
+        List<String> partialManifest = new ArrayList<>();
+        partialManifest.add(manifest.get(0));
+        int blocks = 0;
+        for (String line : manifest) {
+            if (line.startsWith("block ") && blocks++ % 2 == 0) partialManifest.add(line);
+        }
+        Assertions.assertTrue(blocks > 1, "the collection must be split in more blocks");
+        partialManifest.add("blo");
+        Files.write(manifestPath(interrupted), partialManifest, StandardCharsets.UTF_8);
+
+        build("append", collection);
+        Assertions.assertEquals(partialManifest, Files.readAllLines(manifestPath(interrupted), StandardCharsets.UTF_8));
+
+        resume(interrupted, collection);
+        assertSameIndex(expected, interrupted);
+    }
+
+    @Test
+    void resumeAfterIndexingTest() throws IOException {
+
+        String collection = writeCollection();
+        IndexFiles expected = build("expected", collection);
+
+        // killed before merging: the manifest is complete up to the indexed line
+        IndexFiles interrupted = index("interrupted", collection);
+        List<String> manifest = Files.readAllLines(manifestPath(interrupted), StandardCharsets.UTF_8);
+        Assertions.assertTrue(manifest.get(manifest.size() - 1).startsWith("indexed "));
+
+        build("append", collection);
+        Assertions.assertEquals(manifest, Files.readAllLines(manifestPath(interrupted), StandardCharsets.UTF_8));
+
+        resume(interrupted, collection);
+        assertSameIndex(expected, interrupted);
+    }
+
+    // several workers, each one writing its own block, and a fan-in small enough for intermediate runs
+    private static Configuration configuration() {
+        Configuration configuration = new BaseConfiguration();
+        configuration.setProperty("stemming", false);
+        configuration.setProperty("stopwords", false);
+        configuration.setProperty("readingThreads", 1);
+        configuration.setProperty("indexingThreads", 4);
+        configuration.setProperty("mergeThreads", 2);
+        configuration.setProperty("mergeFanIn", 4);
+        return configuration;
+    }
+
+    // one document for each line, docNo \t text
+    private String writeCollection() throws IOException {
+        Random random = new Random(10);
+        List<String> lines = new ArrayList<>(NUMBER_OF_DOCUMENTS);
+        for (int i = 0; i < NUMBER_OF_DOCUMENTS; i++) {
+            StringBuilder line = new StringBuilder("D").append(i).append('\t');
+            int length = 1 + random.nextInt(40);
+            for (int j = 0; j < length; j++) {
+                // skewed towards the first terms, as in a real collection
+                line.append(" word").append((int) (VOCABULARY_SIZE * Math.pow(random.nextDouble(), 3)));
+            }
+            lines.add(line.toString());
+        }
+        Path collection = temporaryDirectory.resolve("collection.tsv");
+        Files.write(collection, lines, StandardCharsets.UTF_8);
+        return collection.toString();
+    }
+
+    private IndexFiles indexFiles(String name) {
+        return new IndexFiles(temporaryDirectory.resolve(name) + "/");
+    }
+
+    private static Path manifestPath(IndexFiles files) {
+        return Paths.get(files.directory(), "build_manifest.txt");
+    }
+
+    private IndexFiles build(String name, String collection) throws IOException {
+        IndexFiles files = indexFiles(name);
+        resume(files, collection);
+        return files;
+    }
+
+    // only the blocks are written, the manifest is closed as if the build was killed
+    private IndexFiles index(String name, String collection) throws IOException {
+        IndexFiles files = indexFiles(name);
+        BinaryIndexer indexer = new BinaryIndexer(files, collection, configuration());
+        indexer.indexCollection();
+        indexer.closeBuildManifest();
+        return files;
+    }
+
+    private static void resume(IndexFiles files, String collection) throws IOException {
+        BinaryIndexer indexer = new BinaryIndexer(files, collection, configuration());
+        indexer.indexCollection();
+        indexer.mergeBlocks();
+    }
+
+    private static void assertSameIndex(IndexFiles expected, IndexFiles actual) throws IOException {
+        for (String[] file : new String[][]{
+                {expected.postingsDocIds(), actual.postingsDocIds()},
+                {expected.postingsFrequencies(), actual.postingsFrequencies()},
+                {expected.lexicon(), actual.lexicon()},
+                {expected.documentTable(), actual.documentTable()},
+                {expected.collectionStatistics(), actual.collectionStatistics()}}) {
+            Assertions.assertEquals(-1, Files.mismatch(Paths.get(file[0]), Paths.get(file[1])), file[1]);
+        }
+    }
+}
@@ -1,28 +1,40 @@
 package it.unipi.models;
 
 import it.unipi.query.processor.QueryProcessor;
+import it.unipi.utils.Constants;
 import it.unipi.utils.DiskDataStructuresSearch;
+import it.unipi.utils.IndexFiles;
+import it.unipi.utils.ScoringFunctions;
+import it.unipi.utils.TestIndex;
 import org.apache.commons.configuration2.ex.ConfigurationException;
 import org.junit.jupiter.api.Assertions;
-import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.IOException;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
 
 public class PostingListInterfaceTest {
 
-    private QueryProcessor queryProcessor;
+    // from a list with a single posting to one long enough for the skip pointers of every codec and for Elias-Fano
+    private static final double[] TERM_PROBABILITIES = {0.0002, 0.002, 0.05, 0.3, 0.9};
+    private static final int NUMBER_OF_DOCUMENTS = 6000;
+    // Elias-Fano lists from very sparse ones, with many low bits split across two words, to dense ones without low bits
+    private static final double[] ELIAS_FANO_TERM_PROBABILITIES = {0.003, 0.008, 0.02, 0.04, 0.11, 0.3, 0.7};
+    private static final int ELIAS_FANO_NUMBER_OF_DOCUMENTS = 40_000;
+    private static final int ELIAS_FANO_LONG_LIST_UNIVERSE = 3_000_000;
 
-    @BeforeEach
-    void setup() throws IOException, ConfigurationException {
-        queryProcessor = new QueryProcessor();
-    }
+    @TempDir
+    Path temporaryDirectory;
 
     @Test
-    void skipBlocksTest() throws IOException {
+    void skipBlocksTest() throws IOException, ConfigurationException {
 
+        QueryProcessor queryProcessor = new QueryProcessor();
         LexiconTerm lexiconTerm = DiskDataStructuresSearch.lexiconDiskSearch("test", queryProcessor.numberOfTerms, queryProcessor.lexiconBuffer);
         assert lexiconTerm != null;
         PostingListInterface postingList = new PostingListInterface(lexiconTerm);
@@ -33,4 +45,243 @@ public class PostingListInterfaceTest {
             Assertions.assertEquals(docId, postingList.getDocId());
         }
     }
+
+    @Test
+    void nextGEQAtTheEndOfTheListTest() throws IOException {
+
+        List<TestIndex.TestDocument> documents = TestIndex.randomDocuments(new Random(18), "D", NUMBER_OF_DOCUMENTS, TERM_PROBABILITIES);
+        for (PostingsCodec postingsCodec : PostingsCodec.values()) {
+            IndexFiles files = TestIndex.write(temporaryDirectory.resolve(postingsCodec.name()), documents, postingsCodec);
+            CollectionStatistics collectionStatistics = DiskDataStructuresSearch.readCollectionStatistics(files);
+            for (int term = 0; term < TERM_PROBABILITIES.length; term++) {
+                List<Integer> postings = TestIndex.postings(documents, TestIndex.term(term));
+                if (postings.isEmpty()) continue;
+                int lastDocId = postings.get(postings.size() - 1);
+                String message = postingsCodec + " " + TestIndex.term(term);
+
+                // landing on the last posting is not the end of the list
+                PostingListInterface postingList = new PostingListInterface(TestIndex.lexiconTerm(files, TestIndex.term(term)), files, collectionStatistics);
+                Assertions.assertTrue(postingList.nextGEQ(lastDocId), message);
+                Assertions.assertEquals(lastDocId, postingList.getDocId(), message);
+                // neither is asking again for the current posting
+                Assertions.assertTrue(postingList.nextGEQ(lastDocId), message);
+                Assertions.assertTrue(postingList.nextGEQ(0), message);
+                Assertions.assertEquals(lastDocId, postingList.getDocId(), message);
+                // the list is exhausted only when no posting is left
+                Assertions.assertFalse(postingList.nextGEQ(lastDocId + 1), message);
+                Assertions.assertFalse(postingList.next(), message);
+                postingList.closeList();
+
+                // reaching the last posting one posting at a time
+                postingList = new PostingListInterface(TestIndex.lexiconTerm(files, TestIndex.term(term)), files, collectionStatistics);
+                for (int docId : postings) {
+                    Assertions.assertTrue(postingList.nextGEQ(docId), message);
+                    Assertions.assertEquals(docId, postingList.getDocId(), message);
+                }
+                Assertions.assertFalse(postingList.nextGEQ(lastDocId + 1), message);
+                postingList.closeList();
+            }
+        }
+    }
+
+    @Test
+    void blockMaxScoresTest() throws IOException {
+
+        List<TestIndex.TestDocument> documents = TestIndex.randomDocuments(new Random(21), "D", NUMBER_OF_DOCUMENTS, TERM_PROBABILITIES);
+        Random random = new Random(210);
+        for (PostingsCodec postingsCodec : PostingsCodec.values()) {
+            IndexFiles files = TestIndex.write(temporaryDirectory.resolve(postingsCodec.name()), documents, postingsCodec);
+            CollectionStatistics collectionStatistics = DiskDataStructuresSearch.readCollectionStatistics(files);
+            int listsWithBlocks = 0;
+            for (int term = 0; term < TERM_PROBABILITIES.length; term++) {
+                List<Integer> postings = TestIndex.postings(documents, TestIndex.term(term));
+                if (postings.isEmpty()) continue;
+                LexiconTerm lexiconTerm = TestIndex.lexiconTerm(files, TestIndex.term(term));
+                double idf = ScoringFunctions.IDF(lexiconTerm, collectionStatistics);
+                String message = postingsCodec + " " + TestIndex.term(term);
+
+                // the skip blocks start at the docIds of the skip pointers, the first one at 0
+                PostingListInterface postingList = new PostingListInterface(lexiconTerm, files, collectionStatistics);
+                List<Integer> blockStarts = new ArrayList<>(postingList.getSkipPointers().keySet());
+                if (!blockStarts.isEmpty()) listsWithBlocks++;
+                double[] blockMaxScores = new double[blockStarts.size() + 1];
+                for (int docId : postings) {
+                    int frequency = documents.get(docId).termFrequencies().get(TestIndex.term(term));
+                    double score = ScoringFunctions.BM25(frequency, ScoringFunctions.BM25LengthNormalization(documents.get(docId).length(), collectionStatistics), idf);
+                    int block = block(blockStarts, docId);
+                    blockMaxScores[block] = Math.max(blockMaxScores[block], score);
+                }
+
+                // every docId of the collection, in order and then in random order, so that the shallow moves also go back
+                List<Integer> docIds = new ArrayList<>();
+                for (int docId = 0; docId < NUMBER_OF_DOCUMENTS; docId++) docIds.add(docId);
+                for (int pass = 0; pass < 2; pass++) {
+                    for (int docId : docIds) {
+                        int block = block(blockStarts, docId);
+                        int lastDocId = (block < blockStarts.size()) ? blockStarts.get(block) - 1 : Integer.MAX_VALUE;
+                        Assertions.assertEquals(lastDocId, postingList.getBlockLastDocId(docId), message + " docId " + docId);
+                        // an upper bound of the block, only rounded up to a float, and never more than the term upper bound
+                        double blockMaxScore = postingList.getBlockMaxScore(docId);
+                        Assertions.assertTrue(blockMaxScore >= blockMaxScores[block], message + " docId " + docId);
+                        Assertions.assertEquals(Math.min(blockMaxScores[block], postingList.getTermUpperBound()), blockMaxScore, 1e-6 * blockMaxScore, message + " docId " + docId);
+                        Assertions.assertTrue(blockMaxScore <= postingList.getTermUpperBound(), message + " docId " + docId);
+                    }
+                    Collections.shuffle(docIds, random);
+                }
+
+                // the list was not moved
+                Assertions.assertTrue(postingList.next(), message);
+                Assertions.assertEquals(postings.get(0), postingList.getDocId(), message);
+                postingList.closeList();
+            }
+            Assertions.assertTrue(listsWithBlocks > 1, postingsCodec.toString());
+        }
+    }
+
+    // skip block containing docId, 0 before the first skip pointer
+    private static int block(List<Integer> blockStarts, int docId) {
+        int block = 0;
+        while (block < blockStarts.size() && blockStarts.get(block) <= docId) block++;
+        return block;
+    }
+
+    @Test
+    void eliasFanoRoundTripTest() throws IOException {
+
+        Random random = new Random(19);
+        List<TestIndex.TestDocument> documents = TestIndex.randomDocuments(random, "D", ELIAS_FANO_NUMBER_OF_DOCUMENTS, ELIAS_FANO_TERM_PROBABILITIES);
+        IndexFiles files = TestIndex.write(temporaryDirectory.resolve("elias_fano"), documents, PostingsCodec.BIT_PACKED);
+        CollectionStatistics collectionStatistics = DiskDataStructuresSearch.readCollectionStatistics(files);
+        Set<Integer> lowBits = new HashSet<>();
+        for (int term = 0; term < ELIAS_FANO_TERM_PROBABILITIES.length; term++) {
+            List<Integer> postings = TestIndex.postings(documents, TestIndex.term(term));
+            LexiconTerm lexiconTerm = TestIndex.lexiconTerm(files, TestIndex.term(term));
+            String message = TestIndex.term(term) + " with " + postings.size() + " postings";
+
+            // the lists long enough are always Elias-Fano encoded, the shorter ones when it is smaller than the bit packed blocks
+            byte[] header = readDocIdsHeader(files, lexiconTerm);
+            if (postings.size() >= Constants.ELIAS_FANO_THRESHOLD) Assertions.assertEquals(Constants.ELIAS_FANO_DOC_IDS, header[0], message);
+            if (header[0] != Constants.ELIAS_FANO_DOC_IDS) continue;
+            lowBits.add((int) header[1]);
+
+            // every posting is decoded back, in order
+            PostingListInterface postingList = new PostingListInterface(lexiconTerm, files, collectionStatistics);
+            for (int docId : postings) {
+                Assertions.assertTrue(postingList.next(), message);
+                Assertions.assertEquals(docId, postingList.getDocId(), message);
+                Assertions.assertEquals(documents.get(docId).termFrequencies().get(TestIndex.term(term)), postingList.getFreq(), message);
+            }
+            Assertions.assertFalse(postingList.next(), message);
+            postingList.closeList();
+
+            // nextGEQ to the docIds between the postings lands on the following posting, with its frequency
+            for (int step : new int[]{1, 7, 130, 1000}) {
+                postingList = new PostingListInterface(lexiconTerm, files, collectionStatistics);
+                for (int i = 0; i < postings.size(); i += step) {
+                    int target = (i == 0) ? 0 : postings.get(i - 1) + 1;
+                    Assertions.assertTrue(postingList.nextGEQ(target), message + " target " + target);
+                    Assertions.assertEquals(postings.get(i), postingList.getDocId(), message + " target " + target);
+                    Assertions.assertEquals(documents.get(postings.get(i)).termFrequencies().get(TestIndex.term(term)), postingList.getFreq(), message);
+                }
+                Assertions.assertFalse(postingList.nextGEQ(postings.get(postings.size() - 1) + 1), message);
+                postingList.closeList();
+            }
+        }
+        // sparse and dense lists, the low bits of the sparse ones are not a divisor of 64
+        Assertions.assertTrue(lowBits.contains(0), lowBits.toString());
+        Assertions.assertTrue(lowBits.stream().anyMatch(bits -> bits > 0 && 64 % bits != 0), lowBits.toString());
+    }
+
+    @Test
+    void eliasFanoLongListTest() throws IOException {
+
+        // a single list in a large universe, written straight to the index files: its lower bits and upper bits are too long
+        // to be kept in memory by the encoder, which writes them in more chunks
+        Random random = new Random(33);
+        CollectionStatistics collectionStatistics = new CollectionStatistics();
+        collectionStatistics.setNumDocs(ELIAS_FANO_LONG_LIST_UNIVERSE);
+        collectionStatistics.setAvgDocLen(1);
+        collectionStatistics.setPostingsCodec(PostingsCodec.BIT_PACKED);
+        // 3 low bits, all set, so that the part of a low part crossing the end of a chunk is never zero
+        List<int[]> postings = new ArrayList<>();
+        for (int docId = 7; docId < ELIAS_FANO_LONG_LIST_UNIVERSE; docId += 8 * (1 + random.nextInt(2))) {
+            postings.add(new int[]{docId, 1 + random.nextInt(3)});
+        }
+        IndexFiles files = new IndexFiles(temporaryDirectory + "/");
+        try (InvertedIndexWriter invertedIndexWriter = new InvertedIndexWriter(files.postingsDocIds(), files.postingsFrequencies(), files.lexicon(), PostingsCodec.BIT_PACKED)) {
+            LexiconTermBinaryIndexing lexiconTerm = new LexiconTermBinaryIndexing(TestIndex.term(0));
+            lexiconTerm.setDocumentFrequency(postings.size());
+            lexiconTerm.startPostingList(invertedIndexWriter, collectionStatistics);
+            for (int[] posting : postings) {
+                lexiconTerm.addPosting(posting[0], posting[1], 1, invertedIndexWriter);
+            }
+            lexiconTerm.endPostingList(invertedIndexWriter);
+        }
+
+        LexiconTerm lexiconTerm = TestIndex.lexiconTerm(files, TestIndex.term(0));
+        byte[] header = readDocIdsHeader(files, lexiconTerm);
+        Assertions.assertEquals(Constants.ELIAS_FANO_DOC_IDS, header[0]);
+        Assertions.assertEquals(3, header[1]);
+        Assertions.assertTrue((long) postings.size() * header[1] > 64 * 8192, "the lower bits must fill more chunks");
+
+        PostingListInterface postingList = new PostingListInterface(lexiconTerm, files, collectionStatistics);
+        for (int[] posting : postings) {
+            Assertions.assertTrue(postingList.next());
+            Assertions.assertEquals(posting[0], postingList.getDocId());
+            Assertions.assertEquals(posting[1], postingList.getFreq());
+        }
+        Assertions.assertFalse(postingList.next());
+        postingList.closeList();
+
+        postingList = new PostingListInterface(lexiconTerm, files, collectionStatistics);
+        for (int i = 0; i < postings.size(); i += 1 + random.nextInt(2000)) {
+            int target = (i == 0) ? 0 : postings.get(i - 1)[0] + 1;
+            Assertions.assertTrue(postingList.nextGEQ(target), "target " + target);
+            Assertions.assertEquals(postings.get(i)[0], postingList.getDocId(), "target " + target);
+            Assertions.assertEquals(postings.get(i)[1], postingList.getFreq(), "target " + target);
+        }
+        postingList.closeList();
+    }
+
+    // representation and number of low bits of the docIds of the term
+    private static byte[] readDocIdsHeader(IndexFiles files, LexiconTerm lexiconTerm) throws IOException {
+        try (FileChannel docIdsChannel = FileChannel.open(Paths.get(files.postingsDocIds()))) {
+            ByteBuffer header = ByteBuffer.allocate(2);
+            docIdsChannel.read(header, lexiconTerm.getDocIdsOffset());
+            return header.array();
+        }
+    }
+
+    @Test
+    void nextGEQRandomTargetsTest() throws IOException {
+
+        Random random = new Random(180);
+        List<TestIndex.TestDocument> documents = TestIndex.randomDocuments(random, "D", NUMBER_OF_DOCUMENTS, TERM_PROBABILITIES);
+        for (PostingsCodec postingsCodec : PostingsCodec.values()) {
+            IndexFiles files = TestIndex.write(temporaryDirectory.resolve(postingsCodec.name()), documents, postingsCodec);
+            CollectionStatistics collectionStatistics = DiskDataStructuresSearch.readCollectionStatistics(files);
+            for (int term = 0; term < TERM_PROBABILITIES.length; term++) {
+                List<Integer> postings = TestIndex.postings(documents, TestIndex.term(term));
+                String message = postingsCodec + " " + TestIndex.term(term);
+                for (int maxStep : new int[]{3, 200, 2000}) {
+                    PostingListInterface postingList = new PostingListInterface(TestIndex.lexiconTerm(files, TestIndex.term(term)), files, collectionStatistics);
+                    // non decreasing targets, the expected posting is the first one not before the target
+                    int target = 0;
+                    int expected = 0;
+                    while (true) {
+                        while (expected < postings.size() && postings.get(expected) < target) expected++;
+                        if (expected == postings.size()) {
+                            Assertions.assertFalse(postingList.nextGEQ(target), message);
+                            break;
+                        }
+                        Assertions.assertTrue(postingList.nextGEQ(target), message);
+                        Assertions.assertEquals(postings.get(expected), postingList.getDocId(), message + " target " + target);
+                        Assertions.assertEquals(documents.get(postings.get(expected)).termFrequencies().get(TestIndex.term(term)), postingList.getFreq(), message);
+                        target += random.nextInt(maxStep);
+                    }
+                    postingList.closeList();
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,189 @@
+package it.unipi.query.processor;
+
+import it.unipi.models.CollectionStatistics;
+import it.unipi.models.DocumentScore;
+import it.unipi.models.LexiconTerm;
+import it.unipi.models.PostingsCodec;
+import it.unipi.models.PruningStrategy;
+import it.unipi.utils.IndexFiles;
+import it.unipi.utils.ScoringFunctions;
+import it.unipi.utils.TestIndex;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+// the dynamic pruning must return the same documents as scoring every posting, on the main index and on the segments
+public class QueryProcessorPruningTest {
+
+    // from rare terms, with lists of a single block, to terms in most documents
+    private static final double[] TERM_PROBABILITIES = {0.001, 0.004, 0.02, 0.05, 0.1, 0.2, 0.4, 0.8};
+    // scores of the same documents summed in a different order
+    private static final double SCORE_TOLERANCE = 1e-9;
+
+    @TempDir
+    Path temporaryDirectory;
+
+    @Test
+    void maxScoreWithTwoSegmentsTest() throws IOException {
+
+        // the threshold reached on the main index is carried to the segment, so that some of its lists start as non essential
+        // and are moved with nextGEQ, also onto their last posting before it is scored
+        int[][] sizes = {{1000, 200}, {300, 300}, {100, 100}};
+        for (int seed = 0; seed < 10; seed++) {
+            for (int[] size : sizes) {
+                Random random = new Random(seed);
+                List<List<TestIndex.TestDocument>> documents = List.of(
+                        TestIndex.randomDocuments(random, "M", size[0], TERM_PROBABILITIES),
+                        TestIndex.randomDocuments(random, "S", size[1], TERM_PROBABILITIES));
+                List<IndexFiles> indexes = writeIndexes(documents, PostingsCodec.VARIABLE_BYTE, "maxscore_" + seed + "_" + size[0]);
+                for (int k : new int[]{1, 3, 10}) {
+                    QueryProcessor queryProcessor = new QueryProcessor(indexes, PruningStrategy.MAXSCORE);
+                    for (List<String> queryTerms : queries(2, 3)) {
+                        assertSameTopK(queryProcessor, documents, Set.of(), "or", queryTerms, k);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void pruningStrategiesTest() throws IOException {
+
+        // a single segment, and a main index with two segments of different sizes
+        int[][] sizes = {{600}, {400, 150, 50}};
+        for (PostingsCodec postingsCodec : PostingsCodec.values()) {
+            for (int seed = 0; seed < 2; seed++) {
+                for (int[] size : sizes) {
+                    Random random = new Random(seed);
+                    List<List<TestIndex.TestDocument>> documents = new ArrayList<>();
+                    for (int i = 0; i < size.length; i++) {
+                        documents.add(TestIndex.randomDocuments(random, "S" + i + "_", size[i], TERM_PROBABILITIES));
+                    }
+                    String name = "strategies_" + seed + "_" + size.length;
+                    List<IndexFiles> indexes = writeIndexes(documents, postingsCodec, name);
+
+                    // some documents of every segment are deleted, they are skipped but still counted in the statistics
+                    Set<String> deletedDocuments = new HashSet<>();
+                    for (int i = 0; i < size.length; i++) {
+                        List<Integer> deletedDocIds = new ArrayList<>();
+                        for (int docId = 0; docId < size[i]; docId++) {
+                            if (random.nextInt(20) == 0) deletedDocIds.add(docId);
+                        }
+                        TestIndex.delete(indexes.get(i), size[i], deletedDocIds.stream().mapToInt(Integer::intValue).toArray());
+                        for (int docId : deletedDocIds) deletedDocuments.add(documents.get(i).get(docId).docNo());
+                    }
+
+                    for (PruningStrategy pruningStrategy : PruningStrategy.values()) {
+                        for (int k : new int[]{1, 5, 20}) {
+                            // a new query processor for each k, since the cached results do not depend on it
+                            QueryProcessor queryProcessor = new QueryProcessor(indexes, pruningStrategy);
+                            String message = postingsCodec + " " + pruningStrategy + " " + name + " k " + k;
+                            for (List<String> queryTerms : queries(1, 3)) {
+                                assertSameTopK(queryProcessor, documents, deletedDocuments, "or", queryTerms, k, message);
+                            }
+                            for (List<String> queryTerms : queries(2, 3)) {
+                                assertSameTopK(queryProcessor, documents, deletedDocuments, "and", queryTerms, k, message);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private List<IndexFiles> writeIndexes(List<List<TestIndex.TestDocument>> documents, PostingsCodec postingsCodec, String name) throws IOException {
+        List<IndexFiles> indexes = new ArrayList<>();
+        for (int i = 0; i < documents.size(); i++) {
+            indexes.add(TestIndex.write(temporaryDirectory.resolve(name + "_" + postingsCodec.name() + "_" + i), documents.get(i), postingsCodec));
+        }
+        return indexes;
+    }
+
+    // all the queries with from minTerms to maxTerms distinct terms of the vocabulary
+    private static List<List<String>> queries(int minTerms, int maxTerms) {
+        List<List<String>> queries = new ArrayList<>();
+        for (int mask = 1; mask < (1 << TERM_PROBABILITIES.length); mask++) {
+            int numberOfTerms = Integer.bitCount(mask);
+            if (numberOfTerms < minTerms || numberOfTerms > maxTerms) continue;
+            List<String> queryTerms = new ArrayList<>();
+            for (int term = 0; term < TERM_PROBABILITIES.length; term++) {
+                if ((mask & (1 << term)) != 0) queryTerms.add(TestIndex.term(term));
+            }
+            queries.add(queryTerms);
+        }
+        return queries;
+    }
+
+    private static void assertSameTopK(QueryProcessor queryProcessor, List<List<TestIndex.TestDocument>> documents, Set<String> deletedDocuments, String queryType, List<String> queryTerms, int k) {
+        assertSameTopK(queryProcessor, documents, deletedDocuments, queryType, queryTerms, k, "");
+    }
+
+    private static void assertSameTopK(QueryProcessor queryProcessor, List<List<TestIndex.TestDocument>> documents, Set<String> deletedDocuments, String queryType, List<String> queryTerms, int k, String message) {
+        String query = queryType + " " + String.join(" ", queryTerms);
+        Map<String, Double> expectedScores = exhaustiveScores(documents, deletedDocuments, queryType.startsWith("and"), queryTerms);
+        String description = (message + " " + query).strip();
+        List<Double> expectedTopK = expectedScores.values().stream().sorted(Comparator.reverseOrder()).limit(k).toList();
+
+        List<DocumentScore> results = new ArrayList<>(queryProcessor.runQuery(query, k));
+        Assertions.assertEquals(expectedTopK.size(), results.size(), description);
+        for (int i = 0; i < results.size(); i++) {
+            DocumentScore result = results.get(i);
+            // the score of the result is the right one, and it is the i-th best score
+            Assertions.assertTrue(expectedScores.containsKey(result.docNo()), description + ": " + result.docNo() + " is not a result");
+            Assertions.assertEquals(expectedScores.get(result.docNo()), result.score(), SCORE_TOLERANCE, description + ": " + result.docNo());
+            Assertions.assertEquals(expectedTopK.get(i), result.score(), SCORE_TOLERANCE, description + ": result " + i);
+        }
+    }
+
+    // BM25 score of every document matching the query and not deleted, computed from the documents with the statistics of the whole collection
+    private static Map<String, Double> exhaustiveScores(List<List<TestIndex.TestDocument>> documents, Set<String> deletedDocuments, boolean conjunctive, List<String> queryTerms) {
+        // the average document length is computed as the query processor does, from the one of each segment
+        int numDocs = 0;
+        double numTokens = 0;
+        double avgDocLen = 0;
+        for (List<TestIndex.TestDocument> segment : documents) {
+            avgDocLen = (double) segment.stream().mapToLong(TestIndex.TestDocument::length).sum() / segment.size();
+            numDocs += segment.size();
+            numTokens += avgDocLen * segment.size();
+        }
+        CollectionStatistics collectionStatistics = new CollectionStatistics();
+        collectionStatistics.setNumDocs(numDocs);
+        collectionStatistics.setAvgDocLen(documents.size() == 1 ? avgDocLen : numTokens / numDocs);
+
+        Map<String, Double> idfs = new HashMap<>();
+        for (String term : queryTerms) {
+            LexiconTerm lexiconTerm = new LexiconTerm(term);
+            for (List<TestIndex.TestDocument> segment : documents) {
+                lexiconTerm.setDocumentFrequency(lexiconTerm.getDocumentFrequency() + TestIndex.postings(segment, term).size());
+            }
+            if (lexiconTerm.getDocumentFrequency() > 0) idfs.put(term, ScoringFunctions.IDF(lexiconTerm, collectionStatistics));
+        }
+
+        Map<String, Double> scores = new HashMap<>();
+        for (List<TestIndex.TestDocument> segment : documents) {
+            for (TestIndex.TestDocument document : segment) {
+                // the query processor keeps the length normalizations as floats rounded up
+                double normalization = ScoringFunctions.BM25LengthNormalization(document.length(), collectionStatistics);
+                float roundedNormalization = (float) normalization;
+                if (roundedNormalization < normalization) roundedNormalization = Math.nextUp(roundedNormalization);
+
+                double score = 0;
+                int matchingTerms = 0;
+                for (String term : queryTerms) {
+                    Integer frequency = document.termFrequencies().get(term);
+                    if (frequency == null) continue;
+                    score += ScoringFunctions.BM25(frequency, roundedNormalization, idfs.get(term));
+                    matchingTerms++;
+                }
+                if (matchingTerms > 0 && (!conjunctive || matchingTerms == queryTerms.size()) && !deletedDocuments.contains(document.docNo())) {
+                    scores.put(document.docNo(), score);
+                }
+            }
+        }
+        return scores;
+    }
+}
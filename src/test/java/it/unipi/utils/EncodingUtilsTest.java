@@ -0,0 +1,41 @@
+package it.unipi.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class EncodingUtilsTest {
+
+    @Test
+    void bitPackedRoundTripTest() throws IOException {
+        Random random = new Random(42);
+        int[][] blocks = {
+                new int[]{0},
+                new int[128],
+                new int[]{Integer.MAX_VALUE, -1, 0, 1},
+                // mostly small values with a few exceptions
+                random.ints(128, 0, 16).map(value -> random.nextInt(20) == 0 ? random.nextInt(Integer.MAX_VALUE) : value).toArray(),
+                random.ints(100).toArray()
+        };
+        for (int[] block : blocks) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            int length = EncodingUtils.encodeBitPacked(block, block.length, outputStream);
+            assertEquals(outputStream.size(), length);
+
+            // decoding from the middle of a buffer
+            ByteBuffer buffer = ByteBuffer.allocate(length + 3);
+            buffer.position(3);
+            buffer.put(outputStream.toByteArray());
+            int[] decoded = new int[block.length];
+            assertEquals(length + 3, EncodingUtils.decodeBitPacked(buffer, 3, decoded, block.length));
+            assertArrayEquals(block, decoded, Arrays.toString(block));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package it.unipi.utils;
+
+import it.unipi.models.CollectionStatistics;
+import it.unipi.models.Document;
+import it.unipi.models.InvertedIndexWriter;
+import it.unipi.models.LexiconTerm;
+import it.unipi.models.LexiconTermBinaryIndexing;
+import it.unipi.models.PostingsCodec;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+// small binary indexes written with the same writers as the merge, for the tests that cannot rely on the indexed collection
+public final class TestIndex {
+
+    // a document with its length and the frequency of each of its terms
+    public record TestDocument(String docNo, int length, Map<String, Integer> termFrequencies) {
+    }
+
+    private TestIndex() {
+    }
+
+    // random documents: the term i of the vocabulary is in a document with probability termProbabilities[i]
+    // the lengths are all different, so that documents with different terms hardly ever have the same score
+    public static List<TestDocument> randomDocuments(Random random, String docNoPrefix, int numberOfDocuments, double[] termProbabilities) {
+        List<TestDocument> documents = new ArrayList<>(numberOfDocuments);
+        for (int i = 0; i < numberOfDocuments; i++) {
+            Map<String, Integer> termFrequencies = new TreeMap<>();
+            int length = 0;
+            for (int term = 0; term < termProbabilities.length; term++) {
+                if (random.nextDouble() < termProbabilities[term]) {
+                    int frequency = 1 + (random.nextInt(4) == 0 ? random.nextInt(10) : 0);
+                    termFrequencies.put(term(term), frequency);
+                    length += frequency;
+                }
+            }
+            documents.add(new TestDocument(docNoPrefix + i, length + 2 * i + 1, termFrequencies));
+        }
+        return documents;
+    }
+
+    // term of the vocabulary of the random documents, not changed by the query preprocessing
+    public static String term(int term) {
+        return "term" + term;
+    }
+
+    // writes the documents, numbered by their position, as an index in directory
+    public static IndexFiles write(Path directory, List<TestDocument> documents, PostingsCodec postingsCodec) throws IOException {
+        Files.createDirectories(directory);
+        IndexFiles files = new IndexFiles(directory + "/");
+
+        long numTokens = 0;
+        TreeMap<String, List<int[]>> postingLists = new TreeMap<>();
+        try (OutputStream documentTableStream = new BufferedOutputStream(new FileOutputStream(files.documentTable()))) {
+            for (int docId = 0; docId < documents.size(); docId++) {
+                TestDocument document = documents.get(docId);
+                documentTableStream.write(new Document(docId, document.docNo(), document.length()).serializeBinary());
+                numTokens += document.length();
+                for (Map.Entry<String, Integer> term : document.termFrequencies().entrySet()) {
+                    postingLists.computeIfAbsent(term.getKey(), t -> new ArrayList<>()).add(new int[]{docId, term.getValue()});
+                }
+            }
+        }
+        CollectionStatistics collectionStatistics = new CollectionStatistics();
+        collectionStatistics.setNumDocs(documents.size());
+        collectionStatistics.setAvgDocLen(documents.isEmpty() ? 0 : (double) numTokens / documents.size());
+        collectionStatistics.setPostingsCodec(postingsCodec);
+
+        try (InvertedIndexWriter invertedIndexWriter = new InvertedIndexWriter(files.postingsDocIds(), files.postingsFrequencies(), files.lexicon(), postingsCodec)) {
+            for (Map.Entry<String, List<int[]>> postingList : postingLists.entrySet()) {
+                LexiconTermBinaryIndexing lexiconTerm = new LexiconTermBinaryIndexing(postingList.getKey());
+                lexiconTerm.setDocumentFrequency(postingList.getValue().size());
+                lexiconTerm.startPostingList(invertedIndexWriter, collectionStatistics);
+                for (int[] posting : postingList.getValue()) {
+                    double lengthNormalization = ScoringFunctions.BM25LengthNormalization(documents.get(posting[0]).length(), collectionStatistics);
+                    lexiconTerm.addPosting(posting[0], posting[1], lengthNormalization, invertedIndexWriter);
+                }
+                lexiconTerm.endPostingList(invertedIndexWriter);
+            }
+        }
+        Files.write(Path.of(files.collectionStatistics()), collectionStatistics.serializeBinary());
+        return files;
+    }
+
+    // lexicon entry of term in the index, null if the term is not there
+    public static LexiconTerm lexiconTerm(IndexFiles files, String term) throws IOException {
+        try (FileChannel lexiconChannel = FileChannel.open(Path.of(files.lexicon()))) {
+            MappedByteBuffer lexiconBuffer = lexiconChannel.map(FileChannel.MapMode.READ_ONLY, 0, lexiconChannel.size());
+            return DiskDataStructuresSearch.lexiconDiskSearch(term, (int) lexiconChannel.size() / Constants.LEXICON_ENTRY_SIZE, lexiconBuffer);
+        }
+    }
+
+    // docIds of the postings of term, in the order of the posting list
+    public static List<Integer> postings(List<TestDocument> documents, String term) {
+        List<Integer> docIds = new ArrayList<>();
+        for (int docId = 0; docId < documents.size(); docId++) {
+            if (documents.get(docId).termFrequencies().containsKey(term)) docIds.add(docId);
+        }
+        return docIds;
+    }
+
+    public static void delete(IndexFiles files, int numDocs, int... docIds) throws IOException {
+        DeletionBitmap deletedDocuments = DeletionBitmap.load(files, numDocs);
+        for (int docId : docIds) {
+            deletedDocuments.delete(docId);
+        }
+        deletedDocuments.write(files);
+    }
+}
@@ -0,0 +1,24 @@
+package it.unipi.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+// does not need the collection, unlike TextProcessingUtilsTest
+public class TokenizerTest {
+
+    @Test
+    void tokenizeAsRegexPipelineTest() {
+        // the tokenizer has to return the same tokens as the regex pipeline it replaced
+        Pattern cleanRegex = Pattern.compile("[^a-zA-Z0-9]");
+        Pattern splitRegex = Pattern.compile(" +");
+        String[] documents = {"", " ", "!!", "a", "  The  quick, brown FOX!", "(1) U.S.A. vs 2-3", "caf\u00e9 na\u00efve",
+                "\u0130stanbul \u212Aelvin", "\uD835\uDC00bc end ", "tab\tseparated\nlines"};
+        for (String document : documents) {
+            String[] expected = splitRegex.split(cleanRegex.matcher(document.toLowerCase()).replaceAll(" "));
+            assertArrayEquals(expected, TextProcessingUtils.tokenize(document), document);
+        }
+    }
+}